@@ -0,0 +1,23 @@
+package eu.mrogalski.saidit;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Hands developer commands from adb to {@link SaidItService}, which is not exported. Part of debug builds only. While
+ * Echo is running:
+ * <pre>
+ * adb shell am broadcast -n eu.mrogalski.saidit/.DebugCommandReceiver --es command "scheduler fixed 500"
+ * </pre>
+ */
+public class DebugCommandReceiver extends android.content.BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String command = intent.getStringExtra(SaidItService.EXTRA_DEBUG_COMMAND);
+        if (command == null) return;
+        context.startService(new Intent(context, SaidItService.class)
+                .setAction(SaidItService.ACTION_DEBUG_COMMAND)
+                .putExtra(SaidItService.EXTRA_DEBUG_COMMAND, command));
+    }
+}
@@ -1,139 +1,874 @@
 package eu.mrogalski.saidit;
 
+import android.os.Build;
 import android.os.SystemClock;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * Circular buffer holding the most recent audio.
+ *
+ * Every byte ever written gets a sequence number. History is kept in chunks of {@code CHUNK_SIZE} bytes: the byte with
+ * sequence {@code s} lives at {@code s % CHUNK_SIZE} in the chunk for {@code s / CHUNK_SIZE}. The ring takes a new
+ * chunk whenever the writer reaches the end of the newest one, until it holds the size given to
+ * {@link #allocate(long)}; from then on the writer overwrites the oldest chunk. Surplus chunks are released one per
+ * fill, oldest first. So a resize copies nothing and never stalls the writer, and the newest history stays in place.
+ *
+ * A single writer thread (the audio thread) calls {@link #fill(Consumer)} and {@link #allocate(long)} and
+ * publishes its progress through two volatile sequences: {@code claimed} (end of the region that may be overwritten
+ * right now) and {@code written} (end of the data that is ready). Readers never lock - they copy a range out of the
+ * chunks and afterwards drop the part that the writer may have overwritten in the meantime. That check is only as good
+ * as its order after the copy: a volatile read doesn't keep the plain reads of the copy before it, and ARM does
+ * reorder them, so a {@link #loadFence()} goes in between. Stats are read the same
+ * way: the writer bumps {@code statsVersion} before and after it changes what they are made of (a seqlock), and
+ * readers retry while it is odd or when it changed under them. Readers spin meanwhile, so chunks are taken and released
+ * before the update and only the new ring is published within it.
+ *
+ * Once the fill rate is set, every fill is timed and a {@link TimeIndex} tells when any position was captured. By
+ * default a fill is taken to end when it returns; a {@link CaptureClock} can tell better.
+ */
 public class AudioMemory {
+    static final String TAG = AudioMemory.class.getSimpleName();
 
-    private final LinkedList<byte[]> filled = new LinkedList<byte[]>();
-    private final LinkedList<byte[]> free = new LinkedList<byte[]>();
-
-    private long fillingStartUptimeMillis;
-    private boolean filling = false;
-    private boolean currentWasFilled = false;
-    private byte[] current = null;
-    private int offset = 0;
     static final int CHUNK_SIZE = 1920000; // 20 seconds of 48kHz wav (single channel, 16-bit samples) (1875 kB)
+    private static final int COPY_BUFFER_SIZE = 65536;
+    private static final StampedLock FENCE = new StampedLock(); // never locked, only its fence is used
+    private static final long FENCE_STAMP = FENCE.tryOptimisticRead();
+
+    /**
+     * Chunks for consecutive chunk numbers starting at {@code firstChunk}, together with the oldest sequence they hold.
+     * While the writer overwrites the oldest chunk, that chunk is in the ring twice: first for the audio it still holds
+     * and last for the audio being written. Replaced as a whole when chunks are taken, reused or released.
+     */
+    private static class Ring {
+        final AudioStore[] chunks;
+        final long firstChunk;
+        final long first;
+        final boolean overwriting; // the first and the last chunk are the same store
 
-    synchronized public void allocate(long sizeToEnsure) {
-        long currentSize = getAllocatedMemorySize();
-        while(currentSize < sizeToEnsure) {
-            currentSize += CHUNK_SIZE;
-            free.addLast(new byte[CHUNK_SIZE]);
+        Ring(AudioStore[] chunks, long firstChunk, long first, boolean overwriting) {
+            this.chunks = chunks;
+            this.firstChunk = firstChunk;
+            this.first = Math.max(first, firstChunk * CHUNK_SIZE);
+            this.overwriting = overwriting;
         }
-        while(!free.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-            currentSize -= CHUNK_SIZE;
-            free.removeLast();
+
+        /**
+         * Number of distinct stores, the first ones of {@code chunks}.
+         */
+        int stores() {
+            return overwriting ? chunks.length - 1 : chunks.length;
+        }
+
+        AudioStore chunk(long sequence) {
+            return chunks[(int) (sequence / CHUNK_SIZE - firstChunk)];
         }
-        while(!filled.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-            currentSize -= CHUNK_SIZE;
-            filled.removeFirst();
+
+        long oldestSequence(long claimed) {
+            return overwriting ? Math.max(first, claimed - stores() * (long) CHUNK_SIZE) : first;
         }
-        if((current != null) && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-            //currentSize -= CHUNK_SIZE;
-            current = null;
-            offset = 0;
-            currentWasFilled = false;
+    }
+
+    private volatile Ring ring = new Ring(new AudioStore[0], 0, 0, false);
+    private volatile long written = 0;
+    private volatile long claimed = 0;
+    private volatile int allocated = 0; // size the ring grows to
+
+    private volatile long fillingStartUptimeMillis;
+    private volatile boolean filling = false;
+    private volatile long lastFillUptimeMillis = 0;
+    private volatile int statsVersion = 0; // odd while the writer changes what stats are made of
+    private volatile TimeIndex timeIndex = new TimeIndex(0);
+
+    // A chunk taken ahead of need by prepareChunk(), and the files of the last chunks handed to the writer, which it
+    // may not have published yet. Chunks are made only while spareLock is held, so they never pick the same file.
+    private final Object spareLock = new Object();
+    private AudioStore spare = null;
+    private final File[] handedFiles = new File[2];
+    private int handed = 0;
+
+    // when set, history is memory-mapped next to this file instead of the Java heap; written only by the writer
+    private volatile File backingFile = null;
+
+    // used only by the writer
+    private boolean copying = false; // history of another memory is being copied in, it keeps its own times
+    private int nextAllocated; // allocated, as it will be with the ring worked out by prepareRing()
+    private Ring preparedRing; // worked out by prepareAppend()
+    private CaptureClock captureClock = NOW;
+    private boolean interrupted = false; // capture stopped for a while, the next fill starts a new segment
+    private long timesFrom = Long.MAX_VALUE; // times of history from here on are kept after the ring drops it
+
+    /**
+     * Chooses where the history lives. With a file, history is kept in memory-mapped files named after it (outside of
+     * the Java heap); with {@code null} it is kept in heap arrays. New chunks are taken from there right away and the
+     * others move as the writer overwrites them. Writer thread only.
+     */
+    public void setBackingFile(File file) {
+        backingFile = file;
+        if(file != null) {
+            // left by versions that mapped the whole ring over one file
+            file.delete();
+            new File(file.getPath() + "~").delete();
         }
-        System.gc();
     }
 
-    synchronized public long getAllocatedMemorySize() {
-        return (free.size() + filled.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
+    /**
+     * Sets the size of the ring. Chunks are taken only as the writer needs them and surplus ones are released one per
+     * fill, oldest first, so the newest history is kept. A size of 0 frees everything at once. Writer thread only.
+     */
+    public void allocate(long sizeToEnsure) {
+        final int newSize = roundToChunks(sizeToEnsure);
+        beginUpdate();
+        allocated = newSize;
+        if(newSize > 0) {
+            endUpdate();
+            return;
+        }
+        final Ring ring = this.ring;
+        this.ring = new Ring(new AudioStore[0], 0, written, false);
+        endUpdate();
+        for(int i = 0; i < ring.stores(); ++i) {
+            ring.chunks[i].release();
+        }
+        synchronized(spareLock) {
+            if(spare != null) {
+                spare.release();
+                spare = null;
+            }
+        }
     }
 
-    public interface Consumer {
-        public int consume(byte[] array, int offset, int count) throws IOException;
+    /**
+     * Takes the chunk the writer needs next, if it needs one, so that the writer doesn't have to: getting storage for a
+     * mapped chunk takes a write of megabytes. Meant for a thread other than the writer, called ahead of need. It may
+     * take one chunk more than the ring ends up needing, which is kept until the memory is freed.
+     */
+    public void prepareChunk() {
+        synchronized(spareLock) {
+            final boolean mapped = backingFile != null;
+            if(spare != null && spare.isMapped() == mapped) return;
+            if(!needsChunk(mapped)) return;
+            if(spare != null) {
+                spare.release();
+            }
+            spare = createChunk(ring);
+        }
+    }
+
+    /**
+     * Tells whether the ring still grows, or has chunks that have to move to where history lives now.
+     */
+    private boolean needsChunk(boolean mapped) {
+        final Ring ring = this.ring;
+        if(allocated == 0) return false;
+        if(ring.stores() * (long) CHUNK_SIZE < allocated) return true;
+        for(int i = 0; i < ring.stores(); ++i) {
+            if(ring.chunks[i].isMapped() != mapped) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Frees all history and forgets its times, for when what is captured next can't follow it (the sample rate
+     * changed). Positions go on from where they are. Readers lose whatever they didn't copy yet. Writer thread only.
+     */
+    public void clear() {
+        allocate(0);
+        timeIndex = new TimeIndex(timeIndex.fillRate);
+        timesFrom = Long.MAX_VALUE;
+        interrupted = false;
+    }
+
+    /**
+     * Works out the ring for writing {@code first} to {@code last}, which lie in the newest chunk or the one right
+     * after it. Takes new chunks and releases dropped ones on the way, so that all that is left for a stats update is
+     * to publish the ring with {@link #publishRing} - readers of the stats never wait for storage. Writer thread only.
+     *
+     * @return the ring to publish (the current one if nothing changes), or {@code null} if there is no memory to write to
+     */
+    private Ring prepareRing(long first, long last) {
+        nextAllocated = allocated;
+        Ring ring = withoutSurplus(this.ring);
+        ring = withChunk(ring, first);
+        return ring != null ? withChunk(ring, last) : null;
+    }
+
+    /**
+     * Puts the ring worked out by {@link #prepareRing} in place. Writer thread only, within a stats update.
+     */
+    private void publishRing(Ring ring) {
+        if(ring != null) {
+            this.ring = ring;
+        }
+        allocated = nextAllocated;
+    }
+
+    /**
+     * Drops the oldest chunk if the ring holds more than its size. Writer thread only.
+     */
+    private Ring withoutSurplus(Ring ring) {
+        final int stores = ring.stores();
+        if(stores <= 1 || stores * (long) CHUNK_SIZE <= nextAllocated) return ring;
+        // While the oldest chunk is being overwritten it is also the newest - the next one goes instead.
+        final int drop = ring.overwriting ? 2 : 1;
+        // Readers that still see the chunk can go on - a mapped chunk stays valid after its file is deleted.
+        ring.chunks[drop - 1].release();
+        return new Ring(Arrays.copyOfRange(ring.chunks, drop, ring.chunks.length), ring.firstChunk + drop, ring.first, false);
     }
 
-    private int skipAndFeed(int bytesToSkip, byte[] arr, int offset, int length, Consumer consumer)  throws IOException {
-        if(bytesToSkip >= length) {
-            return length;
-        } else if(bytesToSkip > 0) {
-            consumer.consume(arr, offset + bytesToSkip, length - bytesToSkip);
-            return bytesToSkip;
+    /**
+     * Makes sure that the ring has the chunk for {@code sequence}, which is the newest chunk or the one right after it.
+     * A new chunk is taken while the ring is smaller than its size, otherwise the oldest one is overwritten. Writer
+     * thread only.
+     *
+     * @return the ring with the chunk, or {@code null} if there is no memory to write to
+     */
+    private Ring withChunk(Ring ring, long sequence) {
+        final long chunk = sequence / CHUNK_SIZE;
+        if(ring.chunks.length > 0 && chunk < ring.firstChunk + ring.chunks.length) return ring;
+        AudioStore[] chunks = ring.chunks;
+        long firstChunk = ring.firstChunk;
+        if(ring.overwriting) {
+            // the old audio of the oldest chunk has been overwritten completely
+            chunks = Arrays.copyOfRange(chunks, 1, chunks.length);
+            firstChunk++;
+        }
+        final boolean grow = chunks.length * (long) CHUNK_SIZE < nextAllocated;
+        // the oldest chunk isn't where history lives now - it moves instead of being overwritten
+        final boolean move = !grow && chunks[0].isMapped() != (backingFile != null);
+        AudioStore next = (grow || move) ? newChunk(ring) : null;
+        if(next == null && grow) {
+            nextAllocated = chunks.length * CHUNK_SIZE; // stay with what the ring has
+        }
+        boolean overwriting = false;
+        if(next == null) {
+            if(chunks.length == 0) return null;
+            next = chunks[0];
+            overwriting = true;
+        } else if(move) {
+            chunks[0].release();
+            chunks = Arrays.copyOfRange(chunks, 1, chunks.length);
+            firstChunk++;
         }
-        consumer.consume(arr, offset, length);
-        return 0;
+        if(chunks.length == 0) {
+            firstChunk = chunk;
+        }
+        final AudioStore[] newChunks = Arrays.copyOf(chunks, chunks.length + 1);
+        newChunks[chunks.length] = next;
+        return new Ring(newChunks, firstChunk, ring.first, overwriting);
     }
 
-    public void read(int skipBytes, Consumer reader)  throws IOException {
-        synchronized (this) {
-            if(!filling && current != null && currentWasFilled) {
-                skipBytes -= skipAndFeed(skipBytes, current, offset, current.length - offset, reader);
+    /**
+     * Hands a new chunk to the writer, the one prepared ahead of need if there is one.
+     *
+     * @param ring ring the chunk is for, its files are not reused
+     */
+    private AudioStore newChunk(Ring ring) {
+        synchronized(spareLock) {
+            AudioStore chunk = spare;
+            spare = null;
+            if(chunk != null && chunk.isMapped() != (backingFile != null)) {
+                chunk.release();
+                chunk = null;
             }
-            for(byte[] arr : filled) {
-                skipBytes -= skipAndFeed(skipBytes, arr, 0, arr.length, reader);
+            if(chunk == null) {
+                chunk = createChunk(ring);
             }
-            if(current != null && offset > 0) {
-                skipAndFeed(skipBytes, current, 0, offset, reader);
+            if(chunk != null && chunk.isMapped()) {
+                handedFiles[handed++ % handedFiles.length] = chunk.file();
             }
+            return chunk;
         }
     }
 
-    public int countFilled() {
-        int sum = 0;
-        synchronized (this) {
-            if(!filling && current != null && currentWasFilled) {
-                sum += current.length - offset;
-            }
-            for(byte[] arr : filled) {
-                sum += arr.length;
+    /**
+     * With spareLock held.
+     */
+    private AudioStore createChunk(Ring ring) {
+        try {
+            return backingFile != null ? AudioStore.mapped(nextChunkFile(ring), CHUNK_SIZE) : AudioStore.onHeap(CHUNK_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't map a chunk of audio memory", e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "No heap for a chunk of audio memory", e);
+        }
+        return null;
+    }
+
+    private File nextChunkFile(Ring ring) {
+        // The lowest number that no chunk uses, so that files left by a crash get reused.
+        final HashSet<File> used = new HashSet<File>();
+        for(AudioStore chunk : ring.chunks) {
+            used.add(chunk.file());
+        }
+        used.addAll(Arrays.asList(handedFiles));
+        for(int i = 0; ; ++i) {
+            final File file = new File(backingFile.getPath() + "." + i);
+            if(!used.contains(file)) return file;
+        }
+    }
+
+    private static int roundToChunks(long size) {
+        final long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return (int) Math.min(chunks, Integer.MAX_VALUE / CHUNK_SIZE) * CHUNK_SIZE;
+    }
+
+    /**
+     * Size given to {@link #allocate(long)}, rounded up to whole chunks. The ring may hold less while it grows and
+     * more while surplus chunks are released.
+     */
+    public long getAllocatedMemorySize() {
+        return allocated;
+    }
+
+    public interface Consumer {
+        public int consume(byte[] array, int offset, int count) throws IOException;
+    }
+
+    /**
+     * Consumer that keeps track of positions. Before audio that doesn't follow what it consumed last (audio in between
+     * was not held, or was overwritten while it was read) it is told where that audio starts.
+     */
+    public interface PositionedConsumer extends Consumer {
+        public void skipTo(long position);
+    }
+
+    /**
+     * Tells the reader that the audio it gets next starts at {@code position}, if it keeps track of positions.
+     */
+    static void skipped(Consumer reader, long position) {
+        if(reader instanceof PositionedConsumer) {
+            ((PositionedConsumer) reader).skipTo(position);
+        }
+    }
+
+    /**
+     * Oldest sequence that is held by the ring and is not about to be overwritten. Good for where to start reading -
+     * what was read has to be validated against {@link #oldestSequence()}, which sees the ring after it.
+     */
+    private long oldestSequence(Ring ring) {
+        return ring.oldestSequence(claimed);
+    }
+
+    /**
+     * Keeps the reads before it (a copy out of the ring) from being done after the reads that follow it (the check that
+     * the writer didn't overtake the copy). VarHandle fences came with API 33; before that the fence of
+     * StampedLock.validate() does it, which the optimistic reads of the lock need for the same reason.
+     */
+    static void loadFence() {
+        if(Build.VERSION.SDK_INT >= 33) {
+            VarHandle.loadLoadFence();
+        } else {
+            FENCE.validate(FENCE_STAMP);
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes starting at {@code sequence} out of the chunks of the ring.
+     */
+    private static void copyOut(Ring ring, long sequence, byte[] buffer, int offset, int count) {
+        for(int copied = 0; copied < count; ) {
+            final int position = (int) ((sequence + copied) % CHUNK_SIZE);
+            final int length = Math.min(count - copied, CHUNK_SIZE - position);
+            ring.chunk(sequence + copied).get(position, buffer, offset + copied, length);
+            copied += length;
+        }
+    }
+
+    private static void copyIn(Ring ring, long sequence, byte[] buffer, int offset, int count) {
+        for(int copied = 0; copied < count; ) {
+            final int position = (int) ((sequence + copied) % CHUNK_SIZE);
+            final int length = Math.min(count - copied, CHUNK_SIZE - position);
+            ring.chunk(sequence + copied).write(position, buffer, offset + copied, length);
+            copied += length;
+        }
+    }
+
+    /**
+     * Sets the rate of capture in bytes per second, so that fills can be timed. A new rate starts a new time index.
+     * Writer thread only.
+     */
+    public void setFillRate(int fillRate) {
+        if(fillRate != timeIndex.fillRate) {
+            timeIndex = new TimeIndex(fillRate);
+        }
+    }
+
+    /**
+     * Tells when filled audio was captured.
+     */
+    public interface CaptureClock {
+        /**
+         * @return elapsed realtime at which the newest filled byte was captured, or -1 if it isn't known
+         */
+        long capturedMillis();
+
+        /**
+         * @return how far {@link #capturedMillis()} can be off; capture that drifts further starts a new segment
+         */
+        int errorMillis();
+    }
+
+    private static final CaptureClock NOW = new CaptureClock() {
+        @Override
+        public long capturedMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public int errorMillis() {
+            return TimeIndex.TOLERANCE_MILLIS;
+        }
+    };
+
+    /**
+     * Sets the clock that times fills, {@code null} takes fills to end when they return. Writer thread only.
+     */
+    public void setCaptureClock(CaptureClock clock) {
+        captureClock = clock != null ? clock : NOW;
+    }
+
+    /**
+     * Tells that audio was lost before the next fill (AudioRecord failed, there was no memory for it), so that fill
+     * starts a new segment and the outage shows up as a gap even when it is shorter than the clock error. Writer
+     * thread only.
+     */
+    public void markGap() {
+        interrupted = true;
+    }
+
+    /**
+     * Times the audio between the positions, which was just filled. Called by the writer after every fill.
+     */
+    void stamp(long start, long end) {
+        final TimeIndex index = timeIndex;
+        if(index.fillRate == 0 || copying) return;
+        final long captured = captureClock.capturedMillis();
+        if(captured < 0) return;
+        if(!interrupted && !index.isEmpty()
+                && Math.abs(captured - index.elapsedAt(end)) <= captureClock.errorMillis()) return;
+        interrupted = false;
+        final long startMillis = captured - (end - start) * 1000 / index.fillRate;
+        final long wallMillis = System.currentTimeMillis() - (SystemClock.elapsedRealtime() - startMillis);
+        timeIndex = index.withSegment(start, startMillis, wallMillis, Math.min(getStartPosition(), timesFrom));
+    }
+
+    /**
+     * Keeps the times of history from {@code from} on after the ring drops it, for history that is also kept in a
+     * {@link HistorySpill}, and takes the times of the part of it that lies before this memory from {@code older}.
+     * Writer thread only.
+     */
+    void keepTimes(long from, TimeIndex older) {
+        timesFrom = from;
+        if(older.fillRate == timeIndex.fillRate) {
+            timeIndex = timeIndex.after(older);
+        }
+    }
+
+    /**
+     * Times of the history. Can be called from any thread.
+     */
+    TimeIndex getTimes() {
+        return timeIndex();
+    }
+
+    /**
+     * Index for lookups. Without timed fills yet, history is assumed to end now.
+     */
+    private TimeIndex timeIndex() {
+        final TimeIndex index = timeIndex;
+        if(index.fillRate == 0) throw new IllegalStateException("Fill rate is not set");
+        if(!index.isEmpty()) return index;
+        return index.withSegment(getEndPosition(), SystemClock.elapsedRealtime(), System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Wall clock time at which the audio at the position was captured. Positions before the history are extrapolated.
+     * Can be called from any thread.
+     */
+    public long getWallMillis(long position) {
+        return timeIndex().wallAt(position);
+    }
+
+    /**
+     * Position of the audio captured at the wall clock time, in O(log n). A time when nothing was captured gives the
+     * position where capture went on. The time is taken on the clock as it is set now. Can be called from any thread.
+     */
+    public long getPosition(long wallMillis) {
+        return timeIndex().positionAt(wallMillis - System.currentTimeMillis() + SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Milliseconds of capture missing between the positions. Can be called from any thread.
+     */
+    public long getGapMillis(long from, long to) {
+        return timeIndex().gapMillis(from, to);
+    }
+
+    /**
+     * Milliseconds of capture missing right before the position, 0 unless capture went on there after a gap. Can be
+     * called from any thread.
+     */
+    public long getGapMillisBefore(long position) {
+        return timeIndex().gapBefore(position);
+    }
+
+    /**
+     * @return the first position in {@code [from, to)} where capture went on after a gap, {@code to} if there is none.
+     * Can be called from any thread.
+     */
+    public long getNextGap(long from, long to) {
+        return timeIndex().nextGap(from, to);
+    }
+
+    long writtenSequence() {
+        return written;
+    }
+
+    long oldestSequence() {
+        final long end = claimed; // must be read before the ring, which is replaced before the writer claims more
+        return ring.oldestSequence(end);
+    }
+
+    /**
+     * Copies bytes between {@code sequence} and {@code end} into the buffer, across chunks if needed. {@code end} must
+     * have been taken from {@link #writtenSequence()}. The copy has to be validated against {@link #oldestSequence()}
+     * afterwards; it is fenced, so the validation can't be done before it.
+     *
+     * @return number of bytes copied, 0 if the ring no longer holds the sequence.
+     */
+    int copy(long sequence, long end, byte[] buffer, int offset, int count) {
+        final Ring ring = this.ring;
+        if(sequence < ring.first) return 0;
+        count = (int) Math.min(count, end - sequence);
+        copyOut(ring, sequence, buffer, offset, count);
+        loadFence();
+        return count;
+    }
+
+    /**
+     * Gets the ring ready for appending {@code count} bytes at the write position, outside of the stats update in which
+     * {@link #append} appends them. Writer thread only.
+     */
+    void prepareAppend(int count) {
+        if(count <= 0 || count > CHUNK_SIZE) throw new IllegalArgumentException("Can't append " + count + " B at once");
+        final long start = written;
+        preparedRing = prepareRing(start, start + count - 1);
+    }
+
+    /**
+     * Appends bytes at the write position, overwriting the oldest history. The ring must have been made ready by
+     * {@link #prepareAppend} for them. Writer thread only, within a stats update.
+     *
+     * @return false if there is no memory to append to
+     */
+    boolean append(byte[] data, int offset, int count) {
+        final Ring ring = preparedRing;
+        preparedRing = null;
+        publishRing(ring);
+        if(ring == null) return false;
+        final long start = written;
+        final long end = start + count;
+        claimed = end;
+        copyIn(ring, start, data, offset, count);
+        written = end;
+        return true;
+    }
+
+    /**
+     * Starts a change of what stats are made of. Writer thread only, and never nested.
+     */
+    void beginUpdate() {
+        statsVersion++;
+    }
+
+    void endUpdate() {
+        statsVersion++;
+    }
+
+    void beginFill() {
+        beginUpdate();
+        fillingStartUptimeMillis = SystemClock.uptimeMillis();
+        filling = true;
+        endUpdate();
+    }
+
+    /**
+     * Ends the fill in progress and starts the update that publishes what it read - finish it with
+     * {@link #endUpdate()}.
+     */
+    void endFill() {
+        beginUpdate();
+        filling = false;
+        lastFillUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Position right after the newest audio, counted in bytes of PCM since the memory was created. Positions stay valid
+     * while the memory is resized, so they can be used to take a range of history on one thread and read it on another.
+     */
+    public long getEndPosition() {
+        return written;
+    }
+
+    /**
+     * Position of the oldest audio that is still held.
+     */
+    public long getStartPosition() {
+        return oldestSequence();
+    }
+
+    /**
+     * Feeds history to the reader, oldest first, skipping {@code skipBytes} of the oldest audio. Can be called from any
+     * thread and never blocks the writer. Audio overwritten by the writer while it is being read is left out.
+     */
+    public void read(long skipBytes, Consumer reader) throws IOException {
+        final long end = written; // must be read before the ring
+        read(oldestSequence() + Math.max(skipBytes, 0), end, reader);
+    }
+
+    /**
+     * Feeds history between the positions to the reader, oldest first. {@code to} must have been taken from
+     * {@link #getEndPosition()}. Audio that is no longer held is left out, a {@link PositionedConsumer} is told so.
+     */
+    public void read(long from, long to, Consumer reader) throws IOException {
+        final Ring ring = this.ring;
+        if(ring.chunks.length == 0) return;
+        long sequence = Math.max(from, oldestSequence(ring));
+        long consumed = from; // where the reader expects the next audio
+        final byte[] buffer = new byte[(int) Math.max(0, Math.min(to - sequence, COPY_BUFFER_SIZE))];
+        while(sequence < to) {
+            final int length = (int) Math.min(to - sequence, buffer.length);
+            copyOut(ring, sequence, buffer, 0, length);
+            loadFence();
+            // Whatever the writer claimed in the meantime may have been torn - drop it.
+            final long valid = oldestSequence();
+            final int torn = (int) Math.min(Math.max(valid - sequence, 0), length);
+            if(torn > 0) {
+                Log.w(TAG, "Writer overtook reader, dropping " + torn + " B");
             }
-            if(current != null && offset > 0) {
-                sum += offset;
+            if(torn < length) {
+                if(sequence + torn != consumed) {
+                    skipped(reader, sequence + torn);
+                }
+                reader.consume(buffer, torn, length - torn);
+                consumed = sequence + length;
             }
+            sequence = Math.max(sequence + length, valid);
+        }
+    }
+
+    /**
+     * Part of the history shared with the ring as read-only buffers, oldest first.
+     */
+    public class Window {
+        public final ByteBuffer[] buffers;
+        private final long start;
+        private final long end;
+
+        Window(long start, long end, ByteBuffer[] buffers) {
+            this.start = start;
+            this.end = end;
+            this.buffers = buffers;
         }
-        return sum;
+
+        public int length() {
+            return (int) (end - start);
+        }
+
+        /**
+         * The buffers are not copied, so the writer overwrites them when it wraps around. Tells how many bytes at the
+         * beginning of the window may have changed since it was taken. Call it after the buffers were read.
+         */
+        public int overwritten() {
+            loadFence();
+            return (int) Math.min(Math.max(oldestSequence() - start, 0), end - start);
+        }
+    }
+
+    /**
+     * Exposes the history, skipping {@code skipBytes} of the oldest audio, without copying it. Can be called from any
+     * thread.
+     *
+     * @return window over the history, or {@code null} if the history is not kept as plain PCM.
+     */
+    public Window window(long skipBytes) {
+        final long end = written; // must be read before the ring
+        return window(oldestSequence() + Math.max(skipBytes, 0), end);
+    }
+
+    /**
+     * Exposes the history between the positions without copying it. {@code to} must have been taken from
+     * {@link #getEndPosition()}. The window starts later than {@code from} if that audio is no longer held.
+     *
+     * @return window over the history, or {@code null} if the history is not kept as plain PCM.
+     */
+    public Window window(long from, long to) {
+        final Ring ring = this.ring;
+        final long start = Math.min(Math.max(from, oldestSequence(ring)), to);
+        if(start == to) return new Window(start, to, new ByteBuffer[0]);
+        final ByteBuffer[] buffers = new ByteBuffer[(int) ((to - 1) / CHUNK_SIZE - start / CHUNK_SIZE + 1)];
+        long sequence = start;
+        for(int i = 0; i < buffers.length; ++i) {
+            final int position = (int) (sequence % CHUNK_SIZE);
+            final int length = (int) Math.min(to - sequence, CHUNK_SIZE - position);
+            buffers[i] = ring.chunk(sequence).view(position, length);
+            sequence += length;
+        }
+        return new Window(start, to, buffers);
+    }
+
+    public long countFilled() {
+        final long end = written; // must be read before the ring
+        return Math.max(end - oldestSequence(), 0);
     }
 
+    /**
+     * Writer thread only.
+     */
     public void fill(Consumer filler) throws IOException {
-        synchronized (this) {
-            if(current == null) {
-                if(free.isEmpty()) {
-                    if(filled.isEmpty()) return;
-                    currentWasFilled = true;
-                    current = filled.removeFirst();
-                } else {
-                    currentWasFilled = false;
-                    current = free.removeFirst();
-                }
-                offset = 0;
+        if(allocated == 0) return;
+        final long start = written;
+        final Ring next = prepareRing(start, start);
+        if(next != ring || nextAllocated != allocated) {
+            beginUpdate();
+            publishRing(next);
+            endUpdate();
+        }
+        if(next == null) return;
+        final AudioStore store = next.chunk(start);
+        final int position = (int) (start % CHUNK_SIZE);
+        // AudioRecord buffer holds CHUNK_SIZE bytes so a single fill never needs more than that
+        final int count = CHUNK_SIZE - position;
+
+        claimed = start + count;
+        beginFill();
+
+        final int read = store.fill(position, count, filler);
+
+        endFill();
+        written = start + Math.max(read, 0);
+        claimed = written;
+        endUpdate();
+        if(read > 0) {
+            stamp(start, written);
+        }
+    }
+
+    /**
+     * Appends the history of another memory between its positions, oldest first. History it no longer holds is left
+     * out. Used to keep history when switching between memory types: the bulk can be copied in another thread while
+     * the other memory goes on capturing, and the rest in its writer thread, followed by {@link #takeTimes}. Writer
+     * thread of this memory only.
+     */
+    public void fillFrom(AudioMemory other, long from, long to) throws IOException {
+        final Copier copier = new Copier();
+        copying = true;
+        try {
+            other.read(from, to, copier);
+        } finally {
+            copying = false;
+        }
+    }
+
+    /**
+     * Takes over the times of another memory whose history was appended by {@link #fillFrom} up to its end. Writer
+     * thread of both memories only.
+     */
+    public void takeTimes(AudioMemory other) {
+        final long otherEnd = other.getEndPosition();
+        final TimeIndex otherIndex = other.timeIndex;
+        if(otherIndex.fillRate == timeIndex.fillRate) {
+            timeIndex = otherIndex.shifted(getEndPosition() - otherEnd);
+            if(other.timesFrom != Long.MAX_VALUE) {
+                timesFrom = other.timesFrom + getEndPosition() - otherEnd;
             }
-            filling = true;
-            fillingStartUptimeMillis = SystemClock.uptimeMillis();
         }
+    }
 
-        final int read = filler.consume(current, offset, current.length - offset);
+    /**
+     * Fills this memory with whatever it is given, one fill after another; reused for all of it.
+     */
+    private class Copier implements Consumer {
+        private final Consumer filler = new Consumer() {
+            @Override
+            public int consume(byte[] target, int targetOffset, int targetCount) {
+                final int length = Math.min(targetCount, remaining);
+                System.arraycopy(source, sourceOffset, target, targetOffset, length);
+                sourceOffset += length;
+                remaining -= length;
+                return length;
+            }
+        };
+        private byte[] source;
+        private int sourceOffset;
+        private int remaining;
 
-        synchronized (this) {
-            if(offset + read >= current.length) {
-                filled.addLast(current);
-                current = null;
-                offset = 0;
-            } else {
-                offset += read;
+        @Override
+        public int consume(byte[] array, int offset, int count) throws IOException {
+            source = array;
+            sourceOffset = offset;
+            remaining = count;
+            while(remaining > 0 && getAllocatedMemorySize() > 0) {
+                fill(filler);
             }
-            filling = false;
+            return count;
         }
     }
 
     public static class Stats {
-        public int filled; // taken
-        public int total;
-        public int estimation;
-        public boolean overwriting; // currentWasFilled;
+        public long filled; // taken
+        public long total;
+        public long estimation;
+        public boolean overwriting; // history older than the ring size is being dropped
+        public boolean filling; // a fill is in progress
+        public long fillStartUptimeMillis; // start of the fill in progress
+        public long lastFillUptimeMillis; // end of the last fill, 0 before the first one
     }
 
-    public synchronized Stats getStats(int fillRate) {
+    public Stats getStats(int fillRate) {
         final Stats stats = new Stats();
-        stats.filled = filled.size() * CHUNK_SIZE + (current == null ? 0 : currentWasFilled ? CHUNK_SIZE : offset);
-        stats.total = (filled.size() + free.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
-        stats.estimation = (int) (filling ? (SystemClock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
-        stats.overwriting = currentWasFilled;
+        getStats(fillRate, stats);
         return stats;
     }
 
+    /**
+     * Reads a consistent snapshot of the stats into {@code stats}. Never locks or allocates, so it can be called from
+     * any thread, as often as needed, without delaying the writer.
+     */
+    public void getStats(int fillRate, Stats stats) {
+        while(true) {
+            final int version = statsVersion;
+            if((version & 1) == 0) {
+                readStats(stats);
+                if(version == statsVersion) break;
+            }
+            Thread.yield();
+        }
+        stats.estimation = stats.filling ? (SystemClock.uptimeMillis() - stats.fillStartUptimeMillis) * fillRate / 1000 : 0;
+    }
+
+    /**
+     * Reads what the stats are made of. The writer may change it meanwhile - getStats() drops torn results, so this
+     * must only never fail on them.
+     */
+    void readStats(Stats stats) {
+        final long end = written; // must be read before the ring
+        final Ring ring = this.ring;
+        final int size = allocated;
+        stats.filled = Math.max(end - ring.oldestSequence(end), 0);
+        stats.total = size;
+        stats.overwriting = (size > 0) && (ring.overwriting || stats.filled >= size);
+        stats.filling = filling;
+        stats.fillStartUptimeMillis = fillingStartUptimeMillis;
+        stats.lastFillUptimeMillis = lastFillUptimeMillis;
+    }
+
 }
@@ -0,0 +1,96 @@
+package eu.mrogalski.saidit;
+
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.os.SystemClock;
+
+/**
+ * Times captured audio with AudioRecord timestamps, which tell when the device captured a given frame, and spots audio
+ * that AudioRecord dropped. When the AudioRecord buffer overflows (a drain came late, the capture thread was starved)
+ * the audio that doesn't fit is dropped and reads don't say so - but the timestamps jump: the frames after the drop
+ * were captured later than their count says.
+ * <p>
+ * Audio is timed by the newest timestamp of a frame that was already read, so a drop shows up at the fill that starts
+ * right after it. Without timestamps (some devices, right after start) audio is taken to end when a read drained
+ * AudioRecord. Used only by the thread that reads AudioRecord.
+ */
+class AudioRecordClock implements AudioMemory.CaptureClock {
+    private static final int ERROR_MILLIS = 50; // timestamps come once per period of the device, and clocks drift
+    private static final int DROP_MILLIS = 10; // smaller jumps of timestamps are jitter
+    private static final int ANCHOR_SECONDS = 60; // older timestamps aren't trusted
+
+    private final AudioRecord audioRecord;
+    private final int sampleRate;
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    private long received = 0; // frames read
+    private boolean drained = false; // the last read found AudioRecord empty
+
+    // newest timestamp of a frame that was read, -1 without one
+    private long anchorFrame = -1;
+    private long anchorNanos;
+    // newest timestamp, when it is of a frame that wasn't read yet
+    private long pendingFrame = -1;
+    private long pendingNanos;
+    // previous timestamp, to spot drops
+    private long lastFrame = -1;
+    private long lastNanos;
+
+    AudioRecordClock(AudioRecord audioRecord, int sampleRate) {
+        this.audioRecord = audioRecord;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Called after every read of AudioRecord.
+     *
+     * @param drained whether the read found less audio than it asked for
+     * @return milliseconds of audio AudioRecord dropped since the previous read
+     */
+    long read(int bytes, boolean drained) {
+        received += bytes / 2;
+        this.drained = drained;
+        if(pendingFrame >= 0 && pendingFrame <= received) {
+            anchorFrame = pendingFrame;
+            anchorNanos = pendingNanos;
+            pendingFrame = -1;
+        }
+        if(audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS) return 0;
+        final long frame = timestamp.framePosition;
+        if(frame == lastFrame) return 0; // not updated since
+        long dropped = 0;
+        if(lastFrame >= 0 && frame > lastFrame) {
+            final long jumpNanos = (timestamp.nanoTime - lastNanos) - (frame - lastFrame) * 1000000000L / sampleRate;
+            if(jumpNanos >= DROP_MILLIS * 1000000L) {
+                dropped = jumpNanos / 1000000;
+            }
+        }
+        lastFrame = frame;
+        lastNanos = timestamp.nanoTime;
+        if(frame <= received) {
+            anchorFrame = frame;
+            anchorNanos = timestamp.nanoTime;
+            pendingFrame = -1;
+        } else {
+            pendingFrame = frame;
+            pendingNanos = timestamp.nanoTime;
+        }
+        return dropped;
+    }
+
+    private boolean isAnchored() {
+        return anchorFrame >= 0 && received - anchorFrame < (long) ANCHOR_SECONDS * sampleRate;
+    }
+
+    @Override
+    public long capturedMillis() {
+        if(!isAnchored()) return drained ? SystemClock.elapsedRealtime() : -1;
+        final long capturedNanos = anchorNanos + (received - anchorFrame) * 1000000000L / sampleRate;
+        // timestamps are on the monotonic clock, which stops in deep sleep
+        return SystemClock.elapsedRealtime() - (System.nanoTime() - capturedNanos) / 1000000;
+    }
+
+    @Override
+    public int errorMillis() {
+        return isAnchored() ? ERROR_MILLIS : TimeIndex.TOLERANCE_MILLIS;
+    }
+}
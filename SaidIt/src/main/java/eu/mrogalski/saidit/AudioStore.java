@@ -0,0 +1,191 @@
+package eu.mrogalski.saidit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-size byte storage backing a chunk of the {@link AudioMemory} ring. Positions are absolute offsets into the store.
+ */
+abstract class AudioStore {
+
+    abstract int size();
+
+    /**
+     * Lets the filler write at most {@code count} bytes starting at {@code position}.
+     *
+     * @return number of bytes written by the filler
+     */
+    abstract int fill(int position, int count, AudioMemory.Consumer filler) throws IOException;
+
+    /**
+     * Copies {@code count} bytes starting at {@code position} into the array. Safe to call from any thread.
+     */
+    abstract void get(int position, byte[] array, int offset, int count);
+
+    abstract void write(int position, byte[] array, int offset, int count);
+
+    /**
+     * Read-only buffer sharing {@code count} bytes of the store starting at {@code position}.
+     */
+    abstract ByteBuffer view(int position, int count);
+
+    boolean isMapped() {
+        return false;
+    }
+
+    /**
+     * @return the file the store is mapped over, {@code null} if it isn't
+     */
+    File file() {
+        return null;
+    }
+
+    /**
+     * Frees the resources held by the store. The store must not be used afterwards.
+     */
+    void release() {
+    }
+
+    static AudioStore onHeap(int size) {
+        return new HeapStore(size);
+    }
+
+    /**
+     * Creates a store memory-mapped over {@code file}. Mapped pages live outside of the Java heap so the history size
+     * is limited by storage and RAM instead of the heap limit. Storage for the whole store is taken up front - it
+     * throws an IOException if there isn't enough. That writes the whole store, so it is best done off the audio thread
+     * (see {@link AudioMemory#prepareChunk()}).
+     */
+    static AudioStore mapped(File file, int size) throws IOException {
+        return new MappedStore(file, size);
+    }
+
+    private static class HeapStore extends AudioStore {
+        private final byte[] array;
+
+        HeapStore(int size) {
+            array = new byte[size];
+        }
+
+        @Override
+        int size() {
+            return array.length;
+        }
+
+        @Override
+        int fill(int position, int count, AudioMemory.Consumer filler) throws IOException {
+            return filler.consume(array, position, count);
+        }
+
+        @Override
+        void get(int position, byte[] target, int offset, int count) {
+            System.arraycopy(array, position, target, offset, count);
+        }
+
+        @Override
+        void write(int position, byte[] source, int offset, int count) {
+            System.arraycopy(source, offset, array, position, count);
+        }
+
+        @Override
+        ByteBuffer view(int position, int count) {
+            return ByteBuffer.wrap(array, position, count).slice().asReadOnlyBuffer();
+        }
+    }
+
+    private static class MappedStore extends AudioStore {
+        private static final int FILL_BUFFER_SIZE = 65536;
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer writeView; // used only by the writer
+        private final byte[] fillBuffer = new byte[FILL_BUFFER_SIZE];
+
+        MappedStore(File file, int size) throws IOException {
+            this.file = file;
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                allocate(raf.getChannel(), size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            } finally {
+                raf.close(); // the mapping stays valid after the channel is closed
+            }
+            writeView = buffer.duplicate();
+        }
+
+        /**
+         * Writes zeros over the file, so that its blocks are taken from storage now. A sparse file gets them only when
+         * the writer first touches a mapped page, and if storage is full by then the process dies of SIGBUS instead of
+         * getting an IOException.
+         */
+        private static void allocate(FileChannel channel, int size) throws IOException {
+            final ByteBuffer zeros = ByteBuffer.allocate(Math.min(size, FILL_BUFFER_SIZE));
+            for(long position = 0; position < size; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+        }
+
+        @Override
+        int size() {
+            return buffer.capacity();
+        }
+
+        @Override
+        int fill(int position, int count, AudioMemory.Consumer filler) throws IOException {
+            final int read = filler.consume(fillBuffer, 0, Math.min(count, fillBuffer.length));
+            if(read > 0) {
+                writeView.position(position);
+                writeView.put(fillBuffer, 0, read);
+            }
+            return read;
+        }
+
+        @Override
+        void get(int position, byte[] target, int offset, int count) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(target, offset, count);
+        }
+
+        @Override
+        void write(int position, byte[] source, int offset, int count) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.put(source, offset, count);
+        }
+
+        @Override
+        ByteBuffer view(int position, int count) {
+            final ByteBuffer view = buffer.duplicate();
+            view.limit(position + count);
+            view.position(position);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        File file() {
+            return file;
+        }
+
+        @Override
+        void release() {
+            // There is no public API to unmap the buffer - its pages are dropped once it gets collected.
+            file.delete();
+        }
+    }
+}
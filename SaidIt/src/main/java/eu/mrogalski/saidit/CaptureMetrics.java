@@ -0,0 +1,168 @@
+package eu.mrogalski.saidit;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the capture pipeline, for diagnosing dropouts and slow saves on real devices.
+ * <p>
+ * Metrics are registered up front and recording into them doesn't allocate or lock, so they can be kept on in the
+ * audio and capture threads. Any thread may record and read; a dump taken while values are recorded may mix old and new
+ * values of different buckets.
+ */
+final class CaptureMetrics {
+    private final ArrayList<Counter> counters = new ArrayList<Counter>();
+    private final ArrayList<Histogram> histograms = new ArrayList<Histogram>();
+    private volatile long resetMillis = SystemClock.uptimeMillis();
+
+    Counter counter(String name, String unit) {
+        final Counter counter = new Counter(name, unit);
+        counters.add(counter);
+        return counter;
+    }
+
+    Histogram histogram(String name, String unit) {
+        final Histogram histogram = new Histogram(name, unit);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    void reset() {
+        for(Counter counter : counters) counter.reset();
+        for(Histogram histogram : histograms) histogram.reset();
+        resetMillis = SystemClock.uptimeMillis();
+    }
+
+    void dump(PrintWriter writer) {
+        final long seconds = (SystemClock.uptimeMillis() - resetMillis) / 1000;
+        writer.println(String.format(Locale.US, "Metrics of the last %d s:", seconds));
+        for(Counter counter : counters) {
+            writer.println(String.format(Locale.US, "  %-28s %d %s", counter.name, counter.get(), counter.unit));
+        }
+        writer.println(String.format(Locale.US, "  %-28s %8s %8s %8s %8s %8s %8s",
+                "", "count", "mean", "p50", "p90", "p99", "max"));
+        for(Histogram histogram : histograms) {
+            final long count = histogram.getCount();
+            writer.println(String.format(Locale.US, "  %-28s %8d %8d %8d %8d %8d %8d %s", histogram.name, count,
+                    count == 0 ? 0 : histogram.getSum() / count, histogram.getPercentile(50),
+                    histogram.getPercentile(90), histogram.getPercentile(99), histogram.getMax(), histogram.unit));
+        }
+    }
+
+    static final class Counter {
+        final String name;
+        final String unit;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        void reset() {
+            value.set(0);
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with buckets like HdrHistogram's: values below {@code 2 * SUB_BUCKETS} are
+     * counted exactly, every power of two above is split into {@value #SUB_BUCKETS} buckets, so percentiles are within
+     * 1/{@value #SUB_BUCKETS} of the recorded values. The buckets cover all longs.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+        final String name;
+        final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        static int bucket(long value) {
+            if(value < 2 * SUB_BUCKETS) return (int) value;
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /**
+         * @return the smallest value counted in the bucket
+         */
+        static long bucketStart(int bucket) {
+            if(bucket < 2 * SUB_BUCKETS) return bucket;
+            final int shift = bucket / SUB_BUCKETS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        }
+
+        void record(long value) {
+            if(value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long previous;
+            while(value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+                // another thread raised the maximum meanwhile
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getSum() {
+            return sum.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return the start of the bucket that holds the percentile, at most the maximum
+         */
+        long getPercentile(double percentile) {
+            final long total = count.get();
+            if(total == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if(seen >= rank) return Math.min(bucketStart(i), max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for(int i = 0; i < BUCKETS; ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import simplesound.dsp.VoiceActivityDetector;
+import simplesound.pcm.LosslessPcmCodec;
+
+/**
+ * {@link AudioMemory} that keeps history losslessly compressed. The audio thread collects {@code BLOCK_SIZE} bytes of
+ * PCM, encodes them with {@link LosslessPcmCodec} and appends the encoded frame to the ring. Frames are decoded only
+ * when history is read.
+ *
+ * With a {@link VoiceActivityDetector} set, blocks without speech are stored as silence markers of a few bytes instead
+ * and read back as zeros, which multiplies the history that fits into the ring when the room is mostly quiet. Blocks
+ * that can't be stored for want of memory are kept as empty frames, also read back as zeros.
+ *
+ * All sizes reported by this class (skip, filled, total) are in bytes of PCM, the same as for {@link AudioMemory}.
+ * Frame {@code f} holds PCM bytes {@code [f * BLOCK_SIZE, (f + 1) * BLOCK_SIZE)} and the ring sequence where it
+ * starts is kept in {@code frameStarts[f % frameStarts.length]}. Its elements are longs that readers read while the
+ * writer sets them, so the index is an {@link AtomicLongArray} (plain long elements can tear on 32-bit devices).
+ */
+public class CompressedAudioMemory extends AudioMemory {
+    static final String TAG = CompressedAudioMemory.class.getSimpleName();
+
+    static final int BLOCK_SAMPLES = 4096;
+    static final int BLOCK_SIZE = BLOCK_SAMPLES * 2;
+    private static final int MIN_AVERAGE_FRAME_SIZE = 1024; // sizes the frame index
+    // silence markers are tiny - a bigger index lets silence fill up to 64 times the ring size with history
+    private static final int MIN_AVERAGE_FRAME_SIZE_WITH_SILENCE = 128;
+    private static final float DEFAULT_COMPRESSION = 2;
+
+    private volatile AtomicLongArray frameStarts = new AtomicLongArray(0);
+    private volatile long frames = 0; // number of encoded frames
+    private volatile int staged = 0; // bytes collected for the next frame
+
+    // used only by the writer
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] encoded = new byte[LosslessPcmCodec.maxEncodedSize(BLOCK_SAMPLES)];
+    private final LosslessPcmCodec encoder = new LosslessPcmCodec();
+    private VoiceActivityDetector silenceDetector = null;
+
+    /**
+     * Stores blocks without speech as silence markers, or everything with {@code null}. Takes effect for new audio; the
+     * frame index is resized on the next {@link #allocate(long)}. Writer thread only.
+     */
+    public void setSilenceDetector(VoiceActivityDetector detector) {
+        silenceDetector = detector;
+    }
+
+    @Override
+    public void allocate(long sizeToEnsure) {
+        super.allocate(sizeToEnsure);
+        final int averageFrameSize = silenceDetector != null ? MIN_AVERAGE_FRAME_SIZE_WITH_SILENCE : MIN_AVERAGE_FRAME_SIZE;
+        final int capacity = (int) (getAllocatedMemorySize() / averageFrameSize);
+        final AtomicLongArray oldStarts = frameStarts;
+        if(capacity == oldStarts.length()) return;
+        final AtomicLongArray newStarts = new AtomicLongArray(capacity);
+        for(long f = Math.max(0, frames - Math.min(capacity, oldStarts.length())); f < frames; ++f) {
+            newStarts.set((int) (f % capacity), oldStarts.get((int) (f % oldStarts.length())));
+        }
+        beginUpdate();
+        frameStarts = newStarts;
+        endUpdate();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        if(staged == 0) return;
+        // The block collected so far is dropped as well; the next one starts a frame later, so positions don't go back.
+        beginUpdate();
+        staged = 0;
+        frames = frames + 1;
+        endUpdate();
+    }
+
+    @Override
+    public void fill(Consumer filler) throws IOException {
+        if(getAllocatedMemorySize() == 0) return;
+        final long start = getEndPosition();
+        beginFill();
+        final int read = filler.consume(block, staged, BLOCK_SIZE - staged);
+        endFill();
+        if(read <= 0) {
+            endUpdate();
+            return;
+        }
+        if(staged + read < BLOCK_SIZE) {
+            staged += read;
+            endUpdate();
+            stamp(start, start + read);
+            return;
+        }
+        endUpdate();
+
+        final int length = (silenceDetector != null && !silenceDetector.isSpeech(block, 0, BLOCK_SAMPLES))
+                ? LosslessPcmCodec.encodeSilence(BLOCK_SAMPLES, encoded, 0)
+                : encoder.encode(block, 0, BLOCK_SAMPLES, encoded, 0);
+        final AtomicLongArray starts = frameStarts;
+        final long frame = frames;
+        prepareAppend(length);
+        beginUpdate();
+        final long frameStart = writtenSequence();
+        // Without memory for the frame the block is lost, but readers may have seen it staged. It is kept as an empty
+        // frame, read as silence, so that positions don't go back and the times stay in line with them.
+        final boolean stored = append(encoded, 0, length);
+        starts.set((int) (frame % starts.length()), frameStart);
+        // Readers copy the staged block while `frames` stays the same, so it has to be reset before `frames` changes.
+        staged = 0;
+        frames = frame + 1;
+        endUpdate();
+        if(!stored) {
+            Log.w(TAG, "No memory for frame " + frame + ", keeping silence in its place");
+        }
+        stamp(start, start + read);
+    }
+
+    /**
+     * Oldest frame that is still held in the ring, or {@code end} if there is none.
+     */
+    private long oldestFrame(AtomicLongArray starts, long end) {
+        final long oldest = oldestSequence();
+        long low = Math.max(0, end - starts.length());
+        long high = end;
+        while(low < high) {
+            final long middle = (low + high) >>> 1;
+            if(starts.get((int) (middle % starts.length())) < oldest) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public long countFilled() {
+        final long end = frames;
+        final int partial = staged;
+        final AtomicLongArray starts = frameStarts;
+        if(starts.length() == 0) return 0;
+        return (end - oldestFrame(starts, end)) * BLOCK_SIZE + partial;
+    }
+
+    @Override
+    public long getEndPosition() {
+        final long end = frames; // if a frame gets encoded meanwhile, staged is reset first and this only falls short
+        return end * BLOCK_SIZE + staged;
+    }
+
+    @Override
+    public long getStartPosition() {
+        final long end = frames; // must be read before the index
+        final AtomicLongArray starts = frameStarts;
+        return (starts.length() == 0 ? end : oldestFrame(starts, end)) * BLOCK_SIZE;
+    }
+
+    @Override
+    public void read(long skipBytes, Consumer reader) throws IOException {
+        final long end = getEndPosition();
+        read(getStartPosition() + Math.max(skipBytes, 0), end, reader);
+    }
+
+    @Override
+    public void read(long from, long to, Consumer reader) throws IOException {
+        long end = frames; // must be read before the index
+        AtomicLongArray starts = frameStarts;
+        if(starts.length() == 0) return;
+
+        long position = Math.max(from, oldestFrame(starts, end) * BLOCK_SIZE);
+        long consumed = from; // where the reader expects the next audio
+        final LosslessPcmCodec decoder = new LosslessPcmCodec();
+        final byte[] frame = new byte[LosslessPcmCodec.maxEncodedSize(BLOCK_SAMPLES)];
+        final byte[] pcm = new byte[BLOCK_SIZE];
+        while(position < to) {
+            final long f = position / BLOCK_SIZE;
+            final int offset = (int) (position % BLOCK_SIZE);
+            end = frames;
+            // the index may have been resized meanwhile - frames below end are in the current one
+            starts = frameStarts;
+            if(starts.length() == 0) return; // freed
+            if(f >= end) {
+                // The newest audio is still being collected.
+                final int count = (int) Math.min(staged, to - f * BLOCK_SIZE) - offset;
+                if(count > 0) {
+                    System.arraycopy(block, offset, pcm, 0, count);
+                }
+                loadFence();
+                if(frames != end) continue; // block got encoded meanwhile - read it as a frame
+                if(count > 0) {
+                    if(position != consumed) {
+                        skipped(reader, position);
+                    }
+                    reader.consume(pcm, 0, count);
+                }
+                break;
+            }
+
+            final long start = starts.get((int) (f % starts.length()));
+            final long next = (f + 1 < end) ? starts.get((int) ((f + 1) % starts.length())) : writtenSequence();
+            final int length = copy(start, next, frame, 0, frame.length);
+            boolean decoded = false;
+            if(!isOvertaken(starts, f, start)) {
+                try {
+                    if(start == next) {
+                        Arrays.fill(pcm, (byte) 0); // a block that was lost, see fill()
+                        decoded = true;
+                    } else {
+                        decoded = decoder.decode(frame, 0, length, pcm, 0) == BLOCK_SAMPLES;
+                    }
+                } catch (RuntimeException e) {
+                    // checked below
+                }
+            }
+            if(!decoded) {
+                // The frame may have been overwritten while it was copied - it is corrupted only if it is still held.
+                if(!isOvertaken(starts, f, start)) {
+                    throw new IOException("Corrupted frame " + f + " in audio memory");
+                }
+                // The writer overtook us - continue with the oldest frame it left.
+                final long oldest = oldestFrame(frameStarts, frames);
+                Log.w(TAG, "Writer overtook reader, dropping " + (oldest - f) + " frames");
+                position = Math.max(oldest * BLOCK_SIZE, position + BLOCK_SIZE - offset);
+                continue;
+            }
+            final int count = (int) Math.min(BLOCK_SIZE, to - f * BLOCK_SIZE) - offset;
+            if(position != consumed) {
+                skipped(reader, position);
+            }
+            reader.consume(pcm, offset, count);
+            position += count;
+            consumed = position;
+        }
+    }
+
+    /**
+     * Tells whether frame {@code f}, which was found to start at {@code start}, is no longer held: its slot in the
+     * index was reused, or the ring dropped the sequence it starts at.
+     */
+    private boolean isOvertaken(AtomicLongArray starts, long f, long start) {
+        return frames > f + starts.length() || starts.get((int) (f % starts.length())) != start
+                || start < oldestSequence();
+    }
+
+    @Override
+    public Window window(long from, long to) {
+        return null; // frames have to be decoded, use read()
+    }
+
+    @Override
+    void readStats(Stats stats) {
+        super.readStats(stats);
+        final long end = frames;
+        final AtomicLongArray starts = frameStarts;
+        if(starts.length() == 0) return;
+        final long oldest = oldestFrame(starts, end);
+        final long encodedBytes = writtenSequence() - (oldest < end ? starts.get((int) (oldest % starts.length())) : 0);
+        final long pcmBytes = (end - oldest) * BLOCK_SIZE;
+        // Capacity in PCM depends on how well the held audio compresses.
+        final float compression = encodedBytes > BLOCK_SIZE ? (float) pcmBytes / encodedBytes : DEFAULT_COMPRESSION;
+        final long capacity = (long) Math.min(stats.total * compression, starts.length() * (long) BLOCK_SIZE);
+        stats.overwriting |= (end - oldest >= starts.length()); // the frame index is full
+        stats.filled = pcmBytes + staged;
+        stats.total = stats.overwriting ? stats.filled : capacity;
+    }
+}
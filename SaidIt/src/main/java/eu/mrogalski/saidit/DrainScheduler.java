@@ -0,0 +1,126 @@
+package eu.mrogalski.saidit;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Decides when the audio thread drains AudioRecord next. Draining late drops audio once the AudioRecord buffer is full,
+ * draining early costs wakeups - schedulers trade one for the other.
+ *
+ * Keeps counters for tuning: wakeups per minute, the fullest the buffer was found and the number of overruns (drains
+ * that found the buffer full, so audio was probably dropped). Used only in the audio thread.
+ */
+abstract class DrainScheduler {
+
+    static final String FIXED = "fixed";
+    static final String HEURISTIC = "heuristic";
+    static final String ADAPTIVE = "adaptive";
+
+    private long startMillis = -1;
+    private long lastDrainMillis;
+    private long lastDelayMillis;
+    private long wakeups;
+    private long overruns;
+    private float maxOccupancy;
+
+    static DrainScheduler create(String name, long fixedDelayMillis) {
+        if(FIXED.equals(name)) return new Fixed(fixedDelayMillis);
+        if(ADAPTIVE.equals(name)) return new Adaptive();
+        return new Heuristic();
+    }
+
+    /**
+     * Called after AudioRecord has been read empty.
+     *
+     * @param drainedBytes bytes read since the previous drain
+     * @param bufferBytes  size of the AudioRecord buffer
+     * @param fillRate     bytes recorded per second
+     * @return delay of the next drain in milliseconds
+     */
+    final long drained(int drainedBytes, int bufferBytes, int fillRate) {
+        final long now = SystemClock.uptimeMillis();
+        final long bufferMillis = 1000L * bufferBytes / fillRate;
+        final float occupancy = (float) drainedBytes / bufferBytes;
+        final boolean overrun = drainedBytes >= bufferBytes;
+        long lateness = 0; // how much later than planned the drain ran (negative when it was brought forward)
+        if(startMillis < 0) {
+            startMillis = now;
+        } else {
+            ++wakeups;
+            maxOccupancy = Math.max(maxOccupancy, occupancy);
+            if(overrun) ++overruns;
+            lateness = (now - lastDrainMillis) - lastDelayMillis;
+        }
+        final long delay = nextDelay(bufferMillis, lateness, overrun);
+        lastDrainMillis = now;
+        lastDelayMillis = delay;
+        return delay;
+    }
+
+    abstract long nextDelay(long bufferMillis, long lateness, boolean overrun);
+
+    float getWakeupsPerMinute() {
+        final long millis = SystemClock.uptimeMillis() - startMillis;
+        return (startMillis < 0 || millis == 0) ? 0 : wakeups * 60000f / millis;
+    }
+
+    float getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    long getOverruns() {
+        return overruns;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %.1f wakeups/min, max occupancy %.0f%%, %d overruns",
+                getClass().getSimpleName(), getWakeupsPerMinute(), maxOccupancy * 100, overruns);
+    }
+
+    /**
+     * Drains at a constant interval, capped by the buffer length.
+     */
+    static class Fixed extends DrainScheduler {
+        private final long delayMillis;
+
+        Fixed(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        long nextDelay(long bufferMillis, long lateness, boolean overrun) {
+            return Math.min(delayMillis, bufferMillis * 9 / 10);
+        }
+    }
+
+    /**
+     * Drains one second before the buffer fills up, but not earlier than at half the buffer and no later than at 90%.
+     */
+    static class Heuristic extends DrainScheduler {
+        @Override
+        long nextDelay(long bufferMillis, long lateness, boolean overrun) {
+            long delay = bufferMillis - 1000;
+            delay = Math.max(delay, bufferMillis / 2);
+            delay = Math.min(delay, bufferMillis * 9 / 10);
+            return delay;
+        }
+    }
+
+    /**
+     * Lets the buffer fill up as far as the observed wakeup lateness allows. The safety margin follows the worst recent
+     * lateness and doubles after every overrun, then slowly shrinks while drains are on time.
+     */
+    static class Adaptive extends DrainScheduler {
+        private static final long MIN_MARGIN_MILLIS = 100;
+        private long marginMillis = 1000;
+
+        @Override
+        long nextDelay(long bufferMillis, long lateness, boolean overrun) {
+            marginMillis = Math.max(overrun ? marginMillis * 2 : marginMillis * 9 / 10, 2 * lateness);
+            marginMillis = Math.min(Math.max(marginMillis, MIN_MARGIN_MILLIS), bufferMillis * 9 / 10);
+            return Math.max(bufferMillis - marginMillis, bufferMillis / 10);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import simplesound.pcm.LosslessPcmCodec;
+
+/**
+ * History spilled into a preallocated file in app storage, so that it survives the death of the process and can reach
+ * much further back than the memory. PCM is collected into blocks of {@link CompressedAudioMemory#BLOCK_SAMPLES},
+ * encoded with {@link LosslessPcmCodec} and appended to a rolling log of frames. Every frame in the log is preceded
+ * by the CRC-32 of its encoded bytes.
+ * <p>
+ * The file holds a header (format and the range of frames held), the frame index and the log. Frame {@code f} holds
+ * PCM positions {@code [f * BLOCK_SIZE, (f + 1) * BLOCK_SIZE)}, its slot in the index is {@code f % frameCapacity}
+ * and the slot holds the log sequence where the frame starts; sequence {@code s} is kept at {@code s % logCapacity}
+ * of the log. Frames older than {@code frameCapacity} are dropped, so the spill keeps a fixed span of time; the log is
+ * sized for the usual compression and drops more when audio doesn't compress that well.
+ * <p>
+ * Positions count PCM bytes ever spilled, across restarts of the process. The header is rewritten after every append
+ * (and before, when old frames are about to be overwritten), so whatever the header claims is in the file. The
+ * newest partial block is kept only in memory.
+ * <p>
+ * That holds as long as the process dies but the system doesn't: writes are not synced, so after a power cut the
+ * header may claim frames whose log bytes never made it to storage, or frames that newer writes overwrote. The file
+ * is synced about every {@code SYNC_SECONDS} and the header records the frames synced last. Recovery drops frames
+ * after those, and the oldest ones, whose checksums don't match.
+ * <p>
+ * Next to the header there is a table of up to {@code MAX_SEGMENTS} time segments (see {@link TimeIndex}) in spill
+ * positions, kept the same way, so that recovered history can still be found by the time it was captured.
+ * <p>
+ * Used only in the export thread.
+ */
+class HistorySpill implements Closeable {
+    static final String TAG = HistorySpill.class.getSimpleName();
+
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC = 0x53484345; // "ECHS"
+    private static final int VERSION = 4;
+    private static final int BLOCK_SAMPLES = CompressedAudioMemory.BLOCK_SAMPLES;
+    private static final int BLOCK_SIZE = CompressedAudioMemory.BLOCK_SIZE;
+    private static final int EXPECTED_COMPRESSION = 2; // sizes the log
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_FRAME_SIZE = CRC_SIZE + LosslessPcmCodec.maxEncodedSize(BLOCK_SAMPLES);
+    private static final int SYNC_SECONDS = 30;
+    private static final int SEGMENTS_OFFSET = 1024;
+    private static final int SEGMENT_SIZE = 24; // position, elapsed realtime and wall clock time
+    private static final int MAX_SEGMENTS = (HEADER_SIZE - SEGMENTS_OFFSET) / SEGMENT_SIZE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int frameCapacity;
+    private final long logCapacity;
+    private final int syncFrames;
+    private final long[] frameStarts; // copy of the index
+    private final ByteBuffer header = ByteBuffer.allocate(72).order(ByteOrder.LITTLE_ENDIAN);
+    private long startFrame;
+    private long endFrame;
+    private long logEnd; // log sequence after the last frame
+    private long syncedFrame; // frames before it were synced to storage
+    private final CRC32 crc = new CRC32();
+    private final long[] segments = new long[3 * MAX_SEGMENTS]; // copy of the segment table
+    private long startSegment;
+    private long endSegment;
+    private final ByteBuffer segmentEntry = ByteBuffer.allocate(SEGMENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // used by append
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int staged = 0;
+    private final LosslessPcmCodec encoder = new LosslessPcmCodec();
+    private byte[] batch = new byte[MAX_FRAME_SIZE * 16]; // frames encoded by one append, back to back
+    private final ByteBuffer indexEntries = ByteBuffer.allocate(8 * 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    // used by read
+    private final LosslessPcmCodec decoder = new LosslessPcmCodec();
+    private final byte[] frame = new byte[MAX_FRAME_SIZE];
+    private final byte[] pcm = new byte[BLOCK_SIZE];
+
+    /**
+     * Opens the spill file, recovering the history it holds if it was written with the same format. Otherwise the file
+     * is reset.
+     *
+     * @param capacity PCM bytes to keep, rounded up to whole blocks
+     */
+    HistorySpill(File path, long capacity, int sampleRate) throws IOException {
+        this.frameCapacity = frameCapacity(capacity);
+        this.logCapacity = logCapacity(frameCapacity);
+        this.syncFrames = Math.max(1, SYNC_SECONDS * sampleRate / BLOCK_SAMPLES);
+        this.frameStarts = new long[frameCapacity];
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        try {
+            if(!recover(sampleRate)) {
+                startFrame = endFrame = logEnd = syncedFrame = 0;
+                startSegment = endSegment = 0;
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putInt(frameCapacity).putLong(logCapacity);
+                writeHeader();
+            }
+            file.setLength(getLogOffset() + logCapacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private long getLogOffset() {
+        return HEADER_SIZE + 8L * frameCapacity;
+    }
+
+    private boolean recover(int sampleRate) throws IOException {
+        if(channel.size() < HEADER_SIZE) return false;
+        header.clear();
+        readFully(header, 0);
+        if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return false;
+        if(header.getInt(8) != sampleRate || header.getInt(12) != frameCapacity || header.getLong(16) != logCapacity) {
+            Log.d(TAG, "Spill format changed - dropping spilled history");
+            return false;
+        }
+        startFrame = header.getLong(24);
+        endFrame = header.getLong(32);
+        logEnd = header.getLong(40);
+        syncedFrame = header.getLong(64);
+        if(startFrame < 0 || endFrame < startFrame || endFrame - startFrame > frameCapacity) return false;
+
+        final ByteBuffer index = ByteBuffer.allocate(8 * frameCapacity).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(index, HEADER_SIZE);
+        index.asLongBuffer().get(frameStarts);
+        // a torn header or index means the history can't be trusted
+        long previous = endFrame > startFrame ? frameStarts[slot(startFrame)] : logEnd;
+        if(logEnd - previous > logCapacity) return false;
+        for(long f = startFrame + 1; f <= endFrame; ++f) {
+            final long next = f < endFrame ? frameStarts[slot(f)] : logEnd;
+            if(next - previous <= CRC_SIZE || next - previous > MAX_FRAME_SIZE) return false;
+            previous = next;
+        }
+        if(!recoverSegments()) {
+            Log.w(TAG, "Spilled history has no valid times");
+            startSegment = endSegment = 0;
+        }
+        dropCorruptedFrames();
+        Log.d(TAG, "Recovered " + (endFrame - startFrame) + " frames and " + (endSegment - startSegment)
+                + " time segments of spilled history");
+        return true;
+    }
+
+    /**
+     * Drops frames that didn't make it to storage intact: the newest ones, from the first bad one after the frames
+     * synced last, and the oldest ones, which writes after the header may have overwritten.
+     */
+    private void dropCorruptedFrames() throws IOException {
+        final long claimedStart = startFrame;
+        final long claimedEnd = endFrame;
+        for(long f = Math.max(startFrame, Math.min(syncedFrame, endFrame)); f < endFrame; ++f) {
+            if(readFrame(f) < 0) {
+                logEnd = frameStarts[slot(f)];
+                endFrame = f;
+            }
+        }
+        while(startFrame < endFrame && readFrame(startFrame) < 0) {
+            ++startFrame;
+        }
+        syncedFrame = Math.min(syncedFrame, endFrame);
+        if(startFrame != claimedStart || endFrame != claimedEnd) {
+            Log.w(TAG, "Dropping " + (startFrame - claimedStart) + " oldest and " + (claimedEnd - endFrame)
+                    + " newest frames of spilled history, which were not stored intact");
+            writeHeader();
+        }
+    }
+
+    private boolean recoverSegments() throws IOException {
+        startSegment = header.getLong(48);
+        endSegment = header.getLong(56);
+        if(startSegment < 0 || endSegment < startSegment || endSegment - startSegment > MAX_SEGMENTS) return false;
+        final ByteBuffer table = ByteBuffer.allocate(SEGMENT_SIZE * MAX_SEGMENTS).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(table, SEGMENTS_OFFSET);
+        table.asLongBuffer().get(segments);
+        for(long s = startSegment + 1; s < endSegment; ++s) {
+            if(segments[3 * segmentSlot(s)] <= segments[3 * segmentSlot(s - 1)]) return false;
+        }
+        return true;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new IOException("Spill file is shorter than its header claims");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // the whole header fits in one sector, so it is written at once
+        header.putLong(24, startFrame);
+        header.putLong(32, endFrame);
+        header.putLong(40, logEnd);
+        header.putLong(48, startSegment);
+        header.putLong(56, endSegment);
+        header.putLong(64, syncedFrame);
+        header.clear();
+        writeFully(header, 0);
+    }
+
+    private int slot(long frame) {
+        return (int) (frame % frameCapacity);
+    }
+
+    private int segmentSlot(long segment) {
+        return (int) (segment % MAX_SEGMENTS);
+    }
+
+    long getStart() {
+        return startFrame * BLOCK_SIZE;
+    }
+
+    long getEnd() {
+        return endFrame * BLOCK_SIZE + staged;
+    }
+
+    private static int frameCapacity(long capacity) {
+        return (int) Math.max(1, (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * @return size of the file of a spill opened with {@code capacity}
+     */
+    static long fileSize(long capacity) {
+        final int frames = frameCapacity(capacity);
+        return HEADER_SIZE + 8L * frames + logCapacity(frames);
+    }
+
+    private static long logCapacity(int frameCapacity) {
+        return Math.max((long) frameCapacity * BLOCK_SIZE / EXPECTED_COMPRESSION, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @return PCM bytes kept by a spill opened with {@code capacity}
+     */
+    static long roundCapacity(long capacity) {
+        return (long) frameCapacity(capacity) * BLOCK_SIZE;
+    }
+
+    /**
+     * @return PCM bytes the spill keeps at most
+     */
+    long getCapacity() {
+        return (long) frameCapacity * BLOCK_SIZE;
+    }
+
+    /**
+     * Appends PCM at the end of the spilled history, dropping the oldest history that no longer fits.
+     */
+    void append(byte[] array, int offset, int count) throws IOException {
+        final long firstFrame = endFrame;
+        final long batchStart = logEnd;
+        long sequence = logEnd;
+        int batched = 0;
+        while(count > 0) {
+            final int length = Math.min(count, BLOCK_SIZE - staged);
+            System.arraycopy(array, offset, block, staged, length);
+            staged += length;
+            offset += length;
+            count -= length;
+            if(staged < BLOCK_SIZE) break;
+
+            if(batch.length - batched < MAX_FRAME_SIZE) {
+                batch = Arrays.copyOf(batch, batch.length * 2);
+            }
+            // only slots of frames that are dropped below get overwritten
+            frameStarts[slot(endFrame)] = sequence;
+            final int encoded = encoder.encode(block, 0, BLOCK_SAMPLES, batch, batched + CRC_SIZE);
+            crc.reset();
+            crc.update(batch, batched + CRC_SIZE, encoded);
+            putInt(batch, batched, (int) crc.getValue());
+            batched += CRC_SIZE + encoded;
+            sequence += CRC_SIZE + encoded;
+            ++endFrame;
+            staged = 0;
+        }
+        final long newEnd = endFrame;
+        if(newEnd == firstFrame) return;
+
+        // Frames that no longer fit, in time or in the log, are dropped oldest first.
+        long newStart = Math.max(startFrame, newEnd - frameCapacity);
+        while(frameStarts[slot(newStart)] < sequence - logCapacity) {
+            ++newStart;
+        }
+        final long kept = Math.max(firstFrame, newStart);
+        if(newStart != startFrame) {
+            // The header must stop claiming frames before their index slots or log bytes are overwritten.
+            startFrame = newStart;
+            endFrame = kept;
+            writeHeader();
+        }
+        final long keptStart = frameStarts[slot(kept)];
+        writeLog(keptStart, batch, (int) (keptStart - batchStart), (int) (sequence - keptStart));
+        writeIndex(kept, newEnd);
+        endFrame = newEnd;
+        logEnd = sequence;
+        if(newEnd - syncedFrame >= syncFrames) {
+            sync();
+        } else {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Syncs the file to storage and then records that all frames were synced. The header with the record is synced
+     * with the next sync; until then the header on storage claims fewer frames as synced.
+     */
+    private void sync() throws IOException {
+        channel.force(false);
+        syncedFrame = endFrame;
+        writeHeader();
+    }
+
+    private void writeLog(long sequence, byte[] data, int offset, int length) throws IOException {
+        for(int written = 0; written < length; ) {
+            final long position = (sequence + written) % logCapacity;
+            final int count = (int) Math.min(length - written, logCapacity - position);
+            writeFully(ByteBuffer.wrap(data, offset + written, count), getLogOffset() + position);
+            written += count;
+        }
+    }
+
+    private void writeIndex(long from, long to) throws IOException {
+        for(long f = from; f < to; ) {
+            indexEntries.clear();
+            final long first = f;
+            // slots of consecutive frames are consecutive until the index wraps
+            while(f < to && indexEntries.hasRemaining() && (f == first || slot(f) != 0)) {
+                indexEntries.putLong(frameStarts[slot(f)]);
+                ++f;
+            }
+            indexEntries.flip();
+            writeFully(indexEntries, HEADER_SIZE + 8L * slot(first));
+        }
+    }
+
+    /**
+     * Records that capture drifted at the position: the spilled audio from there on was captured at the times given,
+     * until the next segment. Segments are added in the order of positions; one at the same position replaces the
+     * previous one. The oldest segments are dropped with the history they time, or when the table is full.
+     */
+    void addSegment(long position, long elapsedMillis, long wallMillis) throws IOException {
+        long start = startSegment;
+        long end = endSegment;
+        while(end > start && segments[3 * segmentSlot(end - 1)] >= position) --end;
+        while(end > start && (end - start >= MAX_SEGMENTS
+                || (start + 1 < end ? segments[3 * segmentSlot(start + 1)] : position) <= getStart())) {
+            ++start;
+        }
+        if(start != startSegment || end != endSegment) {
+            // The header must stop claiming the slot before it is overwritten.
+            startSegment = start;
+            endSegment = end;
+            writeHeader();
+        }
+        final int slot = segmentSlot(end);
+        segments[3 * slot] = position;
+        segments[3 * slot + 1] = elapsedMillis;
+        segments[3 * slot + 2] = wallMillis;
+        segmentEntry.clear();
+        segmentEntry.putLong(position).putLong(elapsedMillis).putLong(wallMillis).flip();
+        writeFully(segmentEntry, SEGMENTS_OFFSET + (long) SEGMENT_SIZE * slot);
+        endSegment = end + 1;
+        writeHeader();
+    }
+
+    /**
+     * @return times of the spilled history, in spill positions
+     */
+    TimeIndex getTimes(int fillRate) {
+        TimeIndex times = new TimeIndex(fillRate);
+        for(long s = startSegment; s < endSegment; ++s) {
+            final int slot = segmentSlot(s);
+            times = times.withSegment(segments[3 * slot], segments[3 * slot + 1], segments[3 * slot + 2], Long.MIN_VALUE);
+        }
+        return times;
+    }
+
+    /**
+     * Feeds spilled history between the positions to the reader, oldest first. Positions outside of the spilled
+     * history are left out, a {@link AudioMemory.PositionedConsumer} is told so.
+     */
+    void read(long from, long to, AudioMemory.Consumer reader) throws IOException {
+        long position = Math.max(from, getStart());
+        to = Math.min(to, getEnd());
+        if(position > from && position < to) {
+            AudioMemory.skipped(reader, position);
+        }
+        while(position < to) {
+            final long f = position / BLOCK_SIZE;
+            final int offset = (int) (position % BLOCK_SIZE);
+            final int count = (int) Math.min(BLOCK_SIZE, to - f * BLOCK_SIZE) - offset;
+            if(f == endFrame) {
+                // the newest audio is still being collected
+                reader.consume(block, offset, count);
+                break;
+            }
+            final int length = readFrame(f);
+            if(length < 0) {
+                throw new IOException("Corrupted frame " + f + " in history spill (checksum mismatch)");
+            }
+            try {
+                if(decoder.decode(frame, CRC_SIZE, length, pcm, 0) != BLOCK_SAMPLES) {
+                    throw new IOException("Corrupted frame " + f + " in history spill");
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException("Corrupted frame " + f + " in history spill", e);
+            }
+            reader.consume(pcm, offset, count);
+            position += count;
+        }
+    }
+
+    /**
+     * Reads frame {@code f} from the log into {@code frame}, with its checksum first.
+     *
+     * @return length of the encoded frame, or -1 if it doesn't match its checksum
+     */
+    private int readFrame(long f) throws IOException {
+        final long start = frameStarts[slot(f)];
+        final int length = (int) ((f + 1 < endFrame ? frameStarts[slot(f + 1)] : logEnd) - start);
+        final long logPosition = start % logCapacity;
+        final int untilEnd = (int) Math.min(length, logCapacity - logPosition);
+        readFully(ByteBuffer.wrap(frame, 0, untilEnd), getLogOffset() + logPosition);
+        readFully(ByteBuffer.wrap(frame, untilEnd, length - untilEnd), getLogOffset());
+        crc.reset();
+        crc.update(frame, CRC_SIZE, length - CRC_SIZE);
+        return getInt(frame, 0) == (int) crc.getValue() ? length - CRC_SIZE : -1;
+    }
+
+    private static void putInt(byte[] array, int offset, int value) {
+        for(int i = 0; i < 4; ++i) {
+            array[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static int getInt(byte[] array, int offset) {
+        int value = 0;
+        for(int i = 0; i < 4; ++i) {
+            value |= (array[offset + i] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -5,6 +5,16 @@ public class SaidIt {
     static final String PACKAGE_NAME = "eu.mrogalski.saidit";
     static final String AUDIO_MEMORY_ENABLED_KEY = "audio_memory_enabled";
     static final String AUDIO_MEMORY_SIZE_KEY = "audio_memory_size";
+    static final String AUDIO_MEMORY_MAPPED_KEY = "audio_memory_mapped";
+    static final String AUDIO_MEMORY_MAPPED_MAX_KEY = "audio_memory_mapped_max";
+    static final String AUDIO_MEMORY_COMPRESSED_KEY = "audio_memory_compressed";
+    static final String AUDIO_MEMORY_SKIP_SILENCE_KEY = "audio_memory_skip_silence";
+    static final String AUDIO_DRAIN_SCHEDULER_KEY = "audio_drain_scheduler";
+    static final String AUDIO_DRAIN_INTERVAL_KEY = "audio_drain_interval";
+    static final String AUDIO_CAPTURE_BLOCKING_KEY = "audio_capture_blocking";
+    static final String AUDIO_SPILL_MINUTES_KEY = "audio_spill_minutes";
+    static final String EXPORT_SPEECH_PADDING_KEY = "export_speech_padding";
+    static final String EXPORT_FILL_GAPS_KEY = "export_fill_gaps";
     static final String SAMPLE_RATE_KEY = "sample_rate";
     static final String SKU = "unlimited_history";
     static final String BASE64_KEY = "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAlD0FMFGp4AWzjW" +
@@ -30,6 +30,7 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -51,6 +52,7 @@ public class SaidItFragment extends Fragment {
 
     private static final String TAG = SaidItFragment.class.getSimpleName();
     private static final String YOUR_NOTIFICATION_CHANNEL_ID = "SaidItServiceChannel";
+    private static final int FILE_NOTIFICATION_ID = 43;
     private Button record_pause_button;
     private Button listenButton;
 
@@ -93,6 +95,9 @@ public class SaidItFragment extends Fragment {
         super.onStop();
         final Activity activity = getActivity();
         assert activity != null;
+        if (echo != null) {
+            echo.removeStateListener(serviceStateCallback);
+        }
         activity.unbindService(echoConnection);
         echo = null;
     }
@@ -109,16 +114,6 @@ public class SaidItFragment extends Fragment {
         }
     }
 
-    private Runnable updater = new Runnable() {
-        @Override
-        public void run() {
-            final View view = getView();
-            if (view == null) return;
-            if (echo == null) return;
-            echo.getState(serviceStateCallback);
-        }
-    };
-
     SaidItService echo;
     private ServiceConnection echoConnection = new ServiceConnection() {
 
@@ -128,11 +123,12 @@ public class SaidItFragment extends Fragment {
             Log.d(TAG, "onServiceConnected");
             SaidItService.BackgroundRecorderBinder typedBinder = (SaidItService.BackgroundRecorderBinder) binder;
             if (echo != null && echo == typedBinder.getService()) {
-                Log.d(TAG, "update loop already running, skipping");
+                Log.d(TAG, "already following the service state, skipping");
                 return;
             }
             echo = typedBinder.getService();
-            getView().postOnAnimation(updater);
+            // the service pushes its state as audio gets captured
+            echo.addStateListener(serviceStateCallback);
         }
 
         @Override
@@ -345,8 +341,6 @@ public class SaidItFragment extends Fragment {
                 rec_indicator.setText(resources.getQuantityText(R.plurals.recorded, timeFormatResult.count));
                 rec_time.setText(timeFormatResult.text);
             }
-
-            history_size.postOnAnimationDelayed(updater, 100);
         }
     };
 
@@ -423,13 +417,14 @@ public class SaidItFragment extends Fragment {
                                     //create alert dialog with exittext to name the file
                                     View dialogView = View.inflate(getActivity(), R.layout.dialog_save_recording, null);
                                     EditText fileName = dialogView.findViewById(R.id.recording_name);
+                                    CheckBox speechOnly = dialogView.findViewById(R.id.speech_only);
                                     new AlertDialog.Builder(getActivity())
                                         .setView(dialogView)
                                         .setPositiveButton("Save", new DialogInterface.OnClickListener() {
                                             @Override
                                             public void onClick(DialogInterface dialog, int which) {
                                                 if(fileName.getText().toString().length() > 0){
-                                                    echo.dumpRecording(seconds, new PromptFileReceiver(getActivity()),fileName.getText().toString());
+                                                    echo.dumpRecording(seconds, new PromptFileReceiver(getActivity()),fileName.getText().toString(), speechOnly.isChecked());
                                                 } else {
                                                     Toast.makeText(getActivity(), "Please enter a file name", Toast.LENGTH_SHORT).show();
                                                 }
@@ -485,6 +480,20 @@ public class SaidItFragment extends Fragment {
         return notificationBuilder.build();
     }
 
+    static void notifyProgress(Context context, File outFile, float written, float total) {
+        if (ActivityCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, YOUR_NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(context.getString(R.string.saving_recording))
+                .setContentText(outFile.getName())
+                .setSmallIcon(R.drawable.ic_stat_notify_recording)
+                .setProgress(Math.round(total), Math.round(written), false)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true);
+        NotificationManagerCompat.from(context).notify(FILE_NOTIFICATION_ID, notificationBuilder.build());
+    }
+
     static class NotifyFileReceiver implements SaidItService.WavFileReceiver {
 
         private Context context;
@@ -506,7 +515,12 @@ public class SaidItFragment extends Fragment {
                 // for ActivityCompat#requestPermissions for more details.
                 return;
             }
-            notificationManager.notify(43, buildNotificationForFile(context, file));
+            notificationManager.notify(FILE_NOTIFICATION_ID, buildNotificationForFile(context, file));
+        }
+
+        @Override
+        public void fileProgress(File file, float written, float total) {
+            notifyProgress(context, file, written, total);
         }
     }
 
@@ -520,10 +534,16 @@ public class SaidItFragment extends Fragment {
 
         @Override
         public void fileReady(final File file, float runtime) {
+            NotificationManagerCompat.from(activity).cancel(FILE_NOTIFICATION_ID);
             new RecordingDoneDialog()
                     .setFile(file)
                     .setRuntime(runtime)
                     .show(activity.getFragmentManager(), "Recording Done");
         }
+
+        @Override
+        public void fileProgress(File file, float written, float total) {
+            notifyProgress(activity, file, written, total);
+        }
     }
 }
@@ -22,6 +22,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
 import android.text.format.DateUtils;
@@ -29,8 +30,14 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
+import simplesound.dsp.VoiceActivityDetector;
 import simplesound.pcm.WavAudioFormat;
 import simplesound.pcm.WavFileWriter;
 import static eu.mrogalski.saidit.SaidIt.*;
@@ -39,18 +46,49 @@ public class SaidItService extends Service {
     static final String TAG = SaidItService.class.getSimpleName();
     private static final int FOREGROUND_NOTIFICATION_ID = 458;
     private static final String YOUR_NOTIFICATION_CHANNEL_ID = "SaidItServiceChannel";
+    // developer commands, taken only by debug builds - see runDebugCommand()
+    static final String ACTION_DEBUG_COMMAND = PACKAGE_NAME + ".action.DEBUG_COMMAND";
+    static final String EXTRA_DEBUG_COMMAND = "command";
 
     volatile int SAMPLE_RATE;
     volatile int FILL_RATE;
 
 
-    File wavFile;
     AudioRecord audioRecord; // used only in the audio thread
-    WavFileWriter wavFileWriter; // used only in the audio thread
-    final AudioMemory audioMemory = new AudioMemory(); // used only in the audio thread
+    AudioRecordClock audioClock; // used only by the thread that reads audioRecord
+    volatile Recording recording; // written only in the audio thread
+    BlockingCapture capture; // used only in the audio thread, null when the audio thread drains AudioRecord itself
+    volatile AudioMemory audioMemory = new AudioMemory(); // written only in the audio thread
+    // Held while writing audioMemory (and while replacing it) whenever that can happen outside of the audio thread.
+    final ReentrantLock memoryWriteLock = new ReentrantLock(true);
+    private AudioMemory switchingMemory; // used only in the audio thread, set while history is copied into it
+    private Runnable pendingMemoryConfiguration; // used only in the audio thread, run once the switch is done
+    Spill spill; // used only in the export thread, null when history isn't spilled to storage
+    volatile long spillStart = Long.MAX_VALUE; // memory position of the oldest spilled audio, written only in the export thread
+    volatile long spillCapacity = 0; // written only in the export thread
+
+    // Diagnostics of the capture pipeline, printed by dump()
+    final CaptureMetrics metrics = new CaptureMetrics();
+    final CaptureMetrics.Histogram readSizes = metrics.histogram("AudioRecord.read size", "B");
+    final CaptureMetrics.Histogram readMicros = metrics.histogram("AudioRecord.read time", "us");
+    final CaptureMetrics.Counter readErrors = metrics.counter("AudioRecord.read errors", "");
+    final CaptureMetrics.Histogram droppedMillis = metrics.histogram("dropped by AudioRecord", "ms");
+    final CaptureMetrics.Histogram drainIntervalMillis = metrics.histogram("drain interval", "ms");
+    final CaptureMetrics.Histogram fillMicros = metrics.histogram("AudioMemory.fill time", "us"); // without the reads
+    final CaptureMetrics.Histogram writeMicros = metrics.histogram("WavFileWriter.write time", "us");
+    final CaptureMetrics.Counter exportedBytes = metrics.counter("exported", "B");
+    final CaptureMetrics.Counter overwrittenBytes = metrics.counter("overwritten before export", "B");
+    final CaptureMetrics.Counter gapSilenceBytes = metrics.counter("silence in place of gaps", "B");
+    final CaptureMetrics.Histogram dumpMillis = metrics.histogram("dump time", "ms");
+    final CaptureMetrics.Histogram dumpThroughput = metrics.histogram("dump throughput", "kB/s");
+    final CaptureMetrics.Histogram recordingStartMillis = metrics.histogram("recording start", "ms");
+    final CaptureMetrics.Histogram recordingStopMillis = metrics.histogram("recording stop", "ms");
+    final CaptureMetrics.Counter recordingFailures = metrics.counter("recording failures", "");
 
     HandlerThread audioThread;
     Handler audioHandler; // used to post messages to audio thread
+    HandlerThread exportThread;
+    Handler exportHandler; // used to post file writes to export thread
 
     @Override
     public void onCreate() {
@@ -61,11 +99,16 @@ public class SaidItService extends Service {
         SAMPLE_RATE = preferences.getInt(SAMPLE_RATE_KEY, AudioTrack.getNativeOutputSampleRate (AudioManager.STREAM_MUSIC));
         Log.d(TAG, "Sample rate: " + SAMPLE_RATE);
         FILL_RATE = 2 * SAMPLE_RATE;
+        listeningEnabled = preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true);
 
         audioThread = new HandlerThread("audioThread", Thread.MAX_PRIORITY);
         audioThread.start();
         audioHandler = new Handler(audioThread.getLooper());
 
+        exportThread = new HandlerThread("exportThread", Process.THREAD_PRIORITY_BACKGROUND);
+        exportThread.start();
+        exportHandler = new Handler(exportThread.getLooper());
+
         if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
             innerStartListening();
         }
@@ -92,6 +135,7 @@ public class SaidItService extends Service {
     public void enableListening() {
         getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
                 .edit().putBoolean(AUDIO_MEMORY_ENABLED_KEY, true).commit();
+        listeningEnabled = true;
 
         innerStartListening();
     }
@@ -99,11 +143,14 @@ public class SaidItService extends Service {
     public void disableListening() {
         getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
                 .edit().putBoolean(AUDIO_MEMORY_ENABLED_KEY, false).commit();
+        listeningEnabled = false;
 
         innerStopListening();
     }
 
-    int state;
+    // AUDIO_MEMORY_ENABLED_KEY, kept here so that the capture path doesn't read preferences; written in the main thread
+    volatile boolean listeningEnabled;
+    volatile int state; // written in the main thread (and in the audio thread when AudioRecord fails)
 
     static final int STATE_READY = 0;
     static final int STATE_LISTENING = 1;
@@ -118,12 +165,18 @@ public class SaidItService extends Service {
                 return;
         }
         state = STATE_LISTENING;
+        publishState();
 
         Log.d(TAG, "Queueing: START LISTENING");
 
         startService(new Intent(this, this.getClass()));
 
-        final long memorySize = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getLong(AUDIO_MEMORY_SIZE_KEY, Runtime.getRuntime().maxMemory() / 4);
+        final Runnable memoryConfiguration = memoryConfiguration();
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        final String drainSchedulerName = preferences.getString(AUDIO_DRAIN_SCHEDULER_KEY, DrainScheduler.HEURISTIC);
+        final long drainInterval = preferences.getLong(AUDIO_DRAIN_INTERVAL_KEY, 1000);
+        final boolean blockingCapture = preferences.getBoolean(AUDIO_CAPTURE_BLOCKING_KEY, false);
+        final Runnable spillConfiguration = spillConfiguration();
 
         audioHandler.post(new Runnable() {
             @SuppressLint("MissingPermission")
@@ -144,15 +197,26 @@ public class SaidItService extends Service {
                     audioRecord.release();
                     audioRecord = null;
                     state = STATE_READY;
+                    publishState();
                     return;
                 }
 
-                Log.d(TAG, "Audio: STARTING AudioRecord");
-                audioMemory.allocate(memorySize);
+                audioClock = new AudioRecordClock(audioRecord, SAMPLE_RATE);
+
+                Log.d(TAG, "Audio: ALLOCATING MEMORY");
+                memoryWriteLock.lock();
+                try {
+                    memoryConfiguration.run();
+                } finally {
+                    memoryWriteLock.unlock();
+                }
+                exportHandler.post(spillConfiguration);
 
                 Log.d(TAG, "Audio: STARTING AudioRecord");
+                drainScheduler = DrainScheduler.create(drainSchedulerName, drainInterval);
+                drainedBytes = 0;
                 audioRecord.startRecording();
-                audioHandler.post(audioReader);
+                startCapture(blockingCapture);
             }
         });
 
@@ -168,6 +232,7 @@ public class SaidItService extends Service {
                 break;
         }
         state = STATE_READY;
+        publishState();
         Log.d(TAG, "Queueing: STOP LISTENING");
 
         stopForeground(true);
@@ -177,29 +242,104 @@ public class SaidItService extends Service {
             @Override
             public void run() {
                 Log.d(TAG, "Executing: STOP LISTENING");
+                Log.d(TAG, "Audio: " + (capture != null ? capture : drainScheduler));
+                stopCapture();
                 if(audioRecord != null)
                     audioRecord.release();
-                audioHandler.removeCallbacks(audioReader);
-                audioMemory.allocate(0);
+                audioRecord = null;
+                audioClock = null;
+                // Exports may still read the memory - free it after them, unless listening starts again meanwhile.
+                exportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeSpill();
+                        audioHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(audioRecord == null) {
+                                    audioMemory.allocate(0);
+                                }
+                            }
+                        });
+                    }
+                });
             }
         });
 
     }
 
-    public void dumpRecording(final float memorySeconds, final WavFileReceiver wavFileReceiver, String newFileName) {
+    public void dumpRecording(final float memorySeconds, final WavFileReceiver wavFileReceiver, final String newFileName) {
+        dumpRecording(memorySeconds, wavFileReceiver, newFileName, false);
+    }
+
+    /**
+     * Saves the last {@code memorySeconds} of history into a wav file. With {@code speechOnly} the history is scanned
+     * for speech first and only speech, with {@link #getSpeechPadding()} around it, is saved.
+     */
+    public void dumpRecording(final float memorySeconds, final WavFileReceiver wavFileReceiver, final String newFileName,
+                              final boolean speechOnly) {
         if(state != STATE_LISTENING) throw new IllegalStateException("Not listening!");
+        final Handler sourceHandler = new Handler();
+        final long padding = getSpeechPadding() * FILL_RATE / 1000;
+        final boolean fillGaps = !speechOnly && areGapsFilled(); // speech is saved without its timing anyway
+        final int sampleRate = SAMPLE_RATE; // of the history to save, should it change meanwhile
 
         audioHandler.post(new Runnable() {
             @Override
             public void run() {
                 flushAudioRecord();
-                int prependBytes = (int)(memorySeconds * FILL_RATE);
-                int bytesAvailable = audioMemory.countFilled();
+                // Only the range is taken here - the export thread writes it while capture goes on.
+                final AudioMemory memory = audioMemory;
+                final long end = memory.getEndPosition();
+                final long start = Math.max(getHistoryStart(memory), end - (long) (memorySeconds * FILL_RATE));
+                exportHandler.post(historyExport(memory, start, end, sampleRate, wavFileReceiver, newFileName,
+                        speechOnly, padding, fillGaps, sourceHandler));
+            }
+        });
 
-                int skipBytes = Math.max(0, bytesAvailable - prependBytes);
+    }
+
+    /**
+     * Saves the history captured between the wall clock times into a wav file. Gaps in capture are left out.
+     */
+    public void dumpRange(final long fromMillis, final long toMillis, final WavFileReceiver wavFileReceiver,
+                          final String newFileName) {
+        if(state != STATE_LISTENING) throw new IllegalStateException("Not listening!");
+        final Handler sourceHandler = new Handler();
+        final boolean fillGaps = areGapsFilled();
+        final int sampleRate = SAMPLE_RATE;
 
-                int useBytes = bytesAvailable - skipBytes;
-                long millis  = System.currentTimeMillis() - 1000 * useBytes / FILL_RATE;
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flushAudioRecord();
+                final AudioMemory memory = audioMemory;
+                final long end = Math.min(memory.getEndPosition(), memory.getPosition(toMillis));
+                final long start = Math.min(end, Math.max(getHistoryStart(memory), memory.getPosition(fromMillis)));
+                exportHandler.post(historyExport(memory, start, end, sampleRate, wavFileReceiver, newFileName, false,
+                        0, fillGaps, sourceHandler));
+            }
+        });
+    }
+
+    /**
+     * Creates a task that saves history between the memory positions into a new wav file. Must be run on the export
+     * thread.
+     */
+    private Runnable historyExport(final AudioMemory memory, final long start, final long end, final int sampleRate,
+                                   final WavFileReceiver receiver, final String newFileName,
+                                   final boolean speechOnly, final long padding, final boolean fillGaps,
+                                   final Handler sourceHandler) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final long startNanos = System.nanoTime();
+                final long millis = memory.getWallMillis(start);
+                final long gap = memory.getGapMillis(start, end);
+                if(gap > 0) {
+                    Log.w(TAG, "Saved history " + (fillGaps ? "keeps silence for " : "skips ") + gap
+                            + " ms when nothing was captured");
+                }
                 final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
                 final String dateTime = DateUtils.formatDateTime(SaidItService.this, millis, flags);
                 String filename = "Echo - " + dateTime + ".wav";
@@ -207,14 +347,7 @@ public class SaidItService extends Service {
                     filename = newFileName + ".wav";
                 }
 
-                File storageDir;
-                if(isExternalStorageWritable()){
-                    // Use public storage directory for Android 11+ (min SDK 30)
-                    storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
-                }else{
-                    storageDir = new File(getFilesDir(), "Echo");
-                }
-
+                final File storageDir = getStorageDir();
                 if(!storageDir.exists()){
                     storageDir.mkdir();
                 }
@@ -233,33 +366,168 @@ public class SaidItService extends Service {
                         showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
                     }
                 }
-                final WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
-                try (WavFileWriter writer = new WavFileWriter(format, file)) {
-                    try {
-                        audioMemory.read(skipBytes, new AudioMemory.Consumer() {
-                            @Override
-                            public int consume(byte[] array, int offset, int count) throws IOException {
-                                writer.write(array, offset, count);
-                                return 0;
-                            }
-                        });
-                    } catch (IOException e) {
-                        // Handle error during file writing
-                        showToast(getString(R.string.error_during_writing_history_into) + file.getAbsolutePath());
-                        Log.e(TAG, "Error during writing history into " + file.getAbsolutePath(), e);
-                    }
-                    if (wavFileReceiver != null) {
-                        wavFileReceiver.fileReady(file, writer.getTotalSampleBytesWritten() * getBytesToSeconds());
-                    }
+                final WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(sampleRate).build();
+                final WavFileWriter writer;
+                try {
+                    writer = new WavFileWriter(format, file);
                 } catch (IOException e) {
-                    // Handle error during file creation or closing writer
                     showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
                     Log.e(TAG, "Can't create file " + file.getAbsolutePath(), e);
+                    return;
+                }
+                try {
+                    if(speechOnly) {
+                        final long[] segments = findSpeech(memory, start, end, sampleRate, padding);
+                        long total = 0;
+                        for(int i = 0; i < segments.length; i += 2) {
+                            total += segments[i + 1] - segments[i];
+                        }
+                        if(total == 0) {
+                            showToast(getString(R.string.no_speech_in_history));
+                        }
+                        long done = 0;
+                        for(int i = 0; i < segments.length; i += 2) {
+                            exportRange(memory, segments[i], segments[i + 1], false, writer, file, receiver, sourceHandler, done, total);
+                            done += segments[i + 1] - segments[i];
+                        }
+                    } else {
+                        exportRange(memory, start, end, fillGaps, writer, file, receiver, sourceHandler, 0, end - start);
+                    }
+                } catch (IOException e) {
+                    showToast(getString(R.string.error_during_writing_history_into) + file.getAbsolutePath());
+                    Log.e(TAG, "Error during writing history into " + file.getAbsolutePath(), e);
                 }
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "CLOSING ERROR", e);
+                }
+                final long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+                dumpMillis.record(elapsedMillis);
+                dumpThroughput.record(writer.getTotalSampleBytesWritten() * 1000 / 1024 / Math.max(1, elapsedMillis));
+                notifyFileReady(receiver, sourceHandler, file, writer.getTotalSampleBytesWritten());
+            }
+        };
+    }
+
+    /**
+     * Position of the oldest audio in the memory or the spill. Audio thread only.
+     */
+    private long getHistoryStart(AudioMemory memory) {
+        return Math.min(memory.getStartPosition(), spillStart);
+    }
+
+    /**
+     * Copies history between the memory positions into the writer, in pieces, reporting progress to the receiver (if
+     * any). History the memory no longer holds is read from the spill. With {@code fillGaps} silence takes the place of
+     * audio that wasn't captured (a gap is written with the audio that follows it). Runs on the export thread.
+     */
+    private void exportRange(AudioMemory memory, long from, long to, boolean fillGaps, final WavFileWriter writer,
+                             File file, WavFileReceiver receiver, Handler sourceHandler,
+                             long progressDone, long progressTotal) throws IOException {
+        final AudioMemory.Consumer consumer = new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) throws IOException {
+                final long writeStart = System.nanoTime();
+                writer.write(array, offset, count);
+                writeMicros.record((System.nanoTime() - writeStart) / 1000);
+                return count;
+            }
+        };
+        for(long position = from; position < to; ) {
+            long pieceEnd = Math.min(to, position + AudioMemory.CHUNK_SIZE);
+            if(fillGaps) {
+                final long silence = memory.getGapMillisBefore(position) * FILL_RATE / 1000 & ~1;
+                if(silence > 0) {
+                    writer.writeSilence(silence);
+                    gapSilenceBytes.add(silence);
+                }
+                pieceEnd = memory.getNextGap(position + 1, pieceEnd);
+            }
+            final long offset = writer.getTotalSampleBytesWritten();
+            final long memoryStart = memory.getStartPosition();
+            if(position < memoryStart && isSpilled(memory)) {
+                pieceEnd = Math.min(pieceEnd, memoryStart);
+                spill.read(position, pieceEnd, consumer);
+            } else {
+                final AudioMemory.Window window = memory.window(position, pieceEnd);
+                if(window != null) {
+                    final long writeStart = System.nanoTime();
+                    writer.write(window.buffers);
+                    writeMicros.record((System.nanoTime() - writeStart) / 1000);
+                    final int overwritten = window.overwritten();
+                    if(overwritten > 0) {
+                        Log.w(TAG, "History overwritten during export, silencing " + overwritten + " B");
+                        writer.overwriteWithSilence(offset, overwritten);
+                        overwrittenBytes.add(overwritten);
+                    }
+                } else {
+                    memory.read(position, pieceEnd, consumer);
+                }
+            }
+            exportedBytes.add(writer.getTotalSampleBytesWritten() - offset);
+            position = pieceEnd;
+            if(receiver != null) {
+                notifyProgress(receiver, sourceHandler, file, progressDone + position - from, progressTotal);
+            }
+        }
+    }
+
+    /**
+     * Scans a range of history for speech.
+     *
+     * @return start and end positions of the speech segments, in order
+     */
+    private long[] findSpeech(AudioMemory memory, long from, long to, int sampleRate, long padding) throws IOException {
+        final SpeechFinder finder = new SpeechFinder(sampleRate, from, to, padding);
+        for(long position = from; position < to; ) {
+            long pieceEnd = Math.min(to, position + AudioMemory.CHUNK_SIZE);
+            final long memoryStart = memory.getStartPosition();
+            // History that is not held is left out and the readers tell the finder where. The spill may also end
+            // short of the memory start, so the finder is moved to each piece first.
+            finder.skipTo(position);
+            if(position < memoryStart && isSpilled(memory)) {
+                pieceEnd = Math.min(pieceEnd, memoryStart);
+                spill.read(position, pieceEnd, finder);
+            } else {
+                memory.read(position, pieceEnd, finder);
+            }
+            position = pieceEnd;
+        }
+        return finder.finish();
+    }
+
+    private void notifyProgress(final WavFileReceiver receiver, Handler handler, final File file, long written, long total) {
+        final float bytesToSeconds = getBytesToSeconds();
+        final float writtenSeconds = written * bytesToSeconds;
+        final float totalSeconds = total * bytesToSeconds;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                receiver.fileProgress(file, writtenSeconds, totalSeconds);
+            }
+        });
+    }
+
+    private void notifyFileReady(final WavFileReceiver receiver, Handler handler, final File file, long bytes) {
+        if(receiver == null) return;
+        final float runtime = bytes * getBytesToSeconds();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                receiver.fileReady(file, runtime);
             }
         });
+    }
 
+    private File getStorageDir() {
+        if(isExternalStorageWritable()){
+            // Use public storage directory for Android 11+ (min SDK 30)
+            return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
+        }
+        return new File(getFilesDir(), "Echo");
     }
+
     private static boolean isExternalStorageWritable() {
         String state = Environment.getExternalStorageState();
         return Environment.MEDIA_MOUNTED.equals(state);
@@ -279,72 +547,353 @@ public class SaidItService extends Service {
                 return;
         }
         state = STATE_RECORDING;
+        publishState();
+        final long requestNanos = System.nanoTime();
+        final boolean fillGaps = areGapsFilled();
 
         audioHandler.post(new Runnable() {
             @Override
             public void run() {
                 flushAudioRecord();
-                int prependBytes = (int)(prependedMemorySeconds * FILL_RATE);
-                int bytesAvailable = audioMemory.countFilled();
+                final AudioMemory memory = audioMemory;
+                final long end = memory.getEndPosition();
+                final long start = Math.max(getHistoryStart(memory), end - (long) (prependedMemorySeconds * FILL_RATE));
+                final long millis = memory.getWallMillis(start);
+                recording = new Recording(memory, start, fillGaps);
+                updateSilenceDetector();
+                final Recording started = recording;
+                exportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.open(millis);
+                        recordingStartMillis.record((System.nanoTime() - requestNanos) / 1000000);
+                    }
+                });
+                exportHandler.post(recording.drain);
+            }
+        });
 
-                int skipBytes = Math.max(0, bytesAvailable - prependBytes);
+    }
 
-                int useBytes = bytesAvailable - skipBytes;
-                long millis  = System.currentTimeMillis() - 1000 * useBytes / FILL_RATE;
-                final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
-                final String dateTime = DateUtils.formatDateTime(SaidItService.this, millis, flags);
-                String filename = "Echo - " + dateTime + ".wav";
+    /**
+     * Recording into a wav file. The audio thread only captures into the audio memory and the export thread copies
+     * everything captured since the start of the recording from the memory into the file.
+     */
+    private class Recording {
+        long start; // memory position of the first recorded byte, used only in the audio thread
+
+        // used only in the export thread
+        private AudioMemory memory;
+        private long position; // next memory position to write
+        private File file;
+        private WavFileWriter writer;
+        private boolean failed = false;
+        private boolean closed = false; // a drain posted by the capture thread may still arrive
+        private final boolean fillGaps;
+
+        Recording(AudioMemory memory, long start, boolean fillGaps) {
+            this.memory = memory;
+            this.start = start;
+            this.position = start;
+            this.fillGaps = fillGaps;
+        }
+
+        final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                copyTo(memory.getEndPosition());
+            }
+        };
+
+        void open(long startMillis) {
+            final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
+            final String dateTime = DateUtils.formatDateTime(SaidItService.this, startMillis, flags);
+            String filename = "Echo - " + dateTime + ".wav";
+
+            final String storagePath = getStorageDir().getAbsolutePath();
 
-                File storageDir;
-                if(isExternalStorageWritable()){
-                    // Use public storage directory for Android 11+ (min SDK 30)
-                    storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
-                }else{
-                    storageDir = new File(getFilesDir(), "Echo");
+            String path = storagePath + "/" + filename;
+
+            file = new File(path);
+            try {
+                file.createNewFile();
+            } catch (IOException e) {
+                filename = filename.replace(':', '.');
+                path = storagePath + "/" + filename;
+                file = new File(path);
+            }
+            WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
+            try {
+                writer = new WavFileWriter(format, file);
+            } catch (IOException e) {
+                recordingFailures.increment();
+                final String errorMessage = getString(R.string.cant_create_file) + path;
+                showToast(errorMessage);
+                Log.e(TAG, errorMessage, e);
+            }
+        }
+
+        void copyTo(long end) {
+            if(writer == null || failed || closed || end <= position) return;
+            try {
+                exportRange(memory, position, end, fillGaps, writer, file, null, null, 0, 0);
+                position = end;
+            } catch (IOException e) {
+                failed = true;
+                recordingFailures.increment();
+                final String errorMessage = getString(R.string.error_during_recording_into) + file.getName();
+                showToast(errorMessage);
+                Log.e(TAG, errorMessage, e);
+                close();
+                stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this), "");
+            }
+        }
+
+        /**
+         * Continues with the memory that replaced the current one. Both hold the same newest audio, so positions only
+         * shift by {@code offset}.
+         */
+        void switchMemory(AudioMemory replacement, long offset) {
+            copyTo(memory.getEndPosition());
+            memory = replacement;
+            position += offset;
+        }
+
+        void finish(long end, WavFileReceiver wavFileReceiver, Handler sourceHandler) {
+            copyTo(end);
+            if(writer == null) return;
+            close();
+            notifyFileReady(wavFileReceiver, sourceHandler, file, writer.getTotalSampleBytesWritten());
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e(TAG, "CLOSING ERROR", e);
+            }
+        }
+    }
+
+    /**
+     * Copies history from the memory into a {@link HistorySpill} as it is captured, about once a second, so that it
+     * survives the death of the process. The spill keeps it compressed and can reach hours further back than the
+     * memory; exports read from it whatever the memory no longer holds. Spill positions go on where the previous
+     * process left them: memory position {@code p} is spill position {@code p + base}, and history recovered from
+     * storage lies before the memory. The times of the spilled history are spilled with it and merged into the
+     * memory's times when it is recovered. Used only in the export thread.
+     */
+    private class Spill {
+        private static final int APPEND_MILLIS = 1000;
+
+        final HistorySpill file;
+        private AudioMemory memory;
+        private long position; // next memory position to spill
+        private long base;
+        private boolean failed = false;
+        private boolean timed = false; // the spill has the time of the audio at position
+
+        private final AudioMemory.Consumer appender = new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) throws IOException {
+                file.append(array, offset, count);
+                return count;
+            }
+        };
+
+        Spill(HistorySpill file, AudioMemory memory) {
+            this.file = file;
+            this.memory = memory;
+            this.position = memory.getEndPosition();
+            this.base = file.getEnd() - position;
+            spillStart = getStart();
+            spillCapacity = file.getCapacity();
+            // Elapsed realtime starts over when the phone restarts - history from before is timed by the wall clock.
+            final long bootWallMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+            final TimeIndex times = file.getTimes(FILL_RATE).onBoot(bootWallMillis).shifted(-base);
+            final long start = getStart();
+            audioHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    memoryWriteLock.lock();
+                    try {
+                        if(audioMemory == memory) {
+                            memory.keepTimes(start, times);
+                        } else {
+                            Log.w(TAG, "Memory replaced before spilled history was timed");
+                        }
+                    } finally {
+                        memoryWriteLock.unlock();
+                    }
                 }
-                final String storagePath = storageDir.getAbsolutePath();
+            });
+        }
 
-                String path = storagePath + "/" + filename;
+        void drain() {
+            final long end = memory.getEndPosition();
+            if(end - position >= (long) FILL_RATE * APPEND_MILLIS / 1000) {
+                copyTo(end);
+            }
+        }
 
-                wavFile = new File(path);
-                try {
-                    wavFile.createNewFile();
-                } catch (IOException e) {
-                    filename = filename.replace(':', '.');
-                    path = storagePath + "/" + filename;
-                    wavFile = new File(path);
+        void copyTo(long end) {
+            if(failed || end <= position) return;
+            try {
+                final long spilled = file.getEnd();
+                memory.read(position, end, appender);
+                // Audio the writer overtook before it was spilled is dropped - the spill stays continuous.
+                final long lost = end - position - (file.getEnd() - spilled);
+                if(lost > 0) {
+                    Log.w(TAG, "History overwritten before it was spilled, dropping " + lost + " B");
+                    base -= lost;
+                    timed = false;
                 }
-                WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
+                spillTimes(end - (file.getEnd() - spilled), end);
+                position = end;
+            } catch (IOException e) {
+                failed = true;
+                Log.e(TAG, "Can't spill history", e);
+            }
+            spillStart = getStart();
+        }
+
+        /**
+         * Spills the times of the audio between the memory positions, which was just spilled. The writer overtakes the
+         * spill at the oldest audio, so whatever was lost lies before {@code from}.
+         */
+        private void spillTimes(long from, long end) throws IOException {
+            final TimeIndex times = memory.getTimes();
+            long segment = timed ? times.nextSegment(from, end) : from;
+            while(segment < end) {
+                file.addSegment(segment + base, times.elapsedAt(segment), times.wallAt(segment));
+                segment = times.nextSegment(segment + 1, end);
+            }
+            timed |= from < end;
+        }
+
+        /**
+         * Memory position of the oldest spilled audio.
+         */
+        long getStart() {
+            return file.getStart() - base;
+        }
+
+        boolean holds(AudioMemory memory) {
+            return !failed && this.memory == memory;
+        }
+
+        void read(long from, long to, AudioMemory.Consumer reader) throws IOException {
+            file.read(from + base, to + base, reader);
+        }
+
+        /**
+         * Continues with the memory that replaced the current one, like {@link Recording#switchMemory}.
+         */
+        void switchMemory(AudioMemory replacement, long offset) {
+            copyTo(memory.getEndPosition());
+            memory = replacement;
+            position += offset;
+            base -= offset;
+            spillStart = getStart();
+        }
+
+        void close() {
+            copyTo(memory.getEndPosition());
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "CLOSING ERROR", e);
+            }
+        }
+    }
+
+    final Runnable spillDrain = new Runnable() {
+        @Override
+        public void run() {
+            if(spill != null) {
+                spill.drain();
+            }
+        }
+    };
+
+    private boolean isSpilled(AudioMemory memory) {
+        return spill != null && spill.holds(memory);
+    }
+
+    /**
+     * Creates a task that opens, reopens or closes the spill according to the preferences. Must be run on the export
+     * thread.
+     */
+    private Runnable spillConfiguration() {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        final int minutes = preferences.getInt(AUDIO_SPILL_MINUTES_KEY, 0);
+        final long capacity = 60L * minutes * FILL_RATE;
+        final int sampleRate = SAMPLE_RATE;
+        return new Runnable() {
+            @Override
+            public void run() {
+                if(spill != null && spill.file.getCapacity() == HistorySpill.roundCapacity(capacity)) return;
+                closeSpill();
+                if(capacity == 0) return;
                 try {
-                    wavFileWriter = new WavFileWriter(format, wavFile);
+                    spill = new Spill(new HistorySpill(getSpillFile(), capacity, sampleRate), audioMemory);
                 } catch (IOException e) {
-                    final String errorMessage = getString(R.string.cant_create_file) + path;
-                    Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
-                    Log.e(TAG, errorMessage, e);
-                    return;
+                    Log.e(TAG, "Can't open history spill", e);
                 }
+            }
+        };
+    }
 
-                final String finalPath = path;
+    private void closeSpill() {
+        if(spill == null) return;
+        spill.close();
+        spill = null;
+        spillStart = Long.MAX_VALUE;
+        spillCapacity = 0;
+    }
 
-                if(skipBytes < bytesAvailable) {
-                    try {
-                        audioMemory.read(skipBytes, new AudioMemory.Consumer() {
-                            @Override
-                            public int consume(byte[] array, int offset, int count) throws IOException {
-                                wavFileWriter.write(array, offset, count);
-                                return 0;
-                            }
-                        });
-                    } catch (IOException e) {
-                        final String errorMessage = getString(R.string.error_during_writing_history_into) + finalPath;
-                        Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
-                        Log.e(TAG, errorMessage, e);
-                        stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this), "");
-                    }
+    private File getSpillFile() {
+        return new File(getFilesDir(), "history.spill");
+    }
+
+    public int getSpillMinutes() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getInt(AUDIO_SPILL_MINUTES_KEY, 0);
+    }
+
+    /**
+     * Keeps the last {@code minutes} of history compressed in a file in app storage as well, so that it can still be
+     * saved after the app is killed or the phone restarts. Zero turns spilling off and deletes the file.
+     */
+    public void setSpillMinutes(final int minutes) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit().putInt(AUDIO_SPILL_MINUTES_KEY, minutes).commit();
+
+        final Runnable spillConfiguration = spillConfiguration();
+        final boolean listening = state != STATE_READY; // otherwise listening opens the spill
+        exportHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(listening) {
+                    spillConfiguration.run();
+                }
+                if(minutes == 0) {
+                    getSpillFile().delete();
                 }
             }
         });
+    }
+
+    public boolean areGapsFilled() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(EXPORT_FILL_GAPS_KEY, false);
+    }
 
+    /**
+     * With {@code fill}, saved audio keeps silence in place of the audio that wasn't captured (AudioRecord dropped it
+     * or failed), so that it stays in time with the clock. Otherwise gaps are left out. Takes effect for new saves and
+     * recordings.
+     */
+    public void setGapsFilled(boolean fill) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit().putBoolean(EXPORT_FILL_GAPS_KEY, fill).commit();
     }
 
     public long getMemorySize() {
@@ -356,13 +905,248 @@ public class SaidItService extends Service {
         preferences.edit().putLong(AUDIO_MEMORY_SIZE_KEY, memorySize).commit();
 
         if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
-            audioHandler.post(new Runnable() {
+            audioHandler.post(memoryConfiguration());
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_MEMORY_MAPPED_KEY, false);
+    }
+
+    /**
+     * Switches between keeping history on the Java heap and in a memory-mapped file in app storage.
+     */
+    public void setMemoryMapped(final boolean mapped) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(AUDIO_MEMORY_MAPPED_KEY, mapped).commit();
+
+        if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
+            audioHandler.post(memoryConfiguration());
+        }
+    }
+
+    public boolean isMemoryCompressed() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+    }
+
+    /**
+     * Milliseconds of audio kept before and after speech by speech-only saves.
+     */
+    public long getSpeechPadding() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getLong(EXPORT_SPEECH_PADDING_KEY, 500);
+    }
+
+    public void setSpeechPadding(long millis) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit().putLong(EXPORT_SPEECH_PADDING_KEY, millis).commit();
+    }
+
+    public boolean isSilenceSkipped() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_MEMORY_SKIP_SILENCE_KEY, false);
+    }
+
+    public void setMemoryCompressed(final boolean compressed) {
+        setMemoryCompressed(compressed, false);
+    }
+
+    /**
+     * Switches between keeping raw PCM and losslessly compressed history. Skipping silence keeps compressed history
+     * where stretches without speech are replaced by short markers. Current history is kept.
+     */
+    public void setMemoryCompressed(final boolean compressed, final boolean skipSilence) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit()
+                .putBoolean(AUDIO_MEMORY_COMPRESSED_KEY, compressed)
+                .putBoolean(AUDIO_MEMORY_SKIP_SILENCE_KEY, skipSilence)
+                .commit();
+
+        if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
+            audioHandler.post(memoryConfiguration());
+        }
+    }
+
+    // History captured while the export thread copies it into a new memory is copied again, up to this many times,
+    // so that little is left for the audio thread.
+    private static final int MEMORY_SWITCH_PASSES = 3;
+
+    /**
+     * Creates a task that brings audioMemory in line with the preferences. Must be run on the audio thread. When the
+     * memory type changes, history is moved to the new memory in the export thread and the memory is replaced later.
+     */
+    private Runnable memoryConfiguration() {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        final long memorySize = preferences.getLong(AUDIO_MEMORY_SIZE_KEY, Runtime.getRuntime().maxMemory() / 4);
+        final boolean mapped = preferences.getBoolean(AUDIO_MEMORY_MAPPED_KEY, false);
+        final boolean skipSilence = preferences.getBoolean(AUDIO_MEMORY_SKIP_SILENCE_KEY, false);
+        final boolean compressed = skipSilence || preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false);
+        final int sampleRate = SAMPLE_RATE;
+        return new Runnable() {
+            @Override
+            public void run() {
+                memoryWriteLock.lock();
+                try {
+                    configure();
+                } finally {
+                    memoryWriteLock.unlock();
+                }
+            }
+
+            private void configure() {
+                if(switchingMemory != null) {
+                    // the memory is being replaced - configure the replacement once it is in place
+                    pendingMemoryConfiguration = this;
+                    return;
+                }
+                final File backingFile = mapped ? getBackingFile(compressed) : null;
+                final AudioMemory memory = audioMemory;
+                if((memory instanceof CompressedAudioMemory) == compressed) {
+                    if(compressed) {
+                        setSkipSilence((CompressedAudioMemory) memory);
+                    }
+                    memory.setFillRate(2 * sampleRate);
+                    memory.setCaptureClock(audioClock);
+                    memory.setBackingFile(backingFile);
+                    memory.allocate(memorySize);
+                    return;
+                }
+                final AudioMemory replacement = compressed ? new CompressedAudioMemory() : new AudioMemory();
+                if(compressed) {
+                    setSkipSilence((CompressedAudioMemory) replacement);
+                }
+                replacement.setFillRate(2 * sampleRate);
+                replacement.setCaptureClock(audioClock);
+                replacement.setBackingFile(backingFile);
+                replacement.allocate(memorySize);
+                switchingMemory = replacement;
+                // Encoding or decoding the whole history takes seconds - the export thread does it while capture goes
+                // on, and the audio thread copies only what was captured meanwhile.
+                exportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        long copied = memory.getStartPosition();
+                        for(int pass = 0; pass < MEMORY_SWITCH_PASSES; ++pass) {
+                            final long end = memory.getEndPosition();
+                            try {
+                                replacement.fillFrom(memory, copied, end);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Can't move history to the new memory", e);
+                            }
+                            copied = end;
+                            if(memory.getEndPosition() - copied < FILL_RATE) break;
+                        }
+                        final long tail = copied;
+                        audioHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                memoryWriteLock.lock();
+                                try {
+                                    switchMemory(memory, replacement, tail);
+                                } finally {
+                                    memoryWriteLock.unlock();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            private void setSkipSilence(CompressedAudioMemory memory) {
+                // a new detector also picks up a changed sample rate; recordings keep silence
+                final boolean skip = skipSilence && recording == null;
+                memory.setSilenceDetector(skip ? new VoiceActivityDetector(sampleRate) : null);
+            }
+        };
+    }
+
+    /**
+     * Puts {@code replacement}, which holds the history of {@code memory} up to position {@code copied}, in place of
+     * it, after copying the rest. Audio thread only, with memoryWriteLock held.
+     */
+    private void switchMemory(final AudioMemory memory, final AudioMemory replacement, long copied) {
+        switchingMemory = null;
+        if(memory.getAllocatedMemorySize() == 0) {
+            // freed when listening stopped - the next configuration starts over with the new type
+            replacement.allocate(0);
+        } else {
+            try {
+                replacement.fillFrom(memory, copied, memory.getEndPosition());
+            } catch (IOException e) {
+                Log.e(TAG, "Can't move history to the new memory", e);
+            }
+            replacement.takeTimes(memory);
+            final long offset = replacement.getEndPosition() - memory.getEndPosition();
+            audioMemory = replacement;
+            final Recording current = recording;
+            if(current != null) {
+                current.start += offset;
+            }
+            // Exports may still read the old memory - free it after them.
+            exportHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    audioMemory.allocate(memorySize);
+                    if(current != null) {
+                        current.switchMemory(replacement, offset);
+                    }
+                    if(spill != null) {
+                        spill.switchMemory(replacement, offset);
+                    }
+                    audioHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            memory.allocate(0);
+                        }
+                    });
                 }
             });
         }
+        final Runnable pending = pendingMemoryConfiguration;
+        pendingMemoryConfiguration = null;
+        if(pending != null) {
+            pending.run();
+        }
+    }
+
+    /**
+     * Upper bound for the memory setting. Heap history is limited by the heap, mapped history by a quarter of the
+     * storage. The bound is taken once and kept, so that the presets derived from it don't move as free space comes
+     * and goes, and most of the storage is left to recordings and the spill.
+     */
+    public long getMaxMemorySize() {
+        if(!isMemoryMapped()) {
+            return Runtime.getRuntime().maxMemory();
+        }
+        final SharedPreferences preferences = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        long max = preferences.getLong(AUDIO_MEMORY_MAPPED_MAX_KEY, 0);
+        if(max == 0) {
+            max = Math.min(getFilesDir().getTotalSpace() / 4, Integer.MAX_VALUE);
+            preferences.edit().putLong(AUDIO_MEMORY_MAPPED_MAX_KEY, max).commit();
+        }
+        // Less when storage is short. Mapped history already holds its storage, the spill gets its whole file.
+        final long spillCapacity = 60L * preferences.getInt(AUDIO_SPILL_MINUTES_KEY, 0) * FILL_RATE;
+        final long spillSize = spillCapacity > 0 ? HistorySpill.fileSize(spillCapacity) : 0;
+        final long available = getFilesDir().getUsableSpace() + getMappedHistorySize() - spillSize;
+        return Math.max(0, Math.min(max, available));
+    }
+
+    /**
+     * Storage held by the files of mapped history.
+     */
+    private long getMappedHistorySize() {
+        final String plain = getBackingFile(false).getName() + ".";
+        final String compressed = getBackingFile(true).getName() + ".";
+        long size = 0;
+        final File[] files = getFilesDir().listFiles();
+        if(files == null) return 0;
+        for(File file : files) {
+            if(file.getName().startsWith(plain) || file.getName().startsWith(compressed)) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private File getBackingFile(boolean compressed) {
+        // Memory types use separate files, so that history can be moved from one to the other.
+        return new File(getFilesDir(), compressed ? "history.lossless" : "history.pcm");
     }
 
     public int getSamplingRate() {
@@ -382,13 +1166,44 @@ public class SaidItService extends Service {
         preferences.edit().putInt(SAMPLE_RATE_KEY, sampleRate).commit();
 
         innerStopListening();
+        discardHistory();
         SAMPLE_RATE = sampleRate;
         FILL_RATE = 2 * SAMPLE_RATE;
         innerStartListening();
     }
 
+    /**
+     * Drops all history, with its times and the spill, once the tasks already queued on the audio and export threads
+     * are done. Audio captured from now on can't follow it, e.g. when the sample rate changes. Exports still running
+     * lose what they didn't write yet.
+     */
+    private void discardHistory() {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                memoryWriteLock.lock();
+                try {
+                    audioMemory.clear();
+                } finally {
+                    memoryWriteLock.unlock();
+                }
+                exportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeSpill();
+                        getSpillFile().delete();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called on the thread that asked for the file.
+     */
     public interface WavFileReceiver {
         public void fileReady(File file, float runtime);
+        public void fileProgress(File file, float written, float total);
     }
 
     public void stopRecording(final WavFileReceiver wavFileReceiver, String newFileName) {
@@ -400,20 +1215,26 @@ public class SaidItService extends Service {
                 break;
         }
         state = STATE_LISTENING;
+        publishState();
+        final Handler sourceHandler = new Handler();
+        final long requestNanos = System.nanoTime();
 
         audioHandler.post(new Runnable() {
             @Override
             public void run() {
                 flushAudioRecord();
-                try {
-                    wavFileWriter.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "CLOSING ERROR", e);
-                }
-                if(wavFileReceiver != null) {
-                    wavFileReceiver.fileReady(wavFile, wavFileWriter.getTotalSampleBytesWritten() * getBytesToSeconds());
-                }
-                wavFileWriter = null;
+                final Recording finished = recording;
+                if(finished == null) return;
+                recording = null;
+                updateSilenceDetector();
+                final long end = audioMemory.getEndPosition();
+                exportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finished.finish(end, wavFileReceiver, sourceHandler);
+                        recordingStopMillis.record((System.nanoTime() - requestNanos) / 1000000);
+                    }
+                });
             }
         });
 
@@ -425,71 +1246,390 @@ public class SaidItService extends Service {
         stopForeground(true);
     }
 
+    /**
+     * Skips silence in history only while nothing is recorded, so that recordings keep everything they capture. Must be
+     * run on the audio thread.
+     */
+    private void updateSilenceDetector() {
+        final AudioMemory memory = audioMemory;
+        if(!(memory instanceof CompressedAudioMemory)) return;
+        final VoiceActivityDetector detector =
+                recording == null && isSilenceSkipped() ? new VoiceActivityDetector(SAMPLE_RATE) : null;
+        memoryWriteLock.lock();
+        try {
+            ((CompressedAudioMemory) memory).setSilenceDetector(detector);
+        } finally {
+            memoryWriteLock.unlock();
+        }
+    }
+
     private void flushAudioRecord() {
         // Only allowed on the audio thread
         assert audioHandler.getLooper() == Looper.myLooper();
+        if(capture != null) {
+            // The capture thread keeps reading - wait until it stores the audio it has read. Audio it is still
+            // waiting for in AudioRecord isn't waited for.
+            memoryWriteLock.lock();
+            memoryWriteLock.unlock();
+            return;
+        }
         audioHandler.removeCallbacks(audioReader); // remove any delayed callbacks
         audioReader.run();
     }
 
+    DrainScheduler drainScheduler = new DrainScheduler.Heuristic(); // used only in the audio thread
+    int drainedBytes = 0; // used only in the audio thread
+    long readNanos = 0; // spent in AudioRecord.read during the current fill, used only in the audio thread
+    long lastDrainNanos = 0; // used only in the audio thread
+    boolean filled = false; // the last fill read AudioRecord, used only in the audio thread
+    int failedReads = 0; // in a row, used only in the audio thread
+    byte[] discarded = null; // audio read without memory for it, used only in the audio thread
+    static final int READ_RETRY_MILLIS = 50; // doubled with every failed read in a row
+    static final int MAX_READ_RETRY_MILLIS = 5000;
+
     final AudioMemory.Consumer filler = new AudioMemory.Consumer() {
         @Override
         public int consume(final byte[] array, final int offset, final int count) throws IOException {
 //            Log.d(TAG, "READING " + count + " B");
+            filled = true;
+            final long readStart = System.nanoTime();
             final int read = audioRecord.read(array, offset, count, AudioRecord.READ_NON_BLOCKING);
+            final long readTime = System.nanoTime() - readStart;
+            readNanos += readTime;
+            readMicros.record(readTime / 1000);
+            if (read < 0) {
+                readErrors.increment();
+            } else {
+                readSizes.record(read);
+                recordDrop(audioClock.read(read, read < count));
+            }
             if (read == AudioRecord.ERROR_BAD_VALUE) {
                 Log.e(TAG, "AUDIO RECORD ERROR - BAD VALUE");
-                return 0;
-            }
-            if (read == AudioRecord.ERROR_INVALID_OPERATION) {
+            } else if (read == AudioRecord.ERROR_INVALID_OPERATION) {
                 Log.e(TAG, "AUDIO RECORD ERROR - INVALID OPERATION");
-                return 0;
-            }
-            if (read == AudioRecord.ERROR) {
+            } else if (read == AudioRecord.ERROR) {
                 Log.e(TAG, "AUDIO RECORD ERROR - UNKNOWN ERROR");
+            } else if (read < 0) {
+                Log.e(TAG, "AUDIO RECORD ERROR " + read);
+            }
+            if (read < 0) {
+                retryRead();
                 return 0;
             }
-            if (wavFileWriter != null && read > 0) {
-                wavFileWriter.write(array, offset, read);
+            failedReads = 0;
+            if (read > 0) {
+                drainedBytes += read;
             }
             if (read == count) {
                 // We've filled the buffer, so let's read again.
                 audioHandler.post(audioReader);
             } else {
                 // It seems we've read everything!
-                //
-                // Estimate how long do we have until audioRecord fills up completely and post the callback 1 second before that
-                // (but not earlier than half the buffer and no later than 90% of the buffer).
-                float bufferSizeInSeconds = audioRecord.getBufferSizeInFrames() / (float)SAMPLE_RATE;
-                float delaySeconds = bufferSizeInSeconds - 1;
-                delaySeconds = Math.max(delaySeconds, bufferSizeInSeconds * 0.5f);
-                delaySeconds = Math.min(delaySeconds, bufferSizeInSeconds * 0.9f);
-                audioHandler.postDelayed(audioReader, (long)(delaySeconds * 1000));
+                final int bufferBytes = audioRecord.getBufferSizeInFrames() * 2;
+                audioHandler.postDelayed(audioReader, drainScheduler.drained(drainedBytes, bufferBytes, FILL_RATE));
+                drainedBytes = 0;
             }
             return read;
         }
     };
+    /**
+     * Reads AudioRecord again after a failed read, waiting longer after every failure in a row. Audio lost meanwhile is
+     * a gap in history.
+     */
+    private void retryRead() {
+        audioMemory.markGap();
+        final long delay = Math.min(MAX_READ_RETRY_MILLIS, (long) READ_RETRY_MILLIS << Math.min(failedReads, 16));
+        ++failedReads;
+        audioHandler.postDelayed(audioReader, delay);
+    }
+
+    /**
+     * Counts audio that AudioRecord dropped. The memory learns about it from the clock, which times the audio after the
+     * drop later.
+     */
+    private void recordDrop(long millis) {
+        if(millis == 0) return;
+        droppedMillis.record(millis);
+        Log.w(TAG, "AudioRecord dropped " + millis + " ms of audio");
+    }
+
     final Runnable audioReader = new Runnable() {
         @Override
         public void run() {
+            if(audioRecord == null) return; // not listening
+            final long fillStart = System.nanoTime();
+            if(lastDrainNanos != 0) {
+                drainIntervalMillis.record((fillStart - lastDrainNanos) / 1000000);
+            }
+            lastDrainNanos = fillStart;
+            readNanos = 0;
+            filled = false;
+            final AudioMemory memory = audioMemory;
             try {
-                audioMemory.fill(filler);
+                memory.fill(filler);
             } catch (IOException e) {
-                final String errorMessage = getString(R.string.error_during_recording_into) + wavFile.getName();
-                Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
-                Log.e(TAG, errorMessage, e);
-                stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this), "");
+                Log.e(TAG, "AUDIO MEMORY FILL ERROR", e);
             }
+            if(!filled) {
+                // The memory took nothing (no memory for the audio, or it failed) - drain AudioRecord anyway, so that
+                // capture goes on.
+                memory.markGap();
+                if(discarded == null) {
+                    discarded = new byte[FILL_RATE];
+                }
+                try {
+                    filler.consume(discarded, 0, discarded.length);
+                } catch (IOException e) {
+                    Log.e(TAG, "AUDIO RECORD DRAIN ERROR", e);
+                }
+            }
+            fillMicros.record((System.nanoTime() - fillStart - readNanos) / 1000);
+            drainToFiles();
+        }
+    };
+
+    private void drainToFiles() {
+        final Recording current = recording;
+        if(current != null) {
+            // Recorded audio goes to the file on the export thread.
+            exportHandler.removeCallbacks(current.drain);
+            exportHandler.post(current.drain);
+        }
+        exportHandler.removeCallbacks(spillDrain);
+        exportHandler.post(spillDrain);
+        exportHandler.removeCallbacks(chunkPreparer);
+        exportHandler.post(chunkPreparer);
+    }
+
+    /**
+     * Takes the next chunk of the memory ahead of need, so that capture doesn't wait for its storage.
+     */
+    final Runnable chunkPreparer = new Runnable() {
+        @Override
+        public void run() {
+            audioMemory.prepareChunk();
         }
     };
 
+    public boolean isBlockingCapture() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(AUDIO_CAPTURE_BLOCKING_KEY, false);
+    }
+
+    /**
+     * Switches between draining AudioRecord from the audio thread and a dedicated capture thread that blocks in
+     * AudioRecord.read(). History is kept.
+     */
+    public void setBlockingCapture(final boolean blocking) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(AUDIO_CAPTURE_BLOCKING_KEY, blocking).commit();
+
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(audioRecord == null || blocking == (capture != null)) return;
+                Log.d(TAG, "Audio: " + (capture != null ? capture : drainScheduler));
+                stopCapture();
+                startCapture(blocking);
+            }
+        });
+    }
+
+    /**
+     * Picks how the audio thread schedules its drains of AudioRecord: {@link DrainScheduler#FIXED} (every
+     * {@code fixedDelayMillis}), {@link DrainScheduler#HEURISTIC} or {@link DrainScheduler#ADAPTIVE}. Takes effect
+     * with the next drain and starts the counters of the scheduler anew.
+     */
+    public void setDrainScheduler(final String name, final long fixedDelayMillis) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit()
+                .putString(AUDIO_DRAIN_SCHEDULER_KEY, name)
+                .putLong(AUDIO_DRAIN_INTERVAL_KEY, fixedDelayMillis)
+                .commit();
+
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drainScheduler = DrainScheduler.create(name, fixedDelayMillis);
+                Log.d(TAG, "Audio: " + drainScheduler);
+            }
+        });
+    }
+
+    private void startCapture(boolean blocking) {
+        if(blocking) {
+            capture = new BlockingCapture(audioRecord, audioClock);
+            capture.start();
+        } else {
+            audioHandler.post(audioReader);
+        }
+    }
+
+    private void stopCapture() {
+        audioHandler.removeCallbacks(audioReader);
+        lastDrainNanos = 0;
+        if(capture != null) {
+            capture.quit();
+            capture = null;
+        }
+    }
+
+    /**
+     * Alternative capture engine: instead of the audio thread draining AudioRecord from time to time, a dedicated
+     * thread with urgent audio priority blocks in AudioRecord.read() and copies what it read into the audio memory. The
+     * write lock is taken only for the copy. Keeps the same counters as {@link DrainScheduler}, so both engines can be
+     * compared.
+     */
+    private class BlockingCapture extends Thread {
+        private static final int READ_MILLIS = 100;
+
+        private final AudioRecord audioRecord;
+        private final AudioRecordClock clock;
+        private final int readBytes;
+        private final long bufferMillis;
+        private volatile boolean quit = false;
+        private volatile boolean failed = false;
+
+        // written only in the capture thread
+        private volatile long startMillis;
+        private volatile long reads = 0;
+        private volatile long overruns = 0;
+        private final byte[] staging; // audio read last, used only in the capture thread
+        private int staged; // bytes in staging, used only in the capture thread
+        private int published; // bytes of staging already in the memory, used only in the capture thread
+
+        BlockingCapture(AudioRecord audioRecord, AudioRecordClock clock) {
+            super("captureThread");
+            this.audioRecord = audioRecord;
+            this.clock = clock;
+            this.readBytes = FILL_RATE * READ_MILLIS / 1000 & ~1;
+            this.bufferMillis = 1000L * audioRecord.getBufferSizeInFrames() / SAMPLE_RATE;
+            this.staging = new byte[readBytes];
+        }
+
+        /**
+         * Blocks until AudioRecord has the next {@value #READ_MILLIS} ms of audio and reads it into the staging buffer.
+         * Runs without the memory write lock, so flushes and reconfigurations don't wait for AudioRecord.
+         */
+        private void stage() {
+            final long readStart = System.nanoTime();
+            final int read = audioRecord.read(staging, 0, readBytes, AudioRecord.READ_BLOCKING);
+            readMicros.record((System.nanoTime() - readStart) / 1000);
+            published = 0;
+            if(read < 0) {
+                readErrors.increment();
+                Log.e(TAG, "AUDIO RECORD ERROR " + read + " - stopping capture thread");
+                failed = true;
+                quit = true;
+                staged = 0;
+                return;
+            }
+            readSizes.record(read);
+            staged = read;
+        }
+
+        private final AudioMemory.Consumer publisher = new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                final int length = Math.min(count, staged - published);
+                if(length <= 0) return 0;
+                System.arraycopy(staging, published, array, offset, length);
+                published += length;
+                recordDrop(clock.read(length, true));
+                return length;
+            }
+        };
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            startMillis = SystemClock.uptimeMillis();
+            long lastReadMillis = startMillis;
+            while(!quit) {
+                stage();
+                final long fillStart = System.nanoTime();
+                memoryWriteLock.lock();
+                try {
+                    final AudioMemory memory = audioMemory;
+                    try {
+                        // a fill stops at the end of a chunk
+                        while(published < staged) {
+                            final int before = published;
+                            memory.fill(publisher);
+                            if(published == before) break;
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "AUDIO MEMORY FILL ERROR", e);
+                    }
+                    if(published < staged) {
+                        // The memory didn't take it all (no memory for the audio, or it failed).
+                        memory.markGap();
+                    }
+                } finally {
+                    memoryWriteLock.unlock();
+                }
+                if(published < staged) {
+                    recordDrop(clock.read(staged - published, true));
+                }
+                fillMicros.record((System.nanoTime() - fillStart) / 1000);
+                final long now = SystemClock.uptimeMillis();
+                drainIntervalMillis.record(now - lastReadMillis);
+                // Gaps longer than the AudioRecord buffer mean that audio was dropped.
+                if(now - lastReadMillis >= bufferMillis) {
+                    ++overruns;
+                }
+                lastReadMillis = now;
+                ++reads;
+                drainToFiles();
+            }
+            if(failed) {
+                audioHandler.post(fallback);
+            }
+        }
+
+        /**
+         * Hands capture over to the audio thread after a read error, so the service doesn't stay listening without
+         * capturing anything. The blocking engine is tried again when listening starts next time.
+         */
+        private final Runnable fallback = new Runnable() {
+            @Override
+            public void run() {
+                if(capture != BlockingCapture.this) return; // stopped meanwhile
+                Log.w(TAG, "Capture thread failed, falling back to " + drainScheduler);
+                stopCapture();
+                startCapture(false);
+                publishState();
+            }
+        };
+
+        /**
+         * Stops the thread and waits for its last read.
+         */
+        void quit() {
+            quit = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            final long millis = SystemClock.uptimeMillis() - startMillis;
+            return String.format(Locale.US, "%s: %.1f wakeups/min, %d overruns",
+                    getClass().getSimpleName(), millis == 0 ? 0 : reads * 60000f / millis, overruns);
+        }
+    }
+
     public interface StateCallback {
         public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded);
     }
 
+    /**
+     * Drains AudioRecord and then sends the state to the callback, on the calling thread. Use it to learn the outcome
+     * of a change - to follow the state, use {@link #addStateListener}.
+     */
     public void getState(final StateCallback stateCallback) {
-        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
-        final boolean listeningEnabled = preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true);
+        final boolean listeningEnabled = this.listeningEnabled;
         final boolean recording = (state == STATE_RECORDING);
         final Handler sourceHandler = new Handler();
         // Note that we may not run this for quite a while, if audioReader decides to read a lot of audio!
@@ -497,24 +1637,114 @@ public class SaidItService extends Service {
             @Override
             public void run() {
                 flushAudioRecord();
-                final AudioMemory.Stats stats = audioMemory.getStats(FILL_RATE);
-                
-                int recorded = 0;
-                if(wavFileWriter != null) {
-                    recorded += wavFileWriter.getTotalSampleBytesWritten();
-                    recorded += stats.estimation;
-                }
-                final float bytesToSeconds = getBytesToSeconds();
-                final int finalRecorded = recorded;
-                sourceHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        stateCallback.state(listeningEnabled, recording,
-                                (stats.overwriting ? stats.total : stats.filled + stats.estimation) * bytesToSeconds,
-                                stats.total * bytesToSeconds,
-                                finalRecorded * bytesToSeconds);
-                    }
-                });
+                postState(stateCallback, sourceHandler, listeningEnabled, recording, new AudioMemory.Stats());
+            }
+        });
+    }
+
+    private static final int STATE_PUBLISH_MILLIS = 250;
+
+    private static class StateListener {
+        final StateCallback callback;
+        final Handler handler;
+
+        StateListener(StateCallback callback, Handler handler) {
+            this.callback = callback;
+            this.handler = handler;
+        }
+    }
+
+    private final CopyOnWriteArrayList<StateListener> stateListeners = new CopyOnWriteArrayList<StateListener>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AudioMemory.Stats publishedStats = new AudioMemory.Stats(); // used only by statePublisher
+
+    /**
+     * Sends the state to the listeners every {@value #STATE_PUBLISH_MILLIS} ms while there are any. Runs on the main
+     * thread and only reads volatile state, so it never waits for capture and capture never waits for it.
+     */
+    private final Runnable statePublisher = new Runnable() {
+        @Override
+        public void run() {
+            if(stateListeners.isEmpty()) return;
+            final boolean listeningEnabled = SaidItService.this.listeningEnabled;
+            final boolean recording = (state == STATE_RECORDING);
+            for(StateListener listener : stateListeners) {
+                postState(listener.callback, listener.handler, listeningEnabled, recording, publishedStats);
+            }
+            mainHandler.postDelayed(this, STATE_PUBLISH_MILLIS);
+        }
+    };
+
+    /**
+     * Sends the state to the callback, on the calling thread, every {@value #STATE_PUBLISH_MILLIS} ms and when
+     * listening or recording starts or stops. Unlike {@link #getState} it never drains AudioRecord, so following the
+     * state costs capture nothing; audio still waiting in AudioRecord is estimated from the time of the last drain.
+     */
+    public void addStateListener(StateCallback callback) {
+        final StateListener listener = new StateListener(callback, new Handler());
+        stateListeners.add(listener);
+        postState(callback, listener.handler, listeningEnabled, state == STATE_RECORDING, new AudioMemory.Stats());
+        mainHandler.removeCallbacks(statePublisher);
+        mainHandler.postDelayed(statePublisher, STATE_PUBLISH_MILLIS);
+    }
+
+    public void removeStateListener(StateCallback callback) {
+        for(StateListener listener : stateListeners) {
+            if(listener.callback == callback) {
+                stateListeners.remove(listener);
+            }
+        }
+        if(stateListeners.isEmpty()) {
+            mainHandler.removeCallbacks(statePublisher);
+        }
+    }
+
+    /**
+     * Sends the state to the listeners right away, after a change. Can be called from any thread.
+     */
+    private void publishState() {
+        if(stateListeners.isEmpty()) return;
+        final boolean listeningEnabled = this.listeningEnabled;
+        final boolean recording = (state == STATE_RECORDING);
+        final AudioMemory.Stats stats = new AudioMemory.Stats();
+        for(StateListener listener : stateListeners) {
+            postState(listener.callback, listener.handler, listeningEnabled, recording, stats);
+        }
+    }
+
+    /**
+     * @param stats filled with the current stats of the memory
+     */
+    private void postState(final StateCallback stateCallback, Handler handler, final boolean listeningEnabled,
+                           final boolean recording, AudioMemory.Stats stats) {
+        final AudioMemory memory = audioMemory;
+        memory.getStats(FILL_RATE, stats);
+        // Audio read since the last fill, or still waiting in AudioRecord, which holds no more than a chunk.
+        long pending = stats.estimation;
+        if(!stats.filling && stats.lastFillUptimeMillis != 0 && state != STATE_READY) {
+            pending = Math.min(AudioMemory.CHUNK_SIZE,
+                    (SystemClock.uptimeMillis() - stats.lastFillUptimeMillis) * FILL_RATE / 1000 & ~1);
+        }
+        // history that is left only in the spill
+        final long spilled = Math.max(0, memory.getStartPosition() - spillStart);
+        final long total = Math.max(stats.total, spillCapacity);
+        final long memorized = Math.min(total, (stats.overwriting ? stats.total : stats.filled + pending) + spilled);
+
+        long recorded = 0;
+        final Recording current = this.recording;
+        if(current != null) {
+            recorded += memory.getEndPosition() - current.start;
+            recorded += pending;
+        }
+        final float bytesToSeconds = getBytesToSeconds();
+        final long finalRecorded = recorded;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stateCallback.state(listeningEnabled, recording,
+                        memorized * bytesToSeconds,
+                        total * bytesToSeconds,
+                        finalRecorded * bytesToSeconds);
             }
         });
     }
@@ -523,6 +1753,94 @@ public class SaidItService extends Service {
         return 1f / FILL_RATE;
     }
 
+    /**
+     * Prints the state of the service and the metrics of the capture pipeline. Never waits for the audio thread, so
+     * it works while capture is stuck.
+     */
+    public void dumpMetrics(PrintWriter writer) {
+        final AudioMemory memory = audioMemory;
+        final AudioMemory.Stats stats = memory.getStats(FILL_RATE);
+        writer.println(String.format(Locale.US, "State %d, %d Hz, %s capture", state, SAMPLE_RATE,
+                isBlockingCapture() ? "blocking" : "scheduled"));
+        writer.println(String.format(Locale.US, "Memory: %s, %d of %d B, history %d..%d",
+                memory.getClass().getSimpleName(), stats.filled, stats.total,
+                getHistoryStart(memory), memory.getEndPosition()));
+        if(spillCapacity > 0) {
+            writer.println(String.format(Locale.US, "Spill: %d B, from %d", spillCapacity, spillStart));
+        }
+        metrics.dump(writer);
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /**
+     * Used by {@code adb shell dumpsys activity service eu.mrogalski.saidit/.SaidItService}, which prints the metrics.
+     * It changes nothing - developer commands come through {@link #ACTION_DEBUG_COMMAND}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpMetrics(writer);
+    }
+
+    /**
+     * Runs a developer command of a debug build, sent by {@code DebugCommandReceiver}. Results go to the log.
+     * <pre>
+     * reset                                         start counting the metrics anew
+     * capture blocking|scheduled                    switch the capture engine
+     * scheduler fixed|heuristic|adaptive [ms]       switch the drain scheduler (ms: interval of the fixed one)
+     * padding &lt;ms&gt;                                  set the padding of speech-only saves
+     * save &lt;from&gt; &lt;to&gt;                              save history from..to minutes ago
+     * </pre>
+     */
+    private void runDebugCommand(String command) {
+        final String[] args = command.trim().split("\\s+");
+        final String value = args.length > 1 ? args[1] : "";
+        try {
+            if("reset".equals(args[0])) {
+                resetMetrics();
+                Log.i(TAG, "Metrics reset");
+            } else if("capture".equals(args[0]) && ("blocking".equals(value) || "scheduled".equals(value))) {
+                setBlockingCapture("blocking".equals(value));
+                Log.i(TAG, "Capture: " + value);
+            } else if("scheduler".equals(args[0]) && (DrainScheduler.FIXED.equals(value)
+                    || DrainScheduler.HEURISTIC.equals(value) || DrainScheduler.ADAPTIVE.equals(value))) {
+                final long interval = args.length > 2 ? Long.parseLong(args[2])
+                        : getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getLong(AUDIO_DRAIN_INTERVAL_KEY, 1000);
+                setDrainScheduler(value, interval);
+                Log.i(TAG, "Drain scheduler: " + value
+                        + (DrainScheduler.FIXED.equals(value) ? ", " + interval + " ms" : ""));
+            } else if("padding".equals(args[0]) && args.length > 1) {
+                setSpeechPadding(Long.parseLong(value));
+                Log.i(TAG, "Speech padding: " + getSpeechPadding() + " ms");
+            } else if("save".equals(args[0]) && args.length > 2) {
+                final long now = System.currentTimeMillis();
+                final long fromMillis = now - (long) (Float.parseFloat(value) * 60000);
+                final long toMillis = now - (long) (Float.parseFloat(args[2]) * 60000);
+                if(state != STATE_LISTENING) {
+                    Log.i(TAG, "Not listening, nothing to save");
+                    return;
+                }
+                // runs on the main thread, so dumpRange() answers there
+                dumpRange(fromMillis, toMillis, new WavFileReceiver() {
+                    @Override
+                    public void fileReady(File file, float runtime) {
+                        Log.i(TAG, "Saved " + runtime + " s of history to " + file);
+                    }
+
+                    @Override
+                    public void fileProgress(File file, float written, float total) {
+                    }
+                }, "");
+            } else {
+                Log.w(TAG, "Unknown debug command: " + command);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Not a number in debug command: " + command);
+        }
+    }
+
     class BackgroundRecorderBinder extends Binder {
         public SaidItService getService() {
             return SaidItService.this;
@@ -532,6 +1850,12 @@ public class SaidItService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         startForeground(FOREGROUND_NOTIFICATION_ID, buildNotification(), ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE);
+        if(BuildConfig.DEBUG && intent != null && ACTION_DEBUG_COMMAND.equals(intent.getAction())) {
+            final String command = intent.getStringExtra(EXTRA_DEBUG_COMMAND);
+            if(command != null) {
+                runDebugCommand(command);
+            }
+        }
         return START_STICKY;
     }
 
@@ -32,6 +32,11 @@ public class SettingsActivity extends Activity {
     static final String TAG = SettingsActivity.class.getSimpleName();
     private final MemoryOnClickListener memoryClickListener = new MemoryOnClickListener();
     private final QualityOnClickListener qualityClickListener = new QualityOnClickListener();
+    private final StorageOnClickListener storageClickListener = new StorageOnClickListener();
+    private final CompressionOnClickListener compressionClickListener = new CompressionOnClickListener();
+    private final SpillOnClickListener spillClickListener = new SpillOnClickListener();
+    private final GapsOnClickListener gapsClickListener = new GapsOnClickListener();
+    private final SpeechPaddingOnClickListener speechPaddingClickListener = new SpeechPaddingOnClickListener();
 
 
     final WorkingDialog dialog = new WorkingDialog();
@@ -69,7 +74,7 @@ public class SettingsActivity extends Activity {
     final TimeFormat.Result timeFormatResult = new TimeFormat.Result();
 
     private void syncUI() {
-        final long maxMemory = Runtime.getRuntime().maxMemory();
+        final long maxMemory = service.getMaxMemorySize();
         System.out.println("maxMemory = " + maxMemory);
         System.out.println("totalMemory = " + Runtime.getRuntime().totalMemory());
 
@@ -86,7 +91,7 @@ public class SettingsActivity extends Activity {
     }
 
     void highlightButtons() {
-        final long maxMemory = Runtime.getRuntime().maxMemory();
+        final long maxMemory = service.getMaxMemorySize();
 
         int button = (int)(service.getMemorySize() / (maxMemory / 4)); // 1 - memory_low; 2 - memory_medium; 3 - memory_high
         highlightButton(R.id.memory_low, R.id.memory_medium, R.id.memory_high, button);
@@ -96,6 +101,25 @@ public class SettingsActivity extends Activity {
         else if(samplingRate >= 16000) button = 2;
         else button = 1;
         highlightButton(R.id.quality_8kHz, R.id.quality_16kHz, R.id.quality_48kHz, button);
+
+        final boolean mapped = service.isMemoryMapped();
+        findViewById(R.id.storage_ram).setBackgroundResource(mapped ? R.drawable.gray_button : R.drawable.green_button);
+        findViewById(R.id.storage_file).setBackgroundResource(mapped ? R.drawable.green_button : R.drawable.gray_button);
+
+        highlightButton(R.id.compression_off, R.id.compression_lossless, R.id.compression_skip_silence,
+                service.isSilenceSkipped() ? 3 : service.isMemoryCompressed() ? 2 : 1);
+
+        final int spillMinutes = service.getSpillMinutes();
+        highlightButton(R.id.spill_off, R.id.spill_1_hour, R.id.spill_8_hours,
+                spillMinutes > 60 ? 3 : spillMinutes > 0 ? 2 : 1);
+
+        final boolean gapsFilled = service.areGapsFilled();
+        findViewById(R.id.gaps_skip).setBackgroundResource(gapsFilled ? R.drawable.gray_button : R.drawable.green_button);
+        findViewById(R.id.gaps_silence).setBackgroundResource(gapsFilled ? R.drawable.green_button : R.drawable.gray_button);
+
+        final long speechPadding = service.getSpeechPadding();
+        highlightButton(R.id.speech_padding_short, R.id.speech_padding_medium, R.id.speech_padding_long,
+                speechPadding > 500 ? 3 : speechPadding > 200 ? 2 : 1);
     }
 
     private void highlightButton(int button1, int button2, int button3, int i) {
@@ -166,6 +190,24 @@ public class SettingsActivity extends Activity {
         initSampleRateButton(root, R.id.quality_16kHz, 16000, 22050);
         initSampleRateButton(root, R.id.quality_48kHz, 48000, 44100);
 
+        root.findViewById(R.id.storage_ram).setOnClickListener(storageClickListener);
+        root.findViewById(R.id.storage_file).setOnClickListener(storageClickListener);
+
+        root.findViewById(R.id.compression_off).setOnClickListener(compressionClickListener);
+        root.findViewById(R.id.compression_lossless).setOnClickListener(compressionClickListener);
+        root.findViewById(R.id.compression_skip_silence).setOnClickListener(compressionClickListener);
+
+        root.findViewById(R.id.spill_off).setOnClickListener(spillClickListener);
+        root.findViewById(R.id.spill_1_hour).setOnClickListener(spillClickListener);
+        root.findViewById(R.id.spill_8_hours).setOnClickListener(spillClickListener);
+
+        root.findViewById(R.id.gaps_skip).setOnClickListener(gapsClickListener);
+        root.findViewById(R.id.gaps_silence).setOnClickListener(gapsClickListener);
+
+        root.findViewById(R.id.speech_padding_short).setOnClickListener(speechPaddingClickListener);
+        root.findViewById(R.id.speech_padding_medium).setOnClickListener(speechPaddingClickListener);
+        root.findViewById(R.id.speech_padding_long).setOnClickListener(speechPaddingClickListener);
+
         //debugPrintCodecs();
 
         dialog.setDescriptionStringId(R.string.work_preparing_memory);
@@ -214,20 +256,13 @@ public class SettingsActivity extends Activity {
     private class MemoryOnClickListener implements View.OnClickListener {
         @Override
         public void onClick(View v) {
-            final long memory = getMultiplier(v) * Runtime.getRuntime().maxMemory() / 4;
-            dialog.show(getFragmentManager(), "Preparing memory");
-
-            new Handler().post(new Runnable() {
+            final long memory = getMultiplier(v) * service.getMaxMemorySize() / 4;
+            // Memory is resized gradually while capture goes on, there is nothing to wait for.
+            service.setMemorySize(memory);
+            service.getState(new SaidItService.StateCallback() {
                 @Override
-                public void run() {
-                    service.setMemorySize(memory);
-                    service.getState(new SaidItService.StateCallback() {
-                        @Override
-                        public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded) {
-                            syncUI();
-                            if (dialog.isVisible()) dialog.dismiss();
-                        }
-                    });
+                public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded) {
+                    syncUI();
                 }
             });
         }
@@ -271,4 +306,75 @@ public class SettingsActivity extends Activity {
             return 8000;
         }
     }
+
+    private class StorageOnClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            final boolean mapped = v.getId() == R.id.storage_file;
+            dialog.show(getFragmentManager(), "Preparing memory");
+
+            new Handler().post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setMemoryMapped(mapped);
+                    service.getState(new SaidItService.StateCallback() {
+                        @Override
+                        public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded) {
+                            syncUI();
+                            if (dialog.isVisible()) dialog.dismiss();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private class CompressionOnClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            final boolean compressed = v.getId() == R.id.compression_lossless;
+            final boolean skipSilence = v.getId() == R.id.compression_skip_silence;
+            dialog.show(getFragmentManager(), "Preparing memory");
+
+            new Handler().post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setMemoryCompressed(compressed, skipSilence);
+                    service.getState(new SaidItService.StateCallback() {
+                        @Override
+                        public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded) {
+                            syncUI();
+                            if (dialog.isVisible()) dialog.dismiss();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private class SpillOnClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            final int id = v.getId();
+            service.setSpillMinutes(id == R.id.spill_8_hours ? 8 * 60 : id == R.id.spill_1_hour ? 60 : 0);
+            highlightButtons();
+        }
+    }
+
+    private class GapsOnClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            service.setGapsFilled(v.getId() == R.id.gaps_silence);
+            highlightButtons();
+        }
+    }
+
+    private class SpeechPaddingOnClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            final int id = v.getId();
+            service.setSpeechPadding(id == R.id.speech_padding_long ? 1000 : id == R.id.speech_padding_medium ? 500 : 200);
+            highlightButtons();
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package eu.mrogalski.saidit;
+
+import java.util.Arrays;
+
+import simplesound.dsp.VoiceActivityDetector;
+
+/**
+ * Finds the parts of a range of history that hold speech. Fed with the range by {@link AudioMemory#read}, it runs a
+ * {@link VoiceActivityDetector} over consecutive frames and collects the voiced ones, widened by {@code padding} on both
+ * sides and merged where they touch, as pairs of memory positions. Readers tell it where history was left out, so the
+ * positions stay right across gaps.
+ */
+class SpeechFinder implements AudioMemory.PositionedConsumer {
+
+    private final VoiceActivityDetector detector;
+    private final long from;
+    private final long to;
+    private final long padding;
+    private final byte[] frame;
+
+    private long position; // memory position of the first byte in frame
+    private int framed = 0; // bytes collected in frame
+    private long[] segments = new long[16];
+    private int segmentCount = 0;
+
+    /**
+     * @param from    memory position where the range starts
+     * @param to      memory position where the range ends
+     * @param padding bytes kept before and after speech
+     */
+    SpeechFinder(int sampleRate, long from, long to, long padding) {
+        this.detector = new VoiceActivityDetector(sampleRate);
+        this.from = from;
+        this.to = to;
+        this.padding = padding & ~1;
+        this.frame = new byte[detector.getFrameSize() * 2];
+        this.position = from;
+    }
+
+    @Override
+    public int consume(byte[] array, int offset, int count) {
+        int consumed = 0;
+        while(consumed < count) {
+            final int length = Math.min(count - consumed, frame.length - framed);
+            System.arraycopy(array, offset + consumed, frame, framed, length);
+            framed += length;
+            consumed += length;
+            if(framed == frame.length) {
+                analyse();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Skips history that could not be read (not held, or overwritten while reading). A frame collected before the gap
+     * is dropped.
+     */
+    @Override
+    public void skipTo(long skippedPosition) {
+        if(skippedPosition > position + framed) {
+            position = skippedPosition;
+            framed = 0;
+        }
+    }
+
+    private void analyse() {
+        if(detector.isVoiced(frame, 0, framed / 2)) {
+            add(Math.max(from, position - padding), Math.min(to, position + framed + padding));
+        }
+        position += framed;
+        framed = 0;
+    }
+
+    private void add(long start, long end) {
+        if(segmentCount > 0 && start <= segments[segmentCount - 1]) {
+            segments[segmentCount - 1] = Math.max(segments[segmentCount - 1], end);
+            return;
+        }
+        if(segmentCount + 2 > segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        segments[segmentCount++] = start;
+        segments[segmentCount++] = end;
+    }
+
+    /**
+     * @return start and end positions of the speech segments, in order
+     */
+    long[] finish() {
+        if(framed >= 2) {
+            framed &= ~1;
+            analyse();
+        }
+        return Arrays.copyOf(segments, segmentCount);
+    }
+}
@@ -0,0 +1,189 @@
+package eu.mrogalski.saidit;
+
+import java.util.Arrays;
+
+/**
+ * Times at which history was captured. History is split into segments of continuous capture: a segment starts at a
+ * memory position and keeps the elapsed realtime and the wall clock time of its first byte, and the following bytes
+ * come at the fill rate. A new segment starts wherever capture drifts from that - after a gap (capture stopped,
+ * AudioRecord failed or dropped audio) or when it got ahead.
+ * <p>
+ * Instances are immutable. The writer replaces the whole index when a segment starts, which is rare, so readers search
+ * it without locking. Lookups are binary searches over the segments. Times are searched by elapsed realtime, which
+ * only grows - the wall clock can be set back and forth while history is captured.
+ */
+final class TimeIndex {
+    static final int TOLERANCE_MILLIS = 250; // drift allowed before a new segment starts, unless capture is timed better
+    private static final int BOOT_TOLERANCE_MILLIS = 60000; // wall clock adjustments within a boot
+    private static final int MAX_SEGMENTS = 1024;
+
+    final int fillRate;
+    private final long[] positions;
+    private final long[] elapsed;
+    private final long[] wall;
+
+    TimeIndex(int fillRate) {
+        this(fillRate, new long[0], new long[0], new long[0]);
+    }
+
+    private TimeIndex(int fillRate, long[] positions, long[] elapsed, long[] wall) {
+        this.fillRate = fillRate;
+        this.positions = positions;
+        this.elapsed = elapsed;
+        this.wall = wall;
+    }
+
+    boolean isEmpty() {
+        return positions.length == 0;
+    }
+
+    /**
+     * @return index with a segment that starts at {@code position}, without the segments that end before
+     * {@code oldest}
+     */
+    TimeIndex withSegment(long position, long elapsedMillis, long wallMillis, long oldest) {
+        int count = positions.length;
+        // a segment replaces the ones that start at the same position or later
+        while(count > 0 && positions[count - 1] >= position) --count;
+        int first = 0;
+        while(first < count && (first + 1 < count ? positions[first + 1] : position) <= oldest) ++first;
+        first = Math.max(first, count + 1 - MAX_SEGMENTS);
+        final int length = count - first + 1;
+        final long[] newPositions = Arrays.copyOfRange(positions, first, first + length);
+        final long[] newElapsed = Arrays.copyOfRange(elapsed, first, first + length);
+        final long[] newWall = Arrays.copyOfRange(wall, first, first + length);
+        newPositions[length - 1] = position;
+        newElapsed[length - 1] = elapsedMillis;
+        newWall[length - 1] = wallMillis;
+        return new TimeIndex(fillRate, newPositions, newElapsed, newWall);
+    }
+
+    /**
+     * @return the same index for a memory where positions are {@code offset} further
+     */
+    TimeIndex shifted(long offset) {
+        final long[] newPositions = positions.clone();
+        for(int i = 0; i < newPositions.length; ++i) {
+            newPositions[i] += offset;
+        }
+        return new TimeIndex(fillRate, newPositions, elapsed, wall);
+    }
+
+    /**
+     * @return this index with the segments of {@code older} that start before it in front; their elapsed realtime is
+     * clamped so that it doesn't run past this index
+     */
+    TimeIndex after(TimeIndex older) {
+        int count = 0;
+        while(count < older.positions.length && (isEmpty() || older.positions[count] < positions[0])) ++count;
+        // the newest segments are kept
+        final int first = Math.max(0, count + positions.length - MAX_SEGMENTS);
+        if(first >= count) return this;
+        final long[] newPositions = concat(older.positions, first, count, positions);
+        final long[] newElapsed = concat(older.elapsed, first, count, elapsed);
+        final long[] newWall = concat(older.wall, first, count, wall);
+        for(int i = count - first - 1; i >= 0 && i + 1 < newPositions.length; --i) {
+            newElapsed[i] = Math.min(newElapsed[i], newElapsed[i + 1] - millis(newPositions[i + 1] - newPositions[i]));
+        }
+        return new TimeIndex(fillRate, newPositions, newElapsed, newWall);
+    }
+
+    private static long[] concat(long[] older, int from, int to, long[] newer) {
+        final long[] result = Arrays.copyOfRange(older, from, to + newer.length);
+        System.arraycopy(newer, 0, result, to - from, newer.length);
+        return result;
+    }
+
+    /**
+     * @return the same index with the elapsed realtime of segments captured before the current boot (when elapsed
+     * realtime started over) taken from their wall clock times; {@code bootWallMillis} is the wall clock time of the
+     * current boot
+     */
+    TimeIndex onBoot(long bootWallMillis) {
+        final long[] newElapsed = elapsed.clone();
+        for(int i = 0; i < newElapsed.length; ++i) {
+            if(Math.abs(wall[i] - elapsed[i] - bootWallMillis) > BOOT_TOLERANCE_MILLIS) {
+                newElapsed[i] = wall[i] - bootWallMillis;
+            }
+        }
+        return new TimeIndex(fillRate, positions, newElapsed, wall);
+    }
+
+    /**
+     * Segment holding the position; the first one for earlier positions.
+     */
+    private int segmentAt(long position) {
+        final int i = Arrays.binarySearch(positions, position);
+        return Math.max(i >= 0 ? i : -i - 2, 0);
+    }
+
+    private long millis(long bytes) {
+        return bytes * 1000 / fillRate;
+    }
+
+    long elapsedAt(long position) {
+        final int i = segmentAt(position);
+        return elapsed[i] + millis(position - positions[i]);
+    }
+
+    long wallAt(long position) {
+        final int i = segmentAt(position);
+        return wall[i] + millis(position - positions[i]);
+    }
+
+    /**
+     * @return position captured at the elapsed realtime; a time in a gap gives the position where capture went on
+     */
+    long positionAt(long elapsedMillis) {
+        int i = Arrays.binarySearch(elapsed, elapsedMillis);
+        i = Math.max(i >= 0 ? i : -i - 2, 0);
+        final long position = positions[i] + ((elapsedMillis - elapsed[i]) * fillRate / 1000 & ~1);
+        return i + 1 < positions.length ? Math.min(position, positions[i + 1]) : position;
+    }
+
+    /**
+     * @return the first position in {@code [from, to)} where a segment starts, {@code to} if there is none
+     */
+    long nextSegment(long from, long to) {
+        final int i = Arrays.binarySearch(positions, from);
+        final int next = i >= 0 ? i : -i - 1;
+        return next < positions.length && positions[next] < to ? positions[next] : to;
+    }
+
+    /**
+     * @return milliseconds of capture missing between the positions
+     */
+    long gapMillis(long from, long to) {
+        long gaps = 0;
+        for(int i = segmentAt(from) + 1; i < positions.length && positions[i] <= to; ++i) {
+            gaps += gap(i);
+        }
+        return gaps;
+    }
+
+    /**
+     * @return milliseconds of capture missing before segment {@code i} (which is not the first one)
+     */
+    private long gap(int i) {
+        return Math.max(0, elapsed[i] - elapsed[i - 1] - millis(positions[i] - positions[i - 1]));
+    }
+
+    /**
+     * @return milliseconds of capture missing right before the position, 0 unless a segment starts there
+     */
+    long gapBefore(long position) {
+        final int i = Arrays.binarySearch(positions, position);
+        return i > 0 ? gap(i) : 0;
+    }
+
+    /**
+     * @return the first position in {@code [from, to)} where a segment starts after a gap, {@code to} if there is none
+     */
+    long nextGap(long from, long to) {
+        int i = Arrays.binarySearch(positions, from);
+        for(i = Math.max(i >= 0 ? i : -i - 1, 1); i < positions.length && positions[i] < to; ++i) {
+            if(gap(i) > 0) return positions[i];
+        }
+        return to;
+    }
+}
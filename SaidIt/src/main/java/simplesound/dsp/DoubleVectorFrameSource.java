@@ -56,6 +56,14 @@ public class DoubleVectorFrameSource {
         return new NormalizedFrameIterator(pmis, frameSize, shiftAmount, paddingApplied);
     }
 
+    /**
+     * Iterator that cycles through {@code reusedFrames} preallocated frames instead of allocating one per frame. A frame
+     * is only valid until {@code reusedFrames} more frames have been returned.
+     */
+    public Iterator<DoubleVector> getReusingFrameIterator(int reusedFrames) {
+        return new NormalizedFrameIterator(pmis, frameSize, shiftAmount, paddingApplied, reusedFrames);
+    }
+
     public PcmMonoInputStream getPmis() {
         return pmis;
     }
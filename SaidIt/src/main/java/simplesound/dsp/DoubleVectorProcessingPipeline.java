@@ -2,15 +2,146 @@ package simplesound.dsp;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Runs frames from a source through a chain of processors, in place, and hands them to a consumer in source order.
+ * <p>
+ * With a batch size of 1 and no pool, every frame goes through the whole chain before the next one is read and nothing
+ * is copied. Larger batches copy {@code batchSize} frames into buffers of the pipeline and run each processor over the
+ * whole batch before the next one, which keeps the tables of a processor in cache. With a {@link ForkJoinPool} the
+ * frames of a batch are processed in parallel while the next batch is read; processors must then be thread safe.
+ */
 public class DoubleVectorProcessingPipeline  {
 
+    public interface FrameConsumer {
+        /**
+         * @param frame processed frame, only valid during the call
+         */
+        void consume(DoubleVector frame);
+    }
+
     List<DoubleVectorProcessor> processors;
     Iterator<DoubleVector> vectorSource;
+    private final int batchSize;
+    private final ForkJoinPool pool;
 
     public DoubleVectorProcessingPipeline(Iterator<DoubleVector> vectorSource,
                                           List<DoubleVectorProcessor> processors) {
+        this(vectorSource, processors, 1, null);
+    }
+
+    /**
+     * @param batchSize frames processed together
+     * @param pool      pool to process the frames of a batch in parallel, or null to process them on the calling thread
+     */
+    public DoubleVectorProcessingPipeline(Iterator<DoubleVector> vectorSource,
+                                          List<DoubleVectorProcessor> processors,
+                                          int batchSize,
+                                          ForkJoinPool pool) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be larger than zero.");
         this.vectorSource = vectorSource;
         this.processors = processors;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Processes all frames of the source. Returns after the consumer got the last frame.
+     */
+    public void run(FrameConsumer consumer) {
+        if (batchSize == 1 && pool == null) {
+            while (vectorSource.hasNext()) {
+                final DoubleVector frame = vectorSource.next();
+                for (DoubleVectorProcessor processor : processors) {
+                    processor.processInPlace(frame);
+                }
+                consumer.consume(frame);
+            }
+            return;
+        }
+
+        DoubleVector[] batch = new DoubleVector[batchSize];
+        DoubleVector[] next = new DoubleVector[batchSize];
+        int count = fill(batch);
+        while (count > 0) {
+            final ForkJoinTask<Void> task;
+            if (pool != null) {
+                task = pool.submit(new Frames(batch, 0, count));
+            } else {
+                processBatch(batch, count);
+                task = null;
+            }
+            // read the next batch while this one is processed
+            final int nextCount = fill(next);
+            if (task != null) {
+                task.join();
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.consume(batch[i]);
+            }
+            final DoubleVector[] swap = batch;
+            batch = next;
+            next = swap;
+            count = nextCount;
+        }
+    }
+
+    /**
+     * Copies up to a batch of frames from the source into {@code batch}, reusing its vectors.
+     *
+     * @return number of frames copied
+     */
+    private int fill(DoubleVector[] batch) {
+        int count = 0;
+        while (count < batch.length && vectorSource.hasNext()) {
+            final double[] data = vectorSource.next().data;
+            if (batch[count] == null || batch[count].data.length != data.length) {
+                batch[count] = new DoubleVector(new double[data.length]);
+            }
+            System.arraycopy(data, 0, batch[count].data, 0, data.length);
+            count++;
+        }
+        return count;
+    }
+
+    private void processBatch(DoubleVector[] batch, int count) {
+        for (DoubleVectorProcessor processor : processors) {
+            for (int i = 0; i < count; i++) {
+                processor.processInPlace(batch[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the chain over a range of frames of a batch, splitting it in halves across the pool.
+     */
+    private class Frames extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DoubleVector[] batch;
+        private final int from;
+        private final int to;
+
+        Frames(DoubleVector[] batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                for (DoubleVectorProcessor processor : processors) {
+                    processor.processInPlace(batch[from]);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new Frames(batch, from, middle), new Frames(batch, middle, to));
+        }
     }
 }
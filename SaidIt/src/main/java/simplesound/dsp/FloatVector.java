@@ -0,0 +1,32 @@
+package simplesound.dsp;
+
+import java.util.Arrays;
+
+/**
+ * a vector containing float numbers. uses half the memory of {@link DoubleVector}.
+ */
+public class FloatVector {
+
+    final float[] data;
+
+    public FloatVector(float[] data) {
+        if (data == null)
+            throw new IllegalArgumentException("Data cannot be null!");
+        this.data = data;
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    public float[] getData() {
+        return data;
+    }
+
+
+    @Override
+    public String toString() {
+        return Arrays.toString(data);
+    }
+
+}
@@ -0,0 +1,105 @@
+package simplesound.dsp;
+
+/**
+ * Triangular filters spaced evenly on the mel scale, applied to the output of {@link PowerSpectrum}. Each output value
+ * is the energy of one mel band. Bands narrower than the bin spacing may hold no bins and stay at zero.
+ * <p>
+ * Filter weights are computed once. {@link #processInPlace(DoubleVector)} reads the power spectrum from the front of
+ * the frame, leaves the band energies at the front and zeroes the rest. It uses the unused end of the frame as scratch
+ * space, so for frames coming from {@link PowerSpectrum#processInPlace(DoubleVector)} it allocates nothing. An instance
+ * can be shared between threads.
+ */
+public class MelFilterBank implements DoubleVectorProcessor {
+
+    private final int binCount;
+    private final int[] firstBins;
+    private final double[][] weights;
+
+    /**
+     * @param fftSize      size of the frames the power spectrum was computed from
+     * @param sampleRate   sample rate of the audio
+     * @param filterCount  number of mel bands
+     * @param minFrequency lower edge of the first band in Hz
+     * @param maxFrequency upper edge of the last band in Hz, at most half the sample rate
+     */
+    public MelFilterBank(int fftSize, int sampleRate, int filterCount, double minFrequency, double maxFrequency) {
+        if (filterCount < 1)
+            throw new IllegalArgumentException("Filter count must be larger than zero.");
+        if (minFrequency < 0 || maxFrequency <= minFrequency || maxFrequency > sampleRate / 2.0)
+            throw new IllegalArgumentException("Invalid frequency range:" + minFrequency + "-" + maxFrequency);
+        this.binCount = fftSize / 2 + 1;
+        this.firstBins = new int[filterCount];
+        this.weights = new double[filterCount][];
+
+        final double minMel = toMel(minFrequency);
+        final double maxMel = toMel(maxFrequency);
+        final double binWidth = (double) sampleRate / fftSize;
+        for (int m = 0; m < filterCount; m++) {
+            final double left = toFrequency(minMel + (maxMel - minMel) * m / (filterCount + 1));
+            final double center = toFrequency(minMel + (maxMel - minMel) * (m + 1) / (filterCount + 1));
+            final double right = toFrequency(minMel + (maxMel - minMel) * (m + 2) / (filterCount + 1));
+            final int first = (int) Math.ceil(left / binWidth);
+            final int last = Math.min((int) Math.floor(right / binWidth), binCount - 1);
+            final double[] w = new double[Math.max(last - first + 1, 0)];
+            for (int bin = first; bin <= last; bin++) {
+                final double frequency = bin * binWidth;
+                w[bin - first] = frequency <= center
+                        ? (frequency - left) / (center - left)
+                        : (right - frequency) / (right - center);
+            }
+            firstBins[m] = first;
+            weights[m] = w;
+        }
+    }
+
+    public static double toMel(double frequency) {
+        return 2595 * Math.log10(1 + frequency / 700);
+    }
+
+    public static double toFrequency(double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+
+    public int getOutputSize() {
+        return weights.length;
+    }
+
+    public DoubleVector process(DoubleVector input) {
+        final double[] result = new double[weights.length];
+        filter(input.data, result, 0);
+        return new DoubleVector(result);
+    }
+
+    public void processInPlace(DoubleVector input) {
+        final double[] data = input.data;
+        final int bands = weights.length;
+        if (data.length < bands)
+            throw new IllegalArgumentException("Frame of " + data.length + " can't hold " + bands + " bands");
+        if (data.length >= binCount + bands) {
+            // energies go behind the spectrum first - bands read bins that lower bands would overwrite
+            filter(data, data, binCount);
+            System.arraycopy(data, binCount, data, 0, bands);
+        } else {
+            final double[] energies = new double[bands];
+            filter(data, energies, 0);
+            System.arraycopy(energies, 0, data, 0, bands);
+        }
+        for (int i = bands; i < data.length; i++) {
+            data[i] = 0;
+        }
+    }
+
+    private void filter(double[] powers, double[] result, int offset) {
+        if (powers.length < binCount)
+            throw new IllegalArgumentException("Power spectrum of " + powers.length + " bins, expected " + binCount);
+        for (int m = 0; m < weights.length; m++) {
+            final double[] w = weights[m];
+            final int first = firstBins[m];
+            double sum = 0;
+            for (int i = 0; i < w.length; i++) {
+                sum += w[i] * powers[first + i];
+            }
+            result[offset + m] = sum;
+        }
+    }
+}
@@ -5,24 +5,46 @@ import simplesound.pcm.PcmMonoInputStream;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/**
+ * Iterates over frames of {@code frameSize} normalized samples, each starting {@code shiftAmount} samples after the
+ * previous one. With padding, samples left at the end of the stream make up a last frame that is filled with zeros.
+ * <p>
+ * By default every frame is a new vector. When {@code reusedFrames} is set, the iterator cycles through that many
+ * preallocated vectors instead and allocates nothing per frame: a frame returned by {@link #next()} is only valid
+ * until {@code reusedFrames} more frames have been returned. Frames may be modified, e.g. by in-place processors.
+ */
 public class NormalizedFrameIterator implements Iterator<DoubleVector> {
 
     private final PcmMonoInputStream pmis;
     private final int frameSize;
     private final int shiftAmount;
-    //TODO: not applied yet
     private final boolean applyPadding;
+    private final DoubleVector[] reused;
+    private final double[] samples; // samples of the current frame, kept apart from frames handed out
 
-    public NormalizedFrameIterator(PcmMonoInputStream pmis, int frameSize, int shiftAmount, boolean applyPadding) {
+    public NormalizedFrameIterator(PcmMonoInputStream pmis, int frameSize, int shiftAmount, boolean applyPadding,
+                                   int reusedFrames) {
         if (frameSize < 1)
             throw new IllegalArgumentException("Frame size must be larger than zero.");
         if (shiftAmount < 1)
             throw new IllegalArgumentException("Shift size must be larger than zero.");
+        if (reusedFrames < 0)
+            throw new IllegalArgumentException("Reused frame count cannot be negative.");
         this.pmis = pmis;
         this.frameSize = frameSize;
         this.shiftAmount = shiftAmount;
         this.applyPadding = applyPadding;
+        this.samples = new double[frameSize];
+        this.reused = new DoubleVector[reusedFrames];
+        for (int i = 0; i < reusedFrames; i++) {
+            reused[i] = new DoubleVector(new double[frameSize]);
+        }
+    }
+
+    public NormalizedFrameIterator(PcmMonoInputStream pmis, int frameSize, int shiftAmount, boolean applyPadding) {
+        this(pmis, frameSize, shiftAmount, applyPadding, 0);
     }
 
     public NormalizedFrameIterator(PcmMonoInputStream pmis, int frameSize, boolean applyPadding) {
@@ -35,31 +57,64 @@ public class NormalizedFrameIterator implements Iterator<DoubleVector> {
 
     private DoubleVector currentFrame;
     private int frameCounter;
+    private boolean ready; // currentFrame is read but not returned yet
+    private boolean ended;
 
     public boolean hasNext() {
-        double[] data;
+        if (ready)
+            return true;
+        if (ended)
+            return false;
         try {
-            if (frameCounter == 0) {
-                data = pmis.readSamplesNormalized(frameSize);
-                if (data.length < frameSize)
-                    return false;
-                currentFrame = new DoubleVector(data);
-            } else {
-                data = pmis.readSamplesNormalized(shiftAmount);
-                if (data.length < shiftAmount)
-                    return false;
-                double[] frameData = currentFrame.data.clone();
-                System.arraycopy(data, 0, frameData, frameData.length - shiftAmount, shiftAmount);
-                currentFrame = new DoubleVector(frameData);
-            }
+            ready = readFrame();
         } catch (IOException e) {
-            return false;
+            ready = false;
         }
+        if (!ready)
+            ended = true;
+        return ready;
+    }
+
+    private boolean readFrame() throws IOException {
+        final double[] data = samples;
+        int kept = 0;
+        if (frameCounter > 0) {
+            // Samples shared with the previous frame move to the front, new ones are appended.
+            kept = Math.max(frameSize - shiftAmount, 0);
+            System.arraycopy(data, frameSize - kept, data, 0, kept);
+            if (shiftAmount > frameSize && pmis.skipSamples(shiftAmount - frameSize) < shiftAmount - frameSize)
+                return false;
+        }
+        final int read = read(data, kept, frameSize - kept);
+        if (read < frameSize - kept) {
+            if (!applyPadding || read <= 0)
+                return false;
+            for (int i = kept + read; i < frameSize; i++) {
+                data[i] = 0;
+            }
+            ended = true; // the stream is exhausted, this is the last frame
+        }
+        final DoubleVector frame = reused.length == 0
+                ? new DoubleVector(new double[frameSize])
+                : reused[frameCounter % reused.length];
+        System.arraycopy(data, 0, frame.data, 0, frameSize);
+        currentFrame = frame;
         frameCounter++;
         return true;
     }
 
+    private int read(double[] data, int offset, int count) throws IOException {
+        if (pmis.getFormat().getSampleSizeInBits() == 16)
+            return pmis.readSamplesNormalized(data, offset, count);
+        final double[] samples = pmis.readSamplesNormalized(count);
+        System.arraycopy(samples, 0, data, offset, samples.length);
+        return samples.length;
+    }
+
     public DoubleVector next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        ready = false;
         return currentFrame;
     }
 
@@ -0,0 +1,50 @@
+package simplesound.dsp;
+
+/**
+ * Power spectrum |X[k]|^2 of real frames, for bins {@code 0 <= k <= fftSize / 2}.
+ * <p>
+ * {@link #process(DoubleVector)} returns a vector of {@link #getOutputSize()} bins. {@link #processInPlace(DoubleVector)}
+ * allocates nothing: it leaves the bins at the front of the frame and zeroes the rest, so that it can be followed by
+ * other in-place processors such as {@link MelFilterBank}.
+ */
+public class PowerSpectrum implements DoubleVectorProcessor {
+
+    private final RealFft fft;
+
+    public PowerSpectrum(int fftSize) {
+        this.fft = new RealFft(fftSize);
+    }
+
+    public int getOutputSize() {
+        return fft.getSize() / 2 + 1;
+    }
+
+    public DoubleVector process(DoubleVector input) {
+        final double[] data = input.data.clone();
+        powers(data);
+        final double[] result = new double[getOutputSize()];
+        System.arraycopy(data, 0, result, 0, result.length);
+        return new DoubleVector(result);
+    }
+
+    public void processInPlace(DoubleVector input) {
+        powers(input.data);
+    }
+
+    private void powers(double[] data) {
+        fft.transform(data);
+        final int half = fft.getSize() / 2;
+        // Bin k is written to data[k], after data[2k] and data[2k + 1] were read.
+        final double nyquist = data[1] * data[1];
+        data[0] = data[0] * data[0];
+        for (int k = 1; k < half; k++) {
+            final double re = data[2 * k];
+            final double im = data[2 * k + 1];
+            data[k] = re * re + im * im;
+        }
+        data[half] = nyquist;
+        for (int i = half + 1; i < data.length; i++) {
+            data[i] = 0;
+        }
+    }
+}
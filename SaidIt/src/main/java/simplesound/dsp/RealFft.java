@@ -0,0 +1,132 @@
+package simplesound.dsp;
+
+/**
+ * In-place FFT of real frames whose size is a power of two. The frame is treated as half as many complex values,
+ * transformed with a radix-2 FFT and then split into the spectrum of the real frame. Twiddle factors and the bit
+ * reversal permutation are computed once, so transforms allocate nothing.
+ * <p>
+ * The spectrum is packed into the frame: {@code data[0]} holds the real DC bin, {@code data[1]} the real Nyquist bin
+ * and {@code data[2k]}, {@code data[2k + 1]} the real and imaginary part of bin {@code k} for {@code 0 < k < size / 2}.
+ * The transform is not normalized.
+ * <p>
+ * An instance can be shared between threads.
+ */
+public class RealFft implements DoubleVectorProcessor {
+
+    private final int size;
+    private final int half;
+    // pairs of complex indexes to swap for the bit reversal permutation
+    private final int[] swaps;
+    // exp(-2 pi i k / half) for the complex FFT
+    private final double[] cos;
+    private final double[] sin;
+    // exp(-2 pi i k / size) for splitting the complex spectrum
+    private final double[] splitCos;
+    private final double[] splitSin;
+
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two, at least 4:" + size);
+        this.size = size;
+        this.half = size / 2;
+
+        final int bits = Integer.numberOfTrailingZeros(half);
+        int swapCount = 0;
+        final int[] pairs = new int[half];
+        for (int i = 0; i < half; i++) {
+            final int j = Integer.reverse(i) >>> (32 - bits);
+            if (i < j) {
+                pairs[swapCount++] = i;
+                pairs[swapCount++] = j;
+            }
+        }
+        swaps = new int[swapCount];
+        System.arraycopy(pairs, 0, swaps, 0, swapCount);
+
+        cos = new double[half / 2];
+        sin = new double[half / 2];
+        for (int k = 0; k < half / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / half);
+            sin[k] = -Math.sin(2 * Math.PI * k / half);
+        }
+        splitCos = new double[half / 2 + 1];
+        splitSin = new double[half / 2 + 1];
+        for (int k = 0; k <= half / 2; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = -Math.sin(2 * Math.PI * k / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Replaces the frame with its packed spectrum.
+     */
+    public void transform(double[] data) {
+        if (data.length != size)
+            throw new IllegalArgumentException("Frame size " + data.length + " does not match FFT size " + size);
+
+        for (int i = 0; i < swaps.length; i += 2) {
+            final int a = 2 * swaps[i];
+            final int b = 2 * swaps[i + 1];
+            double t = data[a];
+            data[a] = data[b];
+            data[b] = t;
+            t = data[a + 1];
+            data[a + 1] = data[b + 1];
+            data[b + 1] = t;
+        }
+
+        for (int length = 2; length <= half; length <<= 1) {
+            final int step = half / length;
+            final int middle = length / 2;
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < middle; j++) {
+                    final double wr = cos[j * step];
+                    final double wi = sin[j * step];
+                    final int p = 2 * (start + j);
+                    final int q = 2 * (start + j + middle);
+                    final double tr = wr * data[q] - wi * data[q + 1];
+                    final double ti = wr * data[q + 1] + wi * data[q];
+                    data[q] = data[p] - tr;
+                    data[q + 1] = data[p + 1] - ti;
+                    data[p] += tr;
+                    data[p + 1] += ti;
+                }
+            }
+        }
+
+        // X[k] = E + W O and X[half - k] = conj(E - W O), where E and O are the spectra of the even and odd samples.
+        final double dc = data[0];
+        data[0] = dc + data[1];
+        data[1] = dc - data[1];
+        for (int k = 1; k <= half / 2; k++) {
+            final int p = 2 * k;
+            final int q = 2 * (half - k);
+            final double er = (data[p] + data[q]) / 2;
+            final double ei = (data[p + 1] - data[q + 1]) / 2;
+            final double or = (data[p + 1] + data[q + 1]) / 2;
+            final double oi = -(data[p] - data[q]) / 2;
+            final double wr = splitCos[k];
+            final double wi = splitSin[k];
+            final double tr = wr * or - wi * oi;
+            final double ti = wr * oi + wi * or;
+            data[p] = er + tr;
+            data[p + 1] = ei + ti;
+            data[q] = er - tr;
+            data[q + 1] = -(ei - ti);
+        }
+    }
+
+    public DoubleVector process(DoubleVector input) {
+        final double[] data = input.data.clone();
+        transform(data);
+        return new DoubleVector(data);
+    }
+
+    public void processInPlace(DoubleVector input) {
+        transform(input.data);
+    }
+}
@@ -0,0 +1,101 @@
+package simplesound.dsp;
+
+/**
+ * Energy and zero-crossing voice activity detector for 16 bit little endian mono PCM.
+ * <p>
+ * Blocks are split into 20 ms frames. A frame is voiced when its energy is well above the tracked noise floor, or when
+ * it is somewhat above the floor and crosses zero often (unvoiced consonants like "s" or "f" are quiet but noisy). The
+ * noise floor follows quiet frames down immediately and creeps up slowly, so a steady new noise becomes the floor
+ * within seconds while pauses between words keep pulling it back down. Speech is held for a while after the last
+ * voiced frame so that word endings and short pauses are kept.
+ * <p>
+ * Keeps state between blocks and allocates nothing, so it can run on the audio thread. Not thread-safe.
+ */
+public class VoiceActivityDetector {
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int HOLD_MILLIS = 500;
+    // energies are mean squares of samples in [-32768, 32767]
+    private static final double MIN_NOISE_FLOOR = 10; // about -80 dBFS
+    private static final double MIN_SPEECH_ENERGY = 1000; // about -60 dBFS
+    private static final double SPEECH_RATIO = 8; // 9 dB above the floor
+    private static final double CONSONANT_RATIO = 2; // 3 dB above the floor...
+    private static final double CONSONANT_ZERO_CROSSINGS = 0.25; // ...and crossing zero at every fourth sample
+    private static final double FLOOR_RISE = 1.005; // per frame, about 30% per second
+
+    private final int frameSize;
+    private final int holdFrames;
+
+    private double noiseFloor = -1;
+    private int framesSinceSpeech;
+
+    public VoiceActivityDetector(int sampleRate) {
+        this.frameSize = Math.max(sampleRate * FRAME_MILLIS / 1000, 1);
+        this.holdFrames = HOLD_MILLIS / FRAME_MILLIS;
+        this.framesSinceSpeech = holdFrames;
+    }
+
+    /**
+     * Analyses the next block of the stream.
+     *
+     * @return true if any part of the block is speech, or follows speech closely
+     */
+    public boolean isSpeech(byte[] pcm, int offset, int sampleCount) {
+        boolean speech = false;
+        for (int start = 0; start < sampleCount; start += frameSize) {
+            final int end = Math.min(start + frameSize, sampleCount);
+            if (isVoiced(pcm, offset + 2 * start, end - start)) {
+                framesSinceSpeech = 0;
+            } else if (framesSinceSpeech < holdFrames) {
+                framesSinceSpeech++;
+            }
+            speech |= framesSinceSpeech < holdFrames;
+        }
+        return speech;
+    }
+
+    /**
+     * @return samples in a frame
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Analyses the next frame of the stream, without holding speech.
+     *
+     * @return true if the frame is voiced
+     */
+    public boolean isVoiced(byte[] pcm, int offset, int count) {
+        double energy = 0;
+        int crossings = 0;
+        int previous = sample(pcm, offset, 0);
+        for (int i = 0; i < count; i++) {
+            final int x = sample(pcm, offset, i);
+            energy += (double) x * x;
+            if ((x ^ previous) < 0) crossings++;
+            previous = x;
+        }
+        energy /= count;
+        final double zeroCrossingRate = (double) crossings / count;
+
+        if (noiseFloor < 0) {
+            noiseFloor = Math.max(energy, MIN_NOISE_FLOOR);
+        }
+        final boolean voiced = energy >= MIN_SPEECH_ENERGY
+                && (energy > noiseFloor * SPEECH_RATIO
+                || (energy > noiseFloor * CONSONANT_RATIO && zeroCrossingRate > CONSONANT_ZERO_CROSSINGS));
+        if (energy < noiseFloor) {
+            noiseFloor = Math.max(energy, MIN_NOISE_FLOOR);
+        } else {
+            // also during speech - a noise that starts and stays (a fan) must become the new floor
+            noiseFloor *= FLOOR_RISE;
+        }
+        return voiced;
+    }
+
+    private static int sample(byte[] pcm, int offset, int index) {
+        final int i = offset + 2 * index;
+        return (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+    }
+}
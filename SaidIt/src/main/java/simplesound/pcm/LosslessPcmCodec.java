@@ -0,0 +1,337 @@
+package simplesound.pcm;
+
+import java.util.Arrays;
+
+/**
+ * Lossless codec for blocks of 16 bit little endian mono samples, in the spirit of FLAC "fixed" subframes:
+ * every block is predicted with the best of the fixed polynomial predictors (order 0-4) and the residuals are
+ * stored with partitioned Rice coding. Blocks that do not compress are stored verbatim.
+ * <p>
+ * Block layout: predictor order (1 byte), sample count (2 bytes, little endian), then either the raw samples
+ * (verbatim blocks) or a bit stream with the warm-up samples (16 bits each) followed by the residual partitions.
+ * Each partition starts with a 5 bit Rice parameter; parameter 31 marks an escaped partition which stores a 5 bit
+ * width followed by residuals of that width.
+ * <p>
+ * Silence markers (see {@link #encodeSilence}) are blocks made of the header alone; they decode to zeros.
+ * <p>
+ * Instances keep their work buffers between calls, so they are not thread-safe.
+ */
+public class LosslessPcmCodec {
+
+    public static final int MAX_BLOCK_SAMPLES = 65535;
+    private static final int HEADER_SIZE = 3;
+    private static final int VERBATIM = 0xff;
+    private static final int SILENCE = 0xfe;
+    private static final int MAX_ORDER = 4;
+    private static final int PARTITION_SIZE = 256;
+    private static final int ESCAPE = 31;
+    private static final int MAX_RICE_PARAMETER = 30;
+    // Rice coding is used only when it is shorter than escaping the partition, so no quotient is longer than that
+    private static final int MAX_RICE_QUOTIENT = 5 + 32 * PARTITION_SIZE;
+
+    private int[] samples = new int[0];
+    private int[] residuals = new int[0];
+    private byte[] bits = new byte[0];
+
+    /**
+     * @return upper bound for the size of an encoded block of {@code sampleCount} samples.
+     */
+    public static int maxEncodedSize(int sampleCount) {
+        return HEADER_SIZE + sampleCount * 2;
+    }
+
+    /**
+     * Encodes {@code sampleCount} samples read from {@code pcm} into {@code out}.
+     *
+     * @return number of bytes written, at most {@link #maxEncodedSize(int)}.
+     */
+    public int encode(byte[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+        if (sampleCount < 0 || sampleCount > MAX_BLOCK_SAMPLES)
+            throw new IllegalArgumentException("Sample count must be between 0 and " + MAX_BLOCK_SAMPLES + " but it is:" + sampleCount);
+        ensureCapacity(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            samples[i] = (short) ((pcm[offset + 2 * i] & 0xff) | (pcm[offset + 2 * i + 1] << 8));
+        }
+
+        final int order = Math.min(bestOrder(sampleCount), sampleCount);
+        computeResiduals(order, sampleCount);
+
+        final BitWriter writer = new BitWriter(bits);
+        for (int i = 0; i < order; i++) {
+            writer.write(samples[i] & 0xffff, 16);
+        }
+        for (int start = 0; start < sampleCount; start += PARTITION_SIZE) {
+            writePartition(writer, Math.max(start, order), Math.min(start + PARTITION_SIZE, sampleCount));
+        }
+        final int encodedBytes = writer.finish();
+
+        if (encodedBytes >= sampleCount * 2) {
+            writeHeader(out, outOffset, VERBATIM, sampleCount);
+            System.arraycopy(pcm, offset, out, outOffset + HEADER_SIZE, sampleCount * 2);
+            return HEADER_SIZE + sampleCount * 2;
+        }
+        writeHeader(out, outOffset, order, sampleCount);
+        System.arraycopy(bits, 0, out, outOffset + HEADER_SIZE, encodedBytes);
+        return HEADER_SIZE + encodedBytes;
+    }
+
+    /**
+     * Writes a marker for {@code sampleCount} samples of silence into {@code out}. It is decoded as zeros, so this is
+     * the only lossy part of the codec.
+     *
+     * @return number of bytes written.
+     */
+    public static int encodeSilence(int sampleCount, byte[] out, int outOffset) {
+        if (sampleCount < 0 || sampleCount > MAX_BLOCK_SAMPLES)
+            throw new IllegalArgumentException("Sample count must be between 0 and " + MAX_BLOCK_SAMPLES + " but it is:" + sampleCount);
+        writeHeader(out, outOffset, SILENCE, sampleCount);
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return true if the encoded block is a silence marker.
+     */
+    public static boolean isSilence(byte[] encoded, int offset) {
+        return (encoded[offset] & 0xff) == SILENCE;
+    }
+
+    /**
+     * @return number of samples stored in the encoded block.
+     */
+    public static int sampleCount(byte[] encoded, int offset) {
+        return (encoded[offset + 1] & 0xff) | ((encoded[offset + 2] & 0xff) << 8);
+    }
+
+    /**
+     * Decodes a block of {@code length} bytes written by {@link #encode} into little endian samples.
+     *
+     * @return number of decoded samples.
+     * @throws IllegalArgumentException if the block is not a valid encoded block of {@code length} bytes.
+     */
+    public int decode(byte[] encoded, int offset, int length, byte[] pcm, int pcmOffset) {
+        if (length < HEADER_SIZE || offset < 0 || offset + length > encoded.length)
+            throw new IllegalArgumentException("Not an encoded block. Length:" + length);
+        final int order = encoded[offset] & 0xff;
+        final int sampleCount = sampleCount(encoded, offset);
+        if (order == VERBATIM) {
+            if (length < HEADER_SIZE + sampleCount * 2)
+                throw new IllegalArgumentException("Truncated block of " + sampleCount + " samples. Length:" + length);
+            System.arraycopy(encoded, offset + HEADER_SIZE, pcm, pcmOffset, sampleCount * 2);
+            return sampleCount;
+        }
+        if (order == SILENCE) {
+            Arrays.fill(pcm, pcmOffset, pcmOffset + sampleCount * 2, (byte) 0);
+            return sampleCount;
+        }
+        if (order > MAX_ORDER)
+            throw new IllegalArgumentException("Not an encoded block. Predictor order:" + order);
+        ensureCapacity(sampleCount);
+
+        final BitReader reader = new BitReader(encoded, offset + HEADER_SIZE, offset + length);
+        for (int i = 0; i < order; i++) {
+            samples[i] = (short) reader.read(16);
+        }
+        for (int start = 0; start < sampleCount; start += PARTITION_SIZE) {
+            readPartition(reader, Math.max(start, order), Math.min(start + PARTITION_SIZE, sampleCount));
+        }
+        restoreSamples(order, sampleCount);
+
+        for (int i = 0; i < sampleCount; i++) {
+            pcm[pcmOffset + 2 * i] = (byte) samples[i];
+            pcm[pcmOffset + 2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return sampleCount;
+    }
+
+    private void ensureCapacity(int sampleCount) {
+        if (samples.length < sampleCount) {
+            samples = new int[sampleCount];
+            residuals = new int[sampleCount];
+            // residuals need at most 22 bits (with zig-zag) and partitions add 10 bits of parameters
+            bits = new byte[sampleCount * 4 + 64];
+        }
+    }
+
+    private static void writeHeader(byte[] out, int offset, int order, int sampleCount) {
+        out[offset] = (byte) order;
+        out[offset + 1] = (byte) sampleCount;
+        out[offset + 2] = (byte) (sampleCount >> 8);
+    }
+
+    private int bestOrder(int sampleCount) {
+        long error0 = 0, error1 = 0, error2 = 0, error3 = 0, error4 = 0;
+        for (int i = MAX_ORDER; i < sampleCount; i++) {
+            final int x0 = samples[i], x1 = samples[i - 1], x2 = samples[i - 2], x3 = samples[i - 3], x4 = samples[i - 4];
+            error0 += Math.abs(x0);
+            error1 += Math.abs(x0 - x1);
+            error2 += Math.abs(x0 - 2 * x1 + x2);
+            error3 += Math.abs(x0 - 3 * x1 + 3 * x2 - x3);
+            error4 += Math.abs(x0 - 4 * x1 + 6 * x2 - 4 * x3 + x4);
+        }
+        int best = 0;
+        long bestError = error0;
+        if (error1 < bestError) { best = 1; bestError = error1; }
+        if (error2 < bestError) { best = 2; bestError = error2; }
+        if (error3 < bestError) { best = 3; bestError = error3; }
+        if (error4 < bestError) { best = 4; }
+        return best;
+    }
+
+    private void computeResiduals(int order, int sampleCount) {
+        final int[] x = samples;
+        for (int i = order; i < sampleCount; i++) {
+            final int residual;
+            switch (order) {
+                case 0: residual = x[i]; break;
+                case 1: residual = x[i] - x[i - 1]; break;
+                case 2: residual = x[i] - 2 * x[i - 1] + x[i - 2]; break;
+                case 3: residual = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3]; break;
+                default: residual = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4]; break;
+            }
+            residuals[i] = (residual << 1) ^ (residual >> 31); // zig-zag
+        }
+    }
+
+    private void restoreSamples(int order, int sampleCount) {
+        final int[] x = samples;
+        for (int i = order; i < sampleCount; i++) {
+            final int residual = (residuals[i] >>> 1) ^ -(residuals[i] & 1);
+            switch (order) {
+                case 0: x[i] = residual; break;
+                case 1: x[i] = residual + x[i - 1]; break;
+                case 2: x[i] = residual + 2 * x[i - 1] - x[i - 2]; break;
+                case 3: x[i] = residual + 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]; break;
+                default: x[i] = residual + 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]; break;
+            }
+        }
+    }
+
+    private void writePartition(BitWriter writer, int from, int to) {
+        int maxValue = 0;
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            maxValue |= residuals[i];
+            sum += residuals[i];
+        }
+        final int width = 32 - Integer.numberOfLeadingZeros(maxValue);
+        final long escapedBits = 5 + (long) width * (to - from);
+
+        int bestParameter = ESCAPE;
+        long bestBits = escapedBits;
+        for (int k = 0; k <= Math.min(width, MAX_RICE_PARAMETER); k++) {
+            long riceBits = (long) (to - from) * (k + 1);
+            for (int i = from; i < to && riceBits < bestBits; i++) {
+                riceBits += residuals[i] >>> k;
+            }
+            if (riceBits < bestBits) {
+                bestBits = riceBits;
+                bestParameter = k;
+            }
+            if (sum >>> k < to - from) break; // larger parameters only add bits
+        }
+
+        writer.write(bestParameter, 5);
+        if (bestParameter == ESCAPE) {
+            writer.write(width, 5);
+            for (int i = from; i < to; i++) {
+                writer.write(residuals[i], width);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                writer.writeRice(residuals[i], bestParameter);
+            }
+        }
+    }
+
+    private void readPartition(BitReader reader, int from, int to) {
+        final int parameter = reader.read(5);
+        if (parameter == ESCAPE) {
+            final int width = reader.read(5);
+            for (int i = from; i < to; i++) {
+                residuals[i] = reader.read(width);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                residuals[i] = reader.readRice(parameter);
+            }
+        }
+    }
+
+    private static class BitWriter {
+        private final byte[] out;
+        private int position = 0;
+        private long accumulator = 0;
+        private int pending = 0;
+
+        BitWriter(byte[] out) {
+            this.out = out;
+        }
+
+        void write(int value, int count) {
+            if (count == 0) return;
+            accumulator = (accumulator << count) | (value & ((1L << count) - 1));
+            pending += count;
+            while (pending >= 8) {
+                pending -= 8;
+                out[position++] = (byte) (accumulator >>> pending);
+            }
+        }
+
+        void writeRice(int value, int parameter) {
+            int quotient = value >>> parameter;
+            while (quotient >= 31) {
+                write(0, 31);
+                quotient -= 31;
+            }
+            write(1, quotient + 1);
+            write(value, parameter);
+        }
+
+        /**
+         * @return number of bytes written.
+         */
+        int finish() {
+            if (pending > 0) {
+                out[position++] = (byte) (accumulator << (8 - pending));
+                pending = 0;
+            }
+            return position;
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] in;
+        private final int limit;
+        private int position;
+        private long accumulator = 0;
+        private int available = 0;
+
+        BitReader(byte[] in, int offset, int limit) {
+            this.in = in;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        int read(int count) {
+            if (count == 0) return 0;
+            while (available < count) {
+                if (position >= limit)
+                    throw new IllegalArgumentException("Truncated block. Read past byte " + limit);
+                accumulator = (accumulator << 8) | (in[position] & 0xff);
+                position++;
+                available += 8;
+            }
+            available -= count;
+            return (int) ((accumulator >>> available) & ((1L << count) - 1));
+        }
+
+        int readRice(int parameter) {
+            int quotient = 0;
+            while (read(1) == 0) {
+                if (++quotient > MAX_RICE_QUOTIENT)
+                    throw new IllegalArgumentException("Rice quotient longer than " + MAX_RICE_QUOTIENT + " bits");
+            }
+            return (quotient << parameter) | read(parameter);
+        }
+    }
+}
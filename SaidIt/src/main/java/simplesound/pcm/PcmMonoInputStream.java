@@ -54,6 +54,7 @@ public class PcmMonoInputStream extends InputStream implements Closeable {
     }
 
     private static final int BYTE_BUFFER_SIZE = 4096;
+    private byte[] chunk; // reused by the 16 bit read paths
 
     /**
      * reads samples as byte array. if there is not enough data for the amount of samples, remaining data is returned
@@ -102,9 +103,120 @@ public class PcmMonoInputStream extends InputStream implements Closeable {
     }
 
     public double[] readSamplesNormalized(int amount) throws IOException {
+        if (format.getSampleSizeInBits() == 16) {
+            // decode straight into the result, without the intermediate int array
+            final double[] samples = new double[amount];
+            final int read = readSamplesNormalized(samples, 0, amount);
+            if (read == amount)
+                return samples;
+            final double[] result = new double[Math.max(read, 0)];
+            System.arraycopy(samples, 0, result, 0, result.length);
+            return result;
+        }
         return normalize(readSamplesAsIntArray(amount));
     }
 
+    /**
+     * reads up to {@code count} 16 bit samples into the given array. does not allocate.
+     *
+     * @return amount of samples read, or -1 if the end of the stream was reached.
+     * @throws IOException           if there is an IO error.
+     * @throws IllegalStateException if samples are not 16 bit, or the stream ends in the middle of a sample.
+     */
+    public int readSamples(short[] samples, int offset, int count) throws IOException {
+        check16Bit();
+        int read = 0;
+        while (read < count) {
+            final int chunk = readChunk(count - read);
+            if (chunk == 0)
+                break;
+            for (int i = 0; i < chunk; i++) {
+                samples[offset + read + i] = sampleAt(i);
+            }
+            read += chunk;
+        }
+        return (read == 0 && count > 0) ? -1 : read;
+    }
+
+    /**
+     * reads up to {@code count} 16 bit samples into the given array, normalized to [-1, 1]. does not allocate.
+     *
+     * @return amount of samples read, or -1 if the end of the stream was reached.
+     * @throws IOException           if there is an IO error.
+     * @throws IllegalStateException if samples are not 16 bit, or the stream ends in the middle of a sample.
+     */
+    public int readSamplesNormalized(float[] samples, int offset, int count) throws IOException {
+        check16Bit();
+        final float scale = 1f / maxPositiveIntegerForSampleSize;
+        int read = 0;
+        while (read < count) {
+            final int chunk = readChunk(count - read);
+            if (chunk == 0)
+                break;
+            for (int i = 0; i < chunk; i++) {
+                samples[offset + read + i] = sampleAt(i) * scale;
+            }
+            read += chunk;
+        }
+        return (read == 0 && count > 0) ? -1 : read;
+    }
+
+    /**
+     * reads up to {@code count} 16 bit samples into the given array, normalized to [-1, 1]. does not allocate.
+     * values are the same as the ones of {@link #readSamplesNormalized(int)}.
+     *
+     * @return amount of samples read, or -1 if the end of the stream was reached.
+     * @throws IOException           if there is an IO error.
+     * @throws IllegalStateException if samples are not 16 bit, or the stream ends in the middle of a sample.
+     */
+    public int readSamplesNormalized(double[] samples, int offset, int count) throws IOException {
+        check16Bit();
+        int read = 0;
+        while (read < count) {
+            final int chunk = readChunk(count - read);
+            if (chunk == 0)
+                break;
+            for (int i = 0; i < chunk; i++) {
+                samples[offset + read + i] = (double) sampleAt(i) / maxPositiveIntegerForSampleSize;
+            }
+            read += chunk;
+        }
+        return (read == 0 && count > 0) ? -1 : read;
+    }
+
+    private void check16Bit() {
+        if (format.getSampleSizeInBits() != 16)
+            throw new IllegalStateException("Only 16 bit samples can be read this way. Sample size:" + format.getSampleSizeInBits());
+    }
+
+    /**
+     * reads at most {@code maxSamples} 16 bit samples into {@link #chunk}, blocking until they are all read or the
+     * stream ends.
+     *
+     * @return amount of samples read, 0 at the end of the stream.
+     */
+    private int readChunk(int maxSamples) throws IOException {
+        if (chunk == null)
+            chunk = new byte[BYTE_BUFFER_SIZE];
+        final int length = Math.min(maxSamples * 2, chunk.length);
+        int readCount = 0;
+        while (readCount < length) {
+            final int n = dis.read(chunk, readCount, length - readCount);
+            if (n < 0)
+                break;
+            readCount += n;
+        }
+        validateReadCount(readCount);
+        return readCount / 2;
+    }
+
+    private short sampleAt(int index) {
+        final int i = index * 2;
+        if (format.isBigEndian())
+            return (short) ((chunk[i] << 8) | (chunk[i + 1] & 0xff));
+        return (short) ((chunk[i + 1] << 8) | (chunk[i] & 0xff));
+    }
+
     public double[] readSamplesNormalized() throws IOException {
         return normalize(readAll());
     }
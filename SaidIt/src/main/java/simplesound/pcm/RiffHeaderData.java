@@ -9,97 +9,170 @@ import java.io.*;
 class RiffHeaderData {
 
     public static final int PCM_RIFF_HEADER_SIZE = 44;
-    public static final int RIFF_CHUNK_SIZE_INDEX = 4;
-    public static final int RIFF_SUBCHUNK2_SIZE_INDEX = 40;
+
+    // RIFF header followed by a 28 byte JUNK or ds64 chunk, see asRf64ByteArray()
+    public static final int RF64_HEADER_SIZE = PCM_RIFF_HEADER_SIZE + 8 + 28;
+    // largest value of the 32 bit size fields
+    public static final long MAX_RIFF_SIZE = 0xffffffffL;
+
+    private static final int RIFF = 0x52494646;
+    private static final int RF64 = 0x52463634;
+    private static final int WAVE = 0x57415645;
+    private static final int JUNK = 0x4a554e4b;
+    private static final int DS64 = 0x64733634;
+    private static final int FMT = 0x666d7420;
+    private static final int DATA = 0x64617461;
 
     private final PcmAudioFormat format;
-    private final int totalSamplesInByte;
+    private final long totalSamplesInByte;
+    private final long dataOffset;
 
-    public RiffHeaderData(PcmAudioFormat format, int totalSamplesInByte) {
+    public RiffHeaderData(PcmAudioFormat format, long totalSamplesInByte) {
         this.format = format;
         this.totalSamplesInByte = totalSamplesInByte;
+        this.dataOffset = PCM_RIFF_HEADER_SIZE;
     }
 
     public double timeSeconds() {
         return (double) totalSamplesInByte / format.getBytePerSample() / format.getSampleRate();
     }
 
+    /**
+     * Reads the header of a RIFF or RF64 wave file. Chunks other than "ds64", "fmt " and "data" are skipped.
+     */
     public RiffHeaderData(DataInputStream dis) throws IOException {
 
         try {
             byte[] buf4 = new byte[4];
             byte[] buf2 = new byte[2];
 
-            dis.skipBytes(4 + 4 + 4 + 4 + 4 + 2);
-
-            dis.readFully(buf2);
-            final int channels = toInt(buf2, false);
-
             dis.readFully(buf4);
-            final int sampleRate = toInt(buf4, false);
-
-            dis.skipBytes(4 + 2);
-
-            dis.readFully(buf2);
-            final int sampleSizeInBits = toInt(buf2, false);
-
+            final int riffId = toInt(buf4, true);
+            if (riffId != RIFF && riffId != RF64)
+                throw new IOException("Not a RIFF or RF64 file.");
             dis.skipBytes(4);
-
             dis.readFully(buf4);
-            totalSamplesInByte = toInt(buf4, false);
-
-            format = new WavAudioFormat.Builder().
-                    channels(channels).
-                    sampleRate(sampleRate).
-                    sampleSizeInBits(sampleSizeInBits).
-                    build();
+            if (toInt(buf4, true) != WAVE)
+                throw new IOException("Not a wave file.");
+            long offset = 12;
+
+            long ds64DataSize = -1;
+            PcmAudioFormat fmt = null;
+            while (true) {
+                dis.readFully(buf4);
+                final int chunkId = toInt(buf4, true);
+                dis.readFully(buf4);
+                final long chunkSize = toInt(buf4, false) & MAX_RIFF_SIZE;
+                offset += 8;
+                if (chunkId == DATA) {
+                    totalSamplesInByte = (chunkSize == MAX_RIFF_SIZE && ds64DataSize >= 0) ? ds64DataSize : chunkSize;
+                    break;
+                }
+
+                long read = 0;
+                if (chunkId == DS64) {
+                    dis.skipBytes(8); // RIFF size
+                    dis.readFully(buf4);
+                    final long low = toInt(buf4, false) & MAX_RIFF_SIZE;
+                    dis.readFully(buf4);
+                    ds64DataSize = ((long) toInt(buf4, false) << 32) | low;
+                    read = 16;
+                } else if (chunkId == FMT) {
+                    dis.skipBytes(2);
+                    dis.readFully(buf2);
+                    final int channels = toInt(buf2, false);
+                    dis.readFully(buf4);
+                    final int sampleRate = toInt(buf4, false);
+                    dis.skipBytes(4 + 2);
+                    dis.readFully(buf2);
+                    final int sampleSizeInBits = toInt(buf2, false);
+                    read = 16;
+
+                    fmt = new WavAudioFormat.Builder().
+                            channels(channels).
+                            sampleRate(sampleRate).
+                            sampleSizeInBits(sampleSizeInBits).
+                            build();
+                }
+                // chunks are word aligned
+                final long padded = chunkSize + (chunkSize & 1);
+                skipFully(dis, padded - read);
+                offset += padded;
+            }
+            if (fmt == null)
+                throw new IOException("No fmt chunk before the data chunk.");
+            format = fmt;
+            dataOffset = offset;
         } finally {
             IOs.closeSilently(dis);
         }
     }
 
+    private static void skipFully(DataInputStream dis, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = dis.skip(count);
+            if (skipped <= 0) throw new EOFException();
+            count -= skipped;
+        }
+    }
+
     public RiffHeaderData(File file) throws IOException {
-        this(new DataInputStream(new FileInputStream(file)));
+        this(new DataInputStream(new BufferedInputStream(new FileInputStream(file))));
     }
 
     public byte[] asByteArray() {
+        if (totalSamplesInByte + 36 > MAX_RIFF_SIZE)
+            throw new IllegalStateException("Too much data for a RIFF header:" + totalSamplesInByte);
         ByteArrayOutputStream baos = null;
         try {
             baos = new ByteArrayOutputStream();
             // ChunkID (the String "RIFF") 4 Bytes
-            baos.write(toByteArray(0x52494646, true));
+            baos.write(toByteArray(RIFF, true));
             // ChunkSize (Whole file size in byte minus 8 bytes ) , or (4 + (8 + SubChunk1Size) + (8 + SubChunk2Size))
             // little endian 4 Bytes.
-            baos.write(toByteArray(36 + totalSamplesInByte, false));
+            baos.write(toByteArray((int) (36 + totalSamplesInByte), false));
             // Format (the String "WAVE") 4 Bytes big endian
-            baos.write(toByteArray(0x57415645, true));
-
-            // Subchunk1
-            // Subchunk1ID (the String "fmt ") 4 bytes big endian.
-            baos.write(toByteArray(0x666d7420, true));
-            // Subchunk1Size. 16 for the PCM. little endian 4 bytes.
-            baos.write(toByteArray(16, false));
-            // AudioFormat , for PCM = 1, Little endian 2 Bytes.
-            baos.write(toByteArray((short) 1, false));
-            // Number of channels Mono = 1, Stereo = 2  Little Endian , 2 bytes.
-            int channels = format.getChannels();
-            baos.write(toByteArray((short) channels, false));
-            // SampleRate (8000, 44100 etc.) little endian, 4 bytes
-            int sampleRate = format.getSampleRate();
-            baos.write(toByteArray(sampleRate, false));
-            // byte rate (SampleRate * NumChannels * BitsPerSample/8) little endian, 4 bytes.
-            baos.write(toByteArray(channels * sampleRate * format.getBytePerSample(), false));
-            // Block Allign == NumChannels * BitsPerSample/8  The number of bytes for one sample including all channels. LE, 2 bytes
-            baos.write(toByteArray((short) (channels * format.getBytePerSample()), false));
-            // BitsPerSample (8, 16 etc.) LE, 2 bytes
-            baos.write(toByteArray((short) format.getSampleSizeInBits(), false));
-
-            // Subchunk2
-            // SubChunk2ID (String "data") 4 bytes.
-            baos.write(toByteArray(0x64617461, true));
-            // Subchunk2Size    == NumSamples * NumChannels * BitsPerSample/8. This is the number of bytes in the data.
-            // You can also think of this as the size of the read of the subchunk following this number. LE, 4 bytes.
-            baos.write(toByteArray(totalSamplesInByte, false));
+            baos.write(toByteArray(WAVE, true));
+
+            writeFormatAndDataHeader(baos, (int) totalSamplesInByte);
+
+            return baos.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new byte[0];
+        } finally {
+            IOs.closeSilently(baos);
+        }
+    }
+
+    /**
+     * Header of {@link #RF64_HEADER_SIZE} bytes. While the sizes fit in the 32 bit fields this is a plain RIFF header
+     * with a JUNK chunk; otherwise the file becomes RF64 and the JUNK chunk turns into a ds64 chunk holding the 64 bit
+     * sizes. Both take the same space, so the header can be rewritten in place as the file grows.
+     */
+    public byte[] asRf64ByteArray() {
+        final long riffSize = RF64_HEADER_SIZE - 8 + totalSamplesInByte;
+        final boolean rf64 = riffSize > MAX_RIFF_SIZE;
+        ByteArrayOutputStream baos = null;
+        try {
+            baos = new ByteArrayOutputStream();
+            baos.write(toByteArray(rf64 ? RF64 : RIFF, true));
+            baos.write(toByteArray(rf64 ? -1 : (int) riffSize, false));
+            baos.write(toByteArray(WAVE, true));
+
+            baos.write(toByteArray(rf64 ? DS64 : JUNK, true));
+            baos.write(toByteArray(28, false));
+            if (rf64) {
+                writeLong(baos, riffSize);
+                writeLong(baos, totalSamplesInByte);
+                writeLong(baos, totalSamplesInByte / format.getBytePerSample() / format.getChannels());
+                // no table entries
+                baos.write(toByteArray(0, false));
+            } else {
+                baos.write(new byte[28]);
+            }
+
+            writeFormatAndDataHeader(baos, rf64 ? -1 : (int) totalSamplesInByte);
 
             return baos.toByteArray();
         } catch (IOException e) {
@@ -110,18 +183,60 @@ class RiffHeaderData {
         }
     }
 
+    private static void writeLong(ByteArrayOutputStream baos, long value) throws IOException {
+        baos.write(toByteArray((int) value, false));
+        baos.write(toByteArray((int) (value >>> 32), false));
+    }
+
+    private void writeFormatAndDataHeader(ByteArrayOutputStream baos, int dataSize) throws IOException {
+        // Subchunk1
+        // Subchunk1ID (the String "fmt ") 4 bytes big endian.
+        baos.write(toByteArray(FMT, true));
+        // Subchunk1Size. 16 for the PCM. little endian 4 bytes.
+        baos.write(toByteArray(16, false));
+        // AudioFormat , for PCM = 1, Little endian 2 Bytes.
+        baos.write(toByteArray((short) 1, false));
+        // Number of channels Mono = 1, Stereo = 2  Little Endian , 2 bytes.
+        int channels = format.getChannels();
+        baos.write(toByteArray((short) channels, false));
+        // SampleRate (8000, 44100 etc.) little endian, 4 bytes
+        int sampleRate = format.getSampleRate();
+        baos.write(toByteArray(sampleRate, false));
+        // byte rate (SampleRate * NumChannels * BitsPerSample/8) little endian, 4 bytes.
+        baos.write(toByteArray(channels * sampleRate * format.getBytePerSample(), false));
+        // Block Allign == NumChannels * BitsPerSample/8  The number of bytes for one sample including all channels. LE, 2 bytes
+        baos.write(toByteArray((short) (channels * format.getBytePerSample()), false));
+        // BitsPerSample (8, 16 etc.) LE, 2 bytes
+        baos.write(toByteArray((short) format.getSampleSizeInBits(), false));
+
+        // Subchunk2
+        // SubChunk2ID (String "data") 4 bytes.
+        baos.write(toByteArray(DATA, true));
+        // Subchunk2Size    == NumSamples * NumChannels * BitsPerSample/8. This is the number of bytes in the data.
+        // You can also think of this as the size of the read of the subchunk following this number. LE, 4 bytes.
+        // 0xFFFFFFFF in RF64 files, where the size is in the ds64 chunk.
+        baos.write(toByteArray(dataSize, false));
+    }
+
     public PcmAudioFormat getFormat() {
         return format;
     }
 
-    public int getTotalSamplesInByte() {
+    public long getTotalSamplesInByte() {
         return totalSamplesInByte;
     }
 
-    public int getSampleCount() {
+    public long getSampleCount() {
         return totalSamplesInByte / format.getBytePerSample();
     }
 
+    /**
+     * Offset of the first sample in the file.
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
     public String toString() {
         return "[ Format: " + format.toString() + " , totalSamplesInByte:" + totalSamplesInByte + "]";
     }
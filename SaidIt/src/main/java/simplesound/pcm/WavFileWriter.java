@@ -1,67 +1,235 @@
 package simplesound.pcm;
 
-import android.util.Log;
+import org.jcaki.Bytes;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Writes a wav file. Careful that it writes the total amount of the bytes information once the close method
- * is called. It has a counter in it to calculate the samle size.
+ * is called. It has a counter in it to calculate the samle size. Files that grow beyond 4 GB are written as RF64.
+ * <p>
+ * Samples are collected in a direct buffer and written to the file channel in batches: when the buffer is full or
+ * when the flush interval has passed since the last write. The header is patched in place on the same channel when the
+ * writer is closed. The buffer is returned to a small pool on close so that consecutive recordings reuse it.
  */
 public class WavFileWriter implements Closeable {
 
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    private static final int MAX_POOLED_BUFFERS = 2;
+    // Channels copy heap buffers into temporary native memory, so gathering writes take at most this much heap data.
+    private static final int MAX_HEAP_GATHER = 1 << 20;
+    private static final byte[] SILENCE = new byte[4096];
+
     private final WavAudioFormat pcmAudioFormat;
-    private final PcmMonoOutputStream pos;
-    private int totalSampleBytesWritten = 0;
-    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer buffer; // null once the writer is closed and the buffer went back to the pool
+    private final long flushIntervalNanos;
+    private long lastFlushNanos;
+    private long totalSampleBytesWritten = 0;
+    private boolean closed = false;
 
     public WavFileWriter(WavAudioFormat wavAudioFormat, File file) throws IOException {
+        this(wavAudioFormat, file, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param bufferSize          bytes collected before they are written to the file
+     * @param flushIntervalMillis longest time samples can stay in the buffer, 0 writes every call through
+     */
+    public WavFileWriter(WavAudioFormat wavAudioFormat, File file, int bufferSize, long flushIntervalMillis) throws IOException {
         if (wavAudioFormat.isBigEndian())
             throw new IllegalArgumentException("Wav file cannot contain bigEndian sample data.");
         if (wavAudioFormat.getSampleSizeInBits() > 8 && !wavAudioFormat.isSigned())
             throw new IllegalArgumentException("Wav file cannot contain unsigned data for this sampleSize:"
                     + wavAudioFormat.getSampleSizeInBits());
+        if (bufferSize < RiffHeaderData.RF64_HEADER_SIZE)
+            throw new IllegalArgumentException("Buffer size must be at least " + RiffHeaderData.RF64_HEADER_SIZE + " but it is:" + bufferSize);
         this.pcmAudioFormat = wavAudioFormat;
-        this.file = file;
-        this.pos = new PcmMonoOutputStream(wavAudioFormat, file);
-        pos.write(new RiffHeaderData(wavAudioFormat, 0).asByteArray());
+        this.flushIntervalNanos = flushIntervalMillis * 1000000L;
+        this.channel = new FileOutputStream(file).getChannel();
+        this.buffer = obtainBuffer(bufferSize);
+        this.lastFlushNanos = System.nanoTime();
+        buffer.put(new RiffHeaderData(wavAudioFormat, 0).asRf64ByteArray());
+    }
+
+    private static ByteBuffer obtainBuffer(int size) {
+        synchronized (bufferPool) {
+            for (Iterator<ByteBuffer> it = bufferPool.iterator(); it.hasNext(); ) {
+                final ByteBuffer pooled = it.next();
+                if (pooled.capacity() == size) {
+                    it.remove();
+                    pooled.clear();
+                    return pooled;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void recycleBuffer(ByteBuffer buffer) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() == MAX_POOLED_BUFFERS) {
+                bufferPool.removeFirst();
+            }
+            bufferPool.addLast(buffer);
+        }
     }
 
     public WavFileWriter write(byte[] bytes) throws IOException {
-        checkLimit(totalSampleBytesWritten, bytes.length);
-        pos.write(bytes);
-        totalSampleBytesWritten += bytes.length;
-        return this;
+        return write(bytes, 0, bytes.length);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Wav file writer is closed");
     }
 
     public WavFileWriter write(byte[] bytes, int offset, int count) throws IOException {
-        checkLimit(totalSampleBytesWritten, count);
-        pos.write(bytes, offset, count);
+        checkOpen();
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            final int length = Math.min(count, buffer.remaining());
+            buffer.put(bytes, offset, length);
+            offset += length;
+            count -= length;
+            totalSampleBytesWritten += length;
+        }
+        flushIfDue();
+        return this;
+    }
+
+    /**
+     * Writes the buffered data followed by the remaining bytes of {@code buffers} with a gathering write. Direct
+     * buffers (like memory-mapped history) are written without copying. The positions of the given buffers are not
+     * changed.
+     */
+    public WavFileWriter write(ByteBuffer[] buffers) throws IOException {
+        checkOpen();
+        long count = 0;
+        for (ByteBuffer source : buffers) {
+            count += source.remaining();
+        }
+        final List<ByteBuffer> batch = new ArrayList<ByteBuffer>(buffers.length + 1);
+        buffer.flip();
+        try {
+            batch.add(buffer);
+            int heapBytes = 0;
+            for (ByteBuffer source : buffers) {
+                final ByteBuffer view = source.duplicate();
+                if (view.isDirect()) {
+                    batch.add(view);
+                    continue;
+                }
+                while (view.hasRemaining()) {
+                    if (heapBytes == MAX_HEAP_GATHER) {
+                        gather(batch);
+                        heapBytes = 0;
+                    }
+                    final int length = Math.min(view.remaining(), MAX_HEAP_GATHER - heapBytes);
+                    final ByteBuffer piece = view.duplicate();
+                    piece.limit(view.position() + length);
+                    batch.add(piece);
+                    view.position(view.position() + length);
+                    heapBytes += length;
+                }
+            }
+            gather(batch);
+        } finally {
+            // the buffer is flipped for the gather - it has to take samples again even if the gather failed
+            buffer.clear();
+            lastFlushNanos = System.nanoTime();
+        }
         totalSampleBytesWritten += count;
         return this;
     }
 
-    private void checkLimit(int total, int toAdd) {
-        final long result = total + toAdd;
-        if (result >= Integer.MAX_VALUE) {
-            throw new IllegalStateException("Size of bytes is too big:" + result);
+    private void gather(List<ByteBuffer> batch) throws IOException {
+        final ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        long remaining = 0;
+        for (ByteBuffer b : buffers) {
+            remaining += b.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Appends {@code count} bytes of silence. Silence longer than the buffer is skipped over in the file instead of
+     * written, which leaves a hole that reads as zeros and takes no storage where the file system supports that.
+     */
+    public WavFileWriter writeSilence(long count) throws IOException {
+        checkOpen();
+        if (count >= buffer.capacity()) {
+            flush();
+            channel.position(channel.position() + count);
+            totalSampleBytesWritten += count;
+            return this;
+        }
+        while (count > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            final int length = (int) Math.min(count, Math.min(buffer.remaining(), SILENCE.length));
+            buffer.put(SILENCE, 0, length);
+            count -= length;
+            totalSampleBytesWritten += length;
+        }
+        flushIfDue();
+        return this;
+    }
+
+    /**
+     * Replaces {@code count} bytes of samples that were already written, starting at {@code sampleOffset}, with
+     * silence.
+     */
+    public void overwriteWithSilence(long sampleOffset, long count) throws IOException {
+        if (sampleOffset < 0 || count < 0 || sampleOffset + count > totalSampleBytesWritten)
+            throw new IllegalArgumentException("Can't overwrite " + count + " B at " + sampleOffset + " of " + totalSampleBytesWritten + " B");
+        flush();
+        final ByteBuffer silence = ByteBuffer.allocate((int) Math.min(count, buffer.capacity()));
+        long position = RiffHeaderData.RF64_HEADER_SIZE + sampleOffset;
+        final long end = position + count;
+        while (position < end) {
+            silence.clear();
+            silence.limit((int) Math.min(silence.capacity(), end - position));
+            while (silence.hasRemaining()) {
+                position += channel.write(silence, position);
+            }
         }
     }
 
     public WavFileWriter write(int[] samples) throws IOException {
         final int bytePerSample = pcmAudioFormat.getBytePerSample();
-        checkLimit(totalSampleBytesWritten, samples.length * bytePerSample);
-        pos.write(samples);
-        totalSampleBytesWritten += samples.length * bytePerSample;
-        return this;
+        return write(Bytes.toByteArray(samples, samples.length, bytePerSample, false));
     }
 
     public WavFileWriter write(short[] samples) throws IOException {
-        checkLimit(totalSampleBytesWritten, samples.length * 2);
-        pos.write(samples);
+        checkOpen();
+        for (short sample : samples) {
+            if (buffer.remaining() < 2) {
+                flush();
+            }
+            buffer.putShort(sample);
+        }
         totalSampleBytesWritten += samples.length * 2;
+        flushIfDue();
         return this;
     }
 
@@ -69,9 +237,48 @@ public class WavFileWriter implements Closeable {
         return this;
     }
 
+    private void flushIfDue() throws IOException {
+        if (System.nanoTime() - lastFlushNanos >= flushIntervalNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered samples to the file.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        lastFlushNanos = System.nanoTime();
+    }
+
     public void close() throws IOException {
-        pos.close();
-        PcmAudioHelper.modifyRiffSizeData(file, totalSampleBytesWritten);
+        if (closed) return;
+        try {
+            flush();
+            // silence skipped over at the end still has to make the file longer
+            final long end = channel.position();
+            if (channel.size() < end) {
+                final ByteBuffer last = ByteBuffer.allocate(1);
+                while (last.hasRemaining()) {
+                    channel.write(last, end - 1);
+                }
+            }
+            // becomes an RF64 header if the file grew beyond the RIFF limit of 4 GB
+            final ByteBuffer header = ByteBuffer.wrap(new RiffHeaderData(pcmAudioFormat, totalSampleBytesWritten).asRf64ByteArray());
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } finally {
+            closed = true;
+            channel.close();
+            recycleBuffer(buffer);
+            buffer = null;
+        }
     }
 
     public PcmAudioFormat getWavFormat() {
@@ -79,7 +286,7 @@ public class WavFileWriter implements Closeable {
     }
 
 
-    public int getTotalSampleBytesWritten() {
+    public long getTotalSampleBytesWritten() {
         return totalSampleBytesWritten;
     }
-}
+}
\ No newline at end of file
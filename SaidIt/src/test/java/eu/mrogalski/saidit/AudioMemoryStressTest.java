@@ -0,0 +1,234 @@
+package eu.mrogalski.saidit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dumps 10 minutes of history with two readers while the writer keeps capturing at full speed and overtakes them, and
+ * checks that no reader ever gets a torn byte. Every 4 bytes of the test audio hold their own position / 4, so each
+ * piece handed to a reader tells where it comes from and whether it is intact.
+ */
+public class AudioMemoryStressTest {
+
+    private static final int BYTE_RATE = 44100 * 2;
+    private static final long DUMP_SIZE = 10L * 60 * BYTE_RATE;
+    private static final long RUN_MILLIS = 3000;
+
+    private File backingFile;
+
+    @After
+    public void tearDown() {
+        if (backingFile != null) {
+            backingFile.delete();
+        }
+    }
+
+    @Test
+    public void heap() throws Exception {
+        stress(new AudioMemory(), true);
+    }
+
+    @Test
+    public void mapped() throws Exception {
+        final AudioMemory memory = new AudioMemory();
+        backingFile = File.createTempFile("stress", ".pcm");
+        memory.setBackingFile(backingFile);
+        stress(memory, true);
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        stress(new CompressedAudioMemory(), false);
+    }
+
+    @Test
+    public void switchesMemoryWhileCapturing() throws Exception {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(DUMP_SIZE);
+        final Writer writer = new Writer(memory);
+        while (memory.getEndPosition() < DUMP_SIZE) {
+            memory.fill(writer);
+        }
+
+        // the bulk is encoded in another thread while capture goes on, the rest by the writer
+        final CompressedAudioMemory replacement = new CompressedAudioMemory();
+        replacement.allocate(DUMP_SIZE);
+        final long copied = memory.getEndPosition();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread copier = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    replacement.fillFrom(memory, memory.getStartPosition(), copied);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        copier.start();
+        while (copier.isAlive()) {
+            memory.fill(writer);
+        }
+        copier.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        replacement.fillFrom(memory, copied, memory.getEndPosition());
+        replacement.takeTimes(memory);
+        assertTrue("nothing was captured meanwhile", memory.getEndPosition() > copied);
+
+        final Checker checker = new Checker();
+        checker.start(0, memory.getEndPosition());
+        replacement.read(0, checker);
+        assertEquals(memory.getEndPosition(), checker.next);
+        assertTrue("history was lost", checker.verified.get() > DUMP_SIZE / 2);
+        memory.allocate(0);
+        replacement.allocate(0);
+    }
+
+    private static void stress(final AudioMemory memory, boolean windows) throws Exception {
+        memory.allocate(DUMP_SIZE);
+        final Writer writer = new Writer(memory);
+        while (memory.getEndPosition() < DUMP_SIZE) {
+            memory.fill(writer);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Checker readChecker = new Checker();
+        final Checker windowChecker = new Checker();
+        final Thread[] readers = {
+                new Reader(memory, failure, readChecker, false),
+                new Reader(memory, failure, windowChecker, windows)
+        };
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        while (System.currentTimeMillis() < end && failure.get() == null) {
+            memory.fill(writer);
+        }
+        for (Thread reader : readers) {
+            reader.interrupt();
+            reader.join();
+        }
+        memory.allocate(0);
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue("nothing was read intact", readChecker.verified.get() > 0 && windowChecker.verified.get() > 0);
+    }
+
+    /**
+     * Captures the test audio in reads of random length, like AudioRecord does.
+     */
+    private static class Writer implements AudioMemory.Consumer {
+        private final AudioMemory memory;
+        private final Random random = new Random(1);
+        private long position = 0;
+
+        Writer(AudioMemory memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            final int length = Math.min(count, 4 * (1 + random.nextInt(BYTE_RATE / 4))) & ~3;
+            final ByteBuffer target = ByteBuffer.wrap(array, offset, length);
+            while (target.hasRemaining()) {
+                target.putInt((int) (position / 4));
+                position += 4;
+            }
+            return length;
+        }
+    }
+
+    private static class Reader extends Thread {
+        private final AudioMemory memory;
+        private final AtomicReference<Throwable> failure;
+        private final Checker checker;
+        private final boolean windows;
+
+        Reader(AudioMemory memory, AtomicReference<Throwable> failure, Checker checker, boolean windows) {
+            this.memory = memory;
+            this.failure = failure;
+            this.checker = checker;
+            this.windows = windows;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    final long to = memory.getEndPosition();
+                    final long from = to - DUMP_SIZE;
+                    checker.start(from, to);
+                    if (windows) {
+                        readWindow(from, to);
+                    } else {
+                        memory.read(from, to, checker);
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void readWindow(long from, long to) throws IOException {
+            final AudioMemory.Window window = memory.window(from, to);
+            final byte[] copy = new byte[window.length()];
+            int copied = 0;
+            for (ByteBuffer buffer : window.buffers) {
+                final int length = buffer.remaining();
+                buffer.duplicate().get(copy, copied, length);
+                copied += length;
+            }
+            // whatever the writer may have overwritten meanwhile is not used
+            final int overwritten = (window.overwritten() + 3) & ~3;
+            if (overwritten < copy.length) {
+                checker.consume(copy, overwritten, copy.length - overwritten);
+            }
+        }
+    }
+
+    /**
+     * Checks that the pieces of one dump are intact, in order and within the dumped range.
+     */
+    private static class Checker implements AudioMemory.Consumer {
+        final AtomicLong verified = new AtomicLong();
+        private long from;
+        private long to;
+        private long next;
+
+        void start(long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.next = from;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            assertEquals("piece of " + count + " B is not whole samples of the test audio", 0, count % 4);
+            final ByteBuffer piece = ByteBuffer.wrap(array, offset, count);
+            final long start = 4L * piece.getInt(offset);
+            assertTrue("piece at " + start + " is out of order or outside of [" + from + ", " + to + ")",
+                    start >= next && start >= from && start + count <= to);
+            for (int i = 0; i < count; i += 4) {
+                assertEquals("torn read at " + (start + i), (int) ((start + i) / 4), piece.getInt(offset + i));
+            }
+            next = start + count;
+            verified.addAndGet(count);
+            return count;
+        }
+    }
+}
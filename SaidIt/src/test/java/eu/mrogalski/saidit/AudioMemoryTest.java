@@ -0,0 +1,265 @@
+package eu.mrogalski.saidit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioMemoryTest {
+
+    private static final int CHUNK_SIZE = AudioMemory.CHUNK_SIZE;
+
+    private File directory;
+    private File backingFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("memory", "");
+        directory.delete();
+        directory.mkdir();
+        backingFile = new File(directory, "history");
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void roundsItsSizeUpToChunks() {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(1);
+        assertEquals(CHUNK_SIZE, memory.getAllocatedMemorySize());
+        memory.allocate(CHUNK_SIZE + 1);
+        assertEquals(2 * CHUNK_SIZE, memory.getAllocatedMemorySize());
+        memory.allocate(0);
+        assertEquals(0, memory.getAllocatedMemorySize());
+    }
+
+    @Test
+    public void readsWhatWasFilled() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(CHUNK_SIZE);
+        final Writer writer = new Writer();
+        writer.fill(memory, 1000);
+
+        assertEquals(1000, memory.countFilled());
+        assertArrayEquals(writer.history(0, 1000), read(memory, 0));
+        assertArrayEquals(writer.history(100, 1000), read(memory, 100));
+        assertEquals(0, read(memory, 1000).length);
+        memory.allocate(0);
+    }
+
+    @Test
+    public void overwritesTheOldestHistoryWhenFull() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(CHUNK_SIZE);
+        final Writer writer = new Writer();
+        writer.fill(memory, CHUNK_SIZE + 1000);
+
+        assertEquals(CHUNK_SIZE, memory.countFilled());
+        assertArrayEquals(writer.history(1000, CHUNK_SIZE + 1000), read(memory, 0));
+        // the oldest bytes handed out are the first ones past the end of the ring
+        assertArrayEquals(writer.history(CHUNK_SIZE, CHUNK_SIZE + 1000), read(memory, CHUNK_SIZE - 1000));
+        memory.allocate(0);
+    }
+
+    @Test
+    public void keepsTheNewestHistoryWhenShrunk() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(2 * CHUNK_SIZE);
+        final Writer writer = new Writer();
+        writer.fill(memory, CHUNK_SIZE + CHUNK_SIZE / 2);
+        memory.allocate(CHUNK_SIZE);
+        writer.fill(memory, 1000);
+
+        final byte[] history = read(memory, 0);
+        assertTrue(history.length > 0 && history.length <= CHUNK_SIZE);
+        assertEquals(history.length, memory.countFilled());
+        assertArrayEquals(writer.history(writer.position - history.length, writer.position), history);
+        memory.allocate(0);
+    }
+
+    @Test
+    public void holdsNothingWithoutMemory() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.fill(new Writer());
+        assertEquals(0, memory.countFilled());
+        assertEquals(0, read(memory, 0).length);
+    }
+
+    @Test
+    public void takesChunksPreparedAheadOfNeed() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.setBackingFile(backingFile);
+        memory.allocate(2 * CHUNK_SIZE);
+
+        memory.prepareChunk();
+        assertTrue(chunkFile(0).exists());
+        fill(memory, 1000, (byte) 1);
+        memory.prepareChunk();
+        assertTrue(chunkFile(1).exists());
+        // the prepared chunk is the one the writer takes next
+        final Object prepared = fileKey(chunkFile(1));
+        fill(memory, CHUNK_SIZE, (byte) 2);
+        assertEquals(prepared, fileKey(chunkFile(1)));
+        assertFalse(chunkFile(2).exists());
+
+        // the ring is full - nothing more is needed
+        memory.prepareChunk();
+        assertFalse(chunkFile(2).exists());
+        assertEquals(CHUNK_SIZE + 1000, memory.countFilled());
+
+        memory.allocate(0);
+        assertFalse(chunkFile(0).exists());
+        assertFalse(chunkFile(1).exists());
+    }
+
+    @Test
+    public void growsWithChunksPreparedInAnotherThread() throws Exception {
+        final int chunks = 8;
+        final AudioMemory memory = new AudioMemory();
+        memory.setBackingFile(backingFile);
+        memory.allocate((long) chunks * CHUNK_SIZE);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread preparer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        memory.prepareChunk();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        preparer.start();
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            fill(memory, CHUNK_SIZE, (byte) chunk);
+        }
+        done.set(true);
+        preparer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // every chunk got a file of its own
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            assertTrue(chunkFile(chunk).exists());
+        }
+        final byte[] history = read(memory);
+        assertEquals((long) chunks * CHUNK_SIZE, history.length);
+        for (int chunk = 0; chunk < chunks; ++chunk) {
+            final byte[] expected = new byte[CHUNK_SIZE];
+            Arrays.fill(expected, (byte) chunk);
+            assertArrayEquals(expected, Arrays.copyOfRange(history, chunk * CHUNK_SIZE, (chunk + 1) * CHUNK_SIZE));
+        }
+        memory.allocate(0);
+    }
+
+    /**
+     * Test audio where every byte tells its own position.
+     */
+    private static class Writer implements AudioMemory.Consumer {
+        long position = 0;
+        private long remaining = 0;
+
+        static byte at(long position) {
+            return (byte) (position % 251);
+        }
+
+        void fill(AudioMemory memory, long count) throws IOException {
+            remaining = count;
+            while (remaining > 0) {
+                memory.fill(this);
+            }
+        }
+
+        byte[] history(long from, long to) {
+            final byte[] history = new byte[(int) (to - from)];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = at(from + i);
+            }
+            return history;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            final int filled = (int) Math.min(count, remaining);
+            for (int i = 0; i < filled; i++) {
+                array[offset + i] = at(position++);
+            }
+            remaining -= filled;
+            return filled;
+        }
+    }
+
+    private File chunkFile(int number) {
+        return new File(backingFile.getPath() + "." + number);
+    }
+
+    private static Object fileKey(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private static void fill(AudioMemory memory, int count, final byte value) throws IOException {
+        final int[] remaining = {count};
+        while (remaining[0] > 0) {
+            memory.fill(new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int length) {
+                    final int filled = Math.min(length, remaining[0]);
+                    Arrays.fill(array, offset, offset + filled, value);
+                    remaining[0] -= filled;
+                    return filled;
+                }
+            });
+        }
+    }
+
+    private static byte[] read(AudioMemory memory) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memory.read(memory.getStartPosition(), memory.getEndPosition(), new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        return out.toByteArray();
+    }
+
+    private static byte[] read(AudioMemory memory, int skipBytes) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memory.read(skipBytes, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        return out.toByteArray();
+    }
+}
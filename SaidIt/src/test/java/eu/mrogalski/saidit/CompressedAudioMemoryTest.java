@@ -0,0 +1,247 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import simplesound.dsp.VoiceActivityDetector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedAudioMemoryTest {
+
+    private static final int BLOCK_SIZE = CompressedAudioMemory.BLOCK_SIZE;
+
+    @Test
+    public void readsBackWhatWasFilled() throws IOException {
+        final CompressedAudioMemory memory = new CompressedAudioMemory();
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+        final Writer writer = new Writer();
+        // the last 1000 bytes are still collected for the next block
+        writer.fill(memory, 5 * BLOCK_SIZE + 1000);
+
+        assertEquals(5 * BLOCK_SIZE + 1000, memory.countFilled());
+        assertArrayEquals(writer.history(0, writer.position), read(memory, 0));
+        assertArrayEquals(writer.history(BLOCK_SIZE + 100, writer.position), read(memory, BLOCK_SIZE + 100));
+        assertArrayEquals(writer.history(5 * BLOCK_SIZE + 10, writer.position), read(memory, 5 * BLOCK_SIZE + 10));
+        memory.allocate(0);
+    }
+
+    @Test
+    public void dropsTheOldestBlocksWhenFull() throws IOException {
+        final CompressedAudioMemory memory = new CompressedAudioMemory();
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+        final Writer writer = new Writer();
+        // the test audio doesn't compress, so this is more than the ring holds
+        writer.fill(memory, 500L * BLOCK_SIZE + 1000);
+
+        final byte[] history = read(memory, 0);
+        assertTrue(history.length > 0 && history.length < 250 * BLOCK_SIZE);
+        assertEquals(1000, history.length % BLOCK_SIZE);
+        assertEquals(history.length, memory.countFilled());
+        assertArrayEquals(writer.history(writer.position - history.length, writer.position), history);
+        memory.allocate(0);
+    }
+
+    @Test
+    public void keepsBlocksWithoutMemoryAsSilence() throws IOException {
+        final CompressedAudioMemory memory = new CompressedAudioMemory();
+        // chunks can't be mapped in a directory that doesn't exist
+        final File missing = File.createTempFile("missing", "");
+        missing.delete();
+        memory.setBackingFile(new File(missing, "history"));
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+
+        fill(memory, 1000);
+        assertEquals(1000, memory.getEndPosition());
+        fill(memory, BLOCK_SIZE - 1000);
+        // the block couldn't be stored, but the end doesn't go back
+        assertEquals(BLOCK_SIZE, memory.getEndPosition());
+        assertEquals(0, memory.getStartPosition());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memory.read(0, memory.getEndPosition(), new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        assertArrayEquals(new byte[BLOCK_SIZE], out.toByteArray());
+        memory.allocate(0);
+    }
+
+    @Test
+    public void clearDropsHistoryAndTheStagedBlock() throws IOException {
+        final CompressedAudioMemory memory = new CompressedAudioMemory();
+        memory.setFillRate(2 * 8000);
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+        fill(memory, BLOCK_SIZE);
+        fill(memory, 1000);
+
+        memory.clear();
+        // the staged block goes too, and the next one starts after it
+        assertEquals(2 * BLOCK_SIZE, memory.getEndPosition());
+        assertEquals(0, memory.countFilled());
+        assertEquals(0, memory.getAllocatedMemorySize());
+
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+        fill(memory, BLOCK_SIZE);
+        assertEquals(2 * BLOCK_SIZE, memory.getStartPosition());
+        assertEquals(3 * BLOCK_SIZE, memory.getEndPosition());
+        assertEquals(0, memory.getGapMillis(2 * BLOCK_SIZE, 3 * BLOCK_SIZE));
+        memory.allocate(0);
+    }
+
+    @Test
+    public void readsBlocksWithoutSpeechBackAsZeros() throws IOException {
+        final CompressedAudioMemory memory = new CompressedAudioMemory();
+        memory.setFillRate(2 * 16000);
+        memory.setSilenceDetector(new VoiceActivityDetector(16000));
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+
+        final Random random = new Random(5);
+        final byte[][] blocks = new byte[7][];
+        blocks[0] = noise(random);
+        blocks[1] = tone();
+        blocks[2] = noise(random); // the two blocks after the tone are still held as speech
+        blocks[3] = noise(random);
+        blocks[4] = noise(random);
+        blocks[5] = noise(random);
+        blocks[6] = tone();
+        long markers = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            final long before = memory.writtenSequence();
+            fill(memory, blocks[b]);
+            if (b == 4 || b == 5) {
+                markers += memory.writtenSequence() - before;
+            }
+        }
+        assertEquals(blocks.length * BLOCK_SIZE, memory.getEndPosition());
+
+        final byte[] silence = new byte[BLOCK_SIZE];
+        final byte[][] expected = {silence, blocks[1], blocks[2], blocks[3], silence, silence, blocks[6]};
+        final byte[] history = read(memory, 0, memory.getEndPosition());
+        for (int b = 0; b < blocks.length; b++) {
+            assertArrayEquals("block " + b, expected[b],
+                    Arrays.copyOfRange(history, b * BLOCK_SIZE, (b + 1) * BLOCK_SIZE));
+        }
+        // a read that starts and ends within silent blocks
+        assertArrayEquals(Arrays.copyOfRange(history, 4 * BLOCK_SIZE + 100, 5 * BLOCK_SIZE + 50),
+                read(memory, 4 * BLOCK_SIZE + 100, 5 * BLOCK_SIZE + 50));
+        // silence markers take a few bytes
+        assertTrue(markers < 32);
+        memory.allocate(0);
+    }
+
+    private static byte[] read(AudioMemory memory, long from, long to) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memory.read(from, to, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        return out.toByteArray();
+    }
+
+    private static void fill(AudioMemory memory, final byte[] block) throws IOException {
+        memory.fill(new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int length) {
+                System.arraycopy(block, 0, array, offset, block.length);
+                return block.length;
+            }
+        });
+    }
+
+    /**
+     * Background noise of a quiet room.
+     */
+    private static byte[] noise(Random random) {
+        final byte[] pcm = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE / 2; i++) {
+            final int sample = random.nextInt(41) - 20;
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] tone() {
+        final byte[] pcm = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE / 2; i++) {
+            final int sample = (int) (8000 * Math.sin(2 * Math.PI * 440 * i / 16000));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static void fill(AudioMemory memory, final int count) throws IOException {
+        memory.fill(new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int length) {
+                Arrays.fill(array, offset, offset + count, (byte) 0x55);
+                return count;
+            }
+        });
+    }
+
+    /**
+     * Test audio that tells its own position and doesn't compress, handed out in pieces of varying length.
+     */
+    private static class Writer implements AudioMemory.Consumer {
+        long position = 0;
+        private long remaining = 0;
+
+        static byte at(long position) {
+            final long mixed = position * 0x9E3779B97F4A7C15L;
+            return (byte) (((mixed ^ (mixed >>> 29)) * 0xBF58476D1CE4E5B9L) >>> 56);
+        }
+
+        void fill(AudioMemory memory, long count) throws IOException {
+            remaining = count;
+            while (remaining > 0) {
+                memory.fill(this);
+            }
+        }
+
+        byte[] history(long from, long to) {
+            final byte[] history = new byte[(int) (to - from)];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = at(from + i);
+            }
+            return history;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            final int filled = (int) Math.min(Math.min(count, 3000), remaining);
+            for (int i = 0; i < filled; i++) {
+                array[offset + i] = at(position++);
+            }
+            remaining -= filled;
+            return filled;
+        }
+    }
+
+    private static byte[] read(AudioMemory memory, int skipBytes) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        memory.read(skipBytes, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,320 @@
+package eu.mrogalski.saidit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistorySpillTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_SIZE = CompressedAudioMemory.BLOCK_SIZE;
+    private static final int FILL_RATE = 2 * SAMPLE_RATE;
+    private static final long WALL = 1700000000000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("spill", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws IOException {
+        final HistorySpill spill = new HistorySpill(file, 100L * BLOCK_SIZE, SAMPLE_RATE);
+        final long end = appendInPieces(spill, 0, 10 * BLOCK_SIZE + 1000, new Random(1));
+        assertEquals(0, spill.getStart());
+        assertEquals(end, spill.getEnd());
+        assertHistory(spill, 0, end);
+        // ranges that start and end inside blocks, and ranges outside of the history
+        assertHistory(spill, BLOCK_SIZE - 6, 3 * BLOCK_SIZE + 10);
+        assertHistory(spill, 9 * BLOCK_SIZE + 2, end);
+        assertEquals(0, read(spill, end, end + 1000).length);
+        spill.close();
+    }
+
+    @Test
+    public void dropsOldestHistoryWhenItWrapsAround() throws IOException {
+        final HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        assertEquals(8L * BLOCK_SIZE, spill.getCapacity());
+        final long end = appendInPieces(spill, 0, 30 * BLOCK_SIZE + 123, new Random(2));
+        assertEquals(end, spill.getEnd());
+        assertEquals(22L * BLOCK_SIZE, spill.getStart());
+        assertHistory(spill, spill.getStart(), end);
+        // history that was dropped is left out
+        assertEquals(end - spill.getStart(), read(spill, 0, end).length);
+        spill.close();
+    }
+
+    @Test
+    public void dropsMoreWhenAudioDoesNotCompress() throws IOException {
+        final HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        long end = appendInPieces(spill, 0, 20 * BLOCK_SIZE, new Random(3));
+        // noise is stored verbatim, so the log sized for compressed audio holds fewer frames than the index
+        final byte[] noise = new byte[20 * BLOCK_SIZE];
+        new Random(4).nextBytes(noise);
+        spill.append(noise, 0, noise.length);
+        end += noise.length;
+        assertEquals(end, spill.getEnd());
+        assertTrue("start " + spill.getStart(), spill.getStart() > end - 8L * BLOCK_SIZE);
+        final byte[] kept = read(spill, spill.getStart(), end);
+        assertArrayEquals(Arrays.copyOfRange(noise, (int) (spill.getStart() - 20L * BLOCK_SIZE), noise.length), kept);
+        spill.close();
+    }
+
+    @Test
+    public void recoversHistoryWhenReopened() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        final long end = appendInPieces(spill, 0, 13 * BLOCK_SIZE + 500, new Random(5));
+        final long start = spill.getStart();
+        spill.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        // the partial block was kept only in memory
+        assertEquals(start, spill.getStart());
+        assertEquals(end - 500, spill.getEnd());
+        assertHistory(spill, start, spill.getEnd());
+
+        // appending goes on where the recovered history ends
+        final long newEnd = appendInPieces(spill, spill.getEnd(), 5 * BLOCK_SIZE, new Random(6));
+        assertEquals(newEnd - 8L * BLOCK_SIZE, spill.getStart());
+        assertHistory(spill, spill.getStart(), newEnd);
+        spill.close();
+    }
+
+    @Test
+    public void startsOverWhenTheFormatChanges() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        appendInPieces(spill, 0, 5 * BLOCK_SIZE, new Random(7));
+        spill.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, 48000);
+        assertEquals(0, spill.getStart());
+        assertEquals(0, spill.getEnd());
+        spill.close();
+
+        spill = new HistorySpill(file, 16L * BLOCK_SIZE, 48000);
+        assertEquals(0, spill.getEnd());
+        spill.close();
+    }
+
+    @Test
+    public void startsOverWhenTheIndexIsTorn() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        appendInPieces(spill, 0, 5 * BLOCK_SIZE, new Random(8));
+        spill.close();
+
+        // the index follows the 4 KiB header; make the second frame start before the first
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4096 + 8);
+        raf.write(new byte[8]);
+        raf.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        assertEquals(0, spill.getEnd());
+        spill.close();
+    }
+
+    @Test
+    public void keepsTimesAcrossReopening() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        spill.addSegment(0, 1000, WALL);
+        appendInPieces(spill, 0, 3 * BLOCK_SIZE, new Random(9));
+        spill.addSegment(3L * BLOCK_SIZE, 60000, WALL + 59000);
+        appendInPieces(spill, 3L * BLOCK_SIZE, 3 * BLOCK_SIZE, new Random(10));
+        spill.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        final TimeIndex times = spill.getTimes(FILL_RATE);
+        assertEquals(1000, times.elapsedAt(0));
+        assertEquals(60000, times.elapsedAt(3L * BLOCK_SIZE));
+        assertEquals(WALL + 59000, times.wallAt(3L * BLOCK_SIZE));
+        assertEquals(3L * BLOCK_SIZE, times.positionAt(60000));
+        spill.close();
+    }
+
+    @Test
+    public void dropsTimesWithTheHistoryTheyTime() throws IOException {
+        final HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        long end = 0;
+        for (int i = 0; i < 10; i++) {
+            spill.addSegment(end, 100000L * i, WALL + 100000L * i);
+            end = appendInPieces(spill, end, 2 * BLOCK_SIZE, new Random(11 + i));
+        }
+        assertEquals(12L * BLOCK_SIZE, spill.getStart());
+        final TimeIndex times = spill.getTimes(FILL_RATE);
+        assertEquals(600000, times.elapsedAt(12L * BLOCK_SIZE));
+        assertEquals(900000, times.elapsedAt(18L * BLOCK_SIZE));
+        // segments go when a new one is added, so the oldest one left times the start of history as it was then
+        assertEquals(500000, times.elapsedAt(10L * BLOCK_SIZE));
+        assertEquals(500000 - 10000L * BLOCK_SIZE / FILL_RATE, times.elapsedAt(0));
+        spill.close();
+    }
+
+    @Test
+    public void startsOverWithOlderVersions() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        appendInPieces(spill, 0, 5 * BLOCK_SIZE, new Random(21));
+        spill.close();
+
+        // version 3 files have no checksums in the log
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.write(new byte[]{3, 0, 0, 0});
+        raf.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        assertEquals(0, spill.getEnd());
+        spill.close();
+    }
+
+    @Test
+    public void dropsNewestFramesThatWereNotSynced() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        appendInPieces(spill, 0, 6 * BLOCK_SIZE, new Random(22));
+        spill.close();
+
+        // power cut: only the first two frames were synced and the fifth one never reached storage
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        writeLong(raf, 64, 2);
+        corruptFrame(raf, 8, 4);
+        raf.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        assertEquals(0, spill.getStart());
+        assertEquals(4L * BLOCK_SIZE, spill.getEnd());
+        assertHistory(spill, 0, spill.getEnd());
+        final long end = appendInPieces(spill, spill.getEnd(), 3 * BLOCK_SIZE, new Random(23));
+        assertHistory(spill, spill.getStart(), end);
+        spill.close();
+    }
+
+    @Test
+    public void dropsOldestFramesThatWereOverwritten() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        final long end = appendInPieces(spill, 0, 6 * BLOCK_SIZE, new Random(24));
+        spill.close();
+
+        // newer frames overwrote the log of the oldest ones, but the header that dropped them was lost
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        corruptFrame(raf, 8, 0);
+        corruptFrame(raf, 8, 1);
+        raf.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        assertEquals(2L * BLOCK_SIZE, spill.getStart());
+        assertEquals(end, spill.getEnd());
+        assertHistory(spill, spill.getStart(), end);
+        spill.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void failsToReadCorruptedFrames() throws IOException {
+        HistorySpill spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        appendInPieces(spill, 0, 6 * BLOCK_SIZE, new Random(25));
+        spill.close();
+
+        // a synced frame that went bad later is kept, but isn't decoded
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        corruptFrame(raf, 8, 3);
+        raf.close();
+
+        spill = new HistorySpill(file, 8L * BLOCK_SIZE, SAMPLE_RATE);
+        try {
+            assertEquals(6L * BLOCK_SIZE, spill.getEnd());
+            read(spill, 0, spill.getEnd());
+        } finally {
+            spill.close();
+        }
+    }
+
+    @Test
+    public void fileSizeMatchesTheFile() throws IOException {
+        final HistorySpill spill = new HistorySpill(file, 10L * BLOCK_SIZE - 1, SAMPLE_RATE);
+        assertEquals(10L * BLOCK_SIZE, HistorySpill.roundCapacity(10L * BLOCK_SIZE - 1));
+        assertEquals(HistorySpill.fileSize(10L * BLOCK_SIZE - 1), file.length());
+        spill.close();
+    }
+
+    /**
+     * Appends {@code count} bytes of test audio that follow {@code position}, in pieces of random size.
+     *
+     * @return position after the appended audio
+     */
+    private static long appendInPieces(HistorySpill spill, long position, long count, Random random)
+            throws IOException {
+        final long end = position + count;
+        while (position < end) {
+            final int length = (int) Math.min(end - position, 1 + random.nextInt(3 * BLOCK_SIZE));
+            final byte[] piece = audio(position, length);
+            spill.append(piece, 0, length);
+            position += length;
+        }
+        return end;
+    }
+
+    /**
+     * Test audio between the positions: a tone with a pattern on top, so every block compresses and differs.
+     */
+    private static byte[] audio(long position, int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            final long sample = (position + i) / 2;
+            final short value = (short) (3000 * Math.sin(sample * 0.03) + sample % 13);
+            bytes[i] = (byte) ((position + i) % 2 == 0 ? value : value >> 8);
+        }
+        return bytes;
+    }
+
+    /**
+     * Overwrites bytes in the middle of frame {@code f} of a spill whose index has {@code frames} slots.
+     */
+    private static void corruptFrame(RandomAccessFile raf, int frames, long f) throws IOException {
+        final long logOffset = 4096 + 8L * frames;
+        final long logCapacity = (long) frames * BLOCK_SIZE / 2;
+        final long start = readLong(raf, 4096 + 8 * (f % frames));
+        raf.seek(logOffset + (start + 100) % logCapacity);
+        raf.write(new byte[]{1, 2, 3, 4});
+    }
+
+    private static long readLong(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        return Long.reverseBytes(raf.readLong());
+    }
+
+    private static void writeLong(RandomAccessFile raf, long position, long value) throws IOException {
+        raf.seek(position);
+        raf.writeLong(Long.reverseBytes(value));
+    }
+
+    private static void assertHistory(HistorySpill spill, long from, long to) throws IOException {
+        assertArrayEquals("history " + from + ".." + to, audio(from, (int) (to - from)), read(spill, from, to));
+    }
+
+    private static byte[] read(HistorySpill spill, long from, long to) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spill.read(from, to, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return count;
+            }
+        });
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class SpeechFinderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 2 * SAMPLE_RATE / 50; // the detector looks at 20 ms frames
+    private static final int PADDING = 5 * FRAME;
+
+    private final Random random = new Random(6);
+
+    @Test
+    public void findsSpeechWithPaddingAroundIt() throws IOException {
+        final byte[] pcm = audio(noise(50), tone(25), noise(50));
+        assertArrayEquals(new long[]{50 * FRAME - PADDING, 75 * FRAME + PADDING}, find(pcm, 0, PADDING));
+    }
+
+    @Test
+    public void findsNothingInSilence() throws IOException {
+        assertArrayEquals(new long[0], find(noise(100), 0, PADDING));
+    }
+
+    @Test
+    public void mergesSpeechCloserThanThePadding() throws IOException {
+        final byte[] pcm = audio(noise(50), tone(10), noise(8), tone(10), noise(20), tone(10), noise(50));
+        assertArrayEquals(new long[]{50 * FRAME - PADDING, 78 * FRAME + PADDING, 98 * FRAME - PADDING,
+                108 * FRAME + PADDING}, find(pcm, 0, PADDING));
+    }
+
+    @Test
+    public void keepsThePaddingWithinTheRange() throws IOException {
+        final byte[] pcm = audio(noise(2), tone(10), noise(30), tone(10));
+        final long from = 1000 * FRAME;
+        assertArrayEquals(new long[]{from, from + 12 * FRAME + PADDING, from + 42 * FRAME - PADDING,
+                from + pcm.length}, find(pcm, from, PADDING));
+    }
+
+    @Test
+    public void keepsPositionsAcrossGaps() throws IOException {
+        final byte[] before = audio(noise(50), tone(10));
+        final byte[] after = audio(noise(20), tone(10), noise(20));
+        final long gap = 1234 * 2;
+        final SpeechFinder finder = new SpeechFinder(SAMPLE_RATE, 0, before.length + gap + after.length, PADDING);
+        feed(finder, before);
+        // the frame cut by the gap is dropped, it doesn't move the audio after the gap
+        feed(finder, noise(1), 0, FRAME / 2);
+        finder.skipTo(before.length + gap);
+        feed(finder, after);
+        final long resumed = before.length + gap;
+        assertArrayEquals(new long[]{50 * FRAME - PADDING, 60 * FRAME + PADDING, resumed + 20 * FRAME - PADDING,
+                resumed + 30 * FRAME + PADDING}, finder.finish());
+    }
+
+    @Test
+    public void keepsPositionsOfHistoryThatWasNotHeld() throws IOException {
+        final AudioMemory memory = new AudioMemory();
+        memory.allocate(AudioMemory.CHUNK_SIZE);
+        final byte[] dropped = noise(AudioMemory.CHUNK_SIZE / FRAME / 2);
+        final byte[] held = audio(noise(AudioMemory.CHUNK_SIZE / FRAME - 100), tone(10), noise(50));
+        fill(memory, dropped);
+        fill(memory, held);
+        final long end = memory.getEndPosition();
+        final long toneStart = end - 60 * FRAME;
+
+        final SpeechFinder finder = new SpeechFinder(SAMPLE_RATE, 0, end, PADDING);
+        memory.read(0, end, finder);
+        assertArrayEquals(new long[]{toneStart - PADDING, toneStart + 10 * FRAME + PADDING}, finder.finish());
+        memory.allocate(0);
+    }
+
+    private static long[] find(byte[] pcm, long from, long padding) throws IOException {
+        final SpeechFinder finder = new SpeechFinder(SAMPLE_RATE, from, from + pcm.length, padding);
+        feed(finder, pcm);
+        return finder.finish();
+    }
+
+    /**
+     * Feeds the audio in pieces that don't line up with frames.
+     */
+    private static void feed(SpeechFinder finder, byte[] pcm) throws IOException {
+        feed(finder, pcm, 0, pcm.length);
+    }
+
+    private static void feed(SpeechFinder finder, byte[] pcm, int offset, int count) throws IOException {
+        for (int position = offset; position < offset + count; position += 1000) {
+            finder.consume(pcm, position, Math.min(1000, offset + count - position));
+        }
+    }
+
+    private static void fill(AudioMemory memory, final byte[] pcm) throws IOException {
+        final int[] filled = {0};
+        while (filled[0] < pcm.length) {
+            memory.fill(new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) {
+                    final int length = Math.min(count, pcm.length - filled[0]);
+                    System.arraycopy(pcm, filled[0], array, offset, length);
+                    filled[0] += length;
+                    return length;
+                }
+            });
+        }
+    }
+
+    private static byte[] audio(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] tone(int frames) {
+        final byte[] pcm = new byte[frames * FRAME];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            put(pcm, i, (int) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE)));
+        }
+        return pcm;
+    }
+
+    /**
+     * Background noise of a quiet room.
+     */
+    private byte[] noise(int frames) {
+        final byte[] pcm = new byte[frames * FRAME];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            put(pcm, i, random.nextInt(41) - 20);
+        }
+        return pcm;
+    }
+
+    private static void put(byte[] pcm, int index, int sample) {
+        pcm[2 * index] = (byte) sample;
+        pcm[2 * index + 1] = (byte) (sample >> 8);
+    }
+}
@@ -0,0 +1,129 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TimeIndexTest {
+
+    private static final int FILL_RATE = 2000; // 2 bytes per millisecond
+    private static final long WALL = 1700000000000L;
+
+    @Test
+    public void timesPositionsOfASegment() {
+        final TimeIndex index = new TimeIndex(FILL_RATE).withSegment(0, 1000, WALL, Long.MIN_VALUE);
+        assertEquals(1000, index.elapsedAt(0));
+        assertEquals(2000, index.elapsedAt(2000));
+        assertEquals(WALL + 1000, index.wallAt(2000));
+        assertEquals(2000, index.positionAt(2000));
+        assertEquals(0, index.gapMillis(0, 100000));
+    }
+
+    @Test
+    public void findsGaps() {
+        // 2 s of capture, 500 ms missing, then capture goes on
+        final TimeIndex index = new TimeIndex(FILL_RATE)
+                .withSegment(0, 1000, WALL, Long.MIN_VALUE)
+                .withSegment(4000, 3500, WALL + 2500, Long.MIN_VALUE);
+        assertEquals(3500, index.elapsedAt(4000));
+        assertEquals(WALL + 2600, index.wallAt(4200));
+        assertEquals(500, index.gapMillis(0, 10000));
+        assertEquals(0, index.gapMillis(0, 3998));
+        assertEquals(500, index.gapBefore(4000));
+        assertEquals(0, index.gapBefore(4002));
+        assertEquals(4000, index.nextGap(0, 10000));
+        assertEquals(10000, index.nextGap(4000 + 2, 10000));
+        assertEquals(4000, index.nextSegment(2, 10000));
+
+        assertEquals(2000, index.positionAt(2000));
+        // a time in the gap gives the position where capture went on
+        assertEquals(4000, index.positionAt(3200));
+        assertEquals(4200, index.positionAt(3600));
+        // times before the history extrapolate from the first segment
+        assertEquals(-2000, index.elapsedAt(-6000));
+    }
+
+    @Test
+    public void aSegmentReplacesTheOnesAtOrAfterIt() {
+        final TimeIndex index = new TimeIndex(FILL_RATE)
+                .withSegment(0, 1000, WALL, Long.MIN_VALUE)
+                .withSegment(4000, 5000, WALL + 4000, Long.MIN_VALUE)
+                .withSegment(8000, 9000, WALL + 8000, Long.MIN_VALUE)
+                .withSegment(4000, 3000, WALL + 2000, Long.MIN_VALUE);
+        assertEquals(3000, index.elapsedAt(4000));
+        assertEquals(5000, index.elapsedAt(8000));
+        assertEquals(0, index.gapMillis(0, 100000));
+    }
+
+    @Test
+    public void dropsSegmentsThatEndBeforeTheOldestPosition() {
+        final TimeIndex index = new TimeIndex(FILL_RATE)
+                .withSegment(0, 1000, WALL, Long.MIN_VALUE)
+                .withSegment(4000, 5000, WALL + 4000, Long.MIN_VALUE)
+                .withSegment(8000, 9000, WALL + 8000, Long.MIN_VALUE)
+                .withSegment(12000, 13000, WALL + 12000, 9000);
+        // the segment from 8000 on still times history after 9000
+        assertEquals(9000, index.elapsedAt(8000));
+        assertEquals(9000 - 4000, index.elapsedAt(0));
+        assertEquals(2000, index.gapMillis(0, 100000));
+    }
+
+    @Test
+    public void keepsTheNewestSegments() {
+        TimeIndex index = new TimeIndex(FILL_RATE);
+        for (int i = 0; i < 1100; i++) {
+            index = index.withSegment(i * 1000L, i * 1000L, WALL + i * 1000L, Long.MIN_VALUE);
+        }
+        assertEquals(1099000, index.elapsedAt(1099000));
+        assertEquals(76000, index.elapsedAt(76000));
+        assertEquals(1099000, index.positionAt(1099000));
+    }
+
+    @Test
+    public void shiftsPositions() {
+        final TimeIndex index = new TimeIndex(FILL_RATE)
+                .withSegment(0, 1000, WALL, Long.MIN_VALUE)
+                .withSegment(4000, 3500, WALL + 2500, Long.MIN_VALUE)
+                .shifted(-1000);
+        assertEquals(1500, index.elapsedAt(0));
+        assertEquals(3500, index.elapsedAt(3000));
+        assertEquals(500, index.gapBefore(3000));
+    }
+
+    @Test
+    public void putsOlderSegmentsInFront() {
+        final TimeIndex older = new TimeIndex(FILL_RATE)
+                .withSegment(0, 1000, WALL, Long.MIN_VALUE)
+                .withSegment(6000, 10000, WALL + 9000, Long.MIN_VALUE)
+                .withSegment(12000, 20000, WALL + 19000, Long.MIN_VALUE);
+        final TimeIndex newer = new TimeIndex(FILL_RATE).withSegment(10000, 11000, WALL + 10000, Long.MIN_VALUE);
+        final TimeIndex index = newer.after(older);
+        assertEquals(1000, index.elapsedAt(0));
+        // 2 s of audio from 6000 on can't run past 11000, where the newer index starts
+        assertEquals(9000, index.elapsedAt(6000));
+        assertEquals(11000, index.elapsedAt(10000));
+        assertEquals(12000, index.elapsedAt(12000));
+        assertEquals(10000, index.nextSegment(6002, 20000));
+
+        final TimeIndex all = new TimeIndex(FILL_RATE).after(older);
+        assertEquals(20000, all.elapsedAt(12000));
+        assertSame(newer, newer.after(new TimeIndex(FILL_RATE)));
+    }
+
+    @Test
+    public void timesSegmentsOfEarlierBootsByTheWallClock() {
+        final long previousBoot = WALL;
+        final long currentBoot = WALL + 3600000;
+        final TimeIndex index = new TimeIndex(FILL_RATE)
+                .withSegment(0, 5000, previousBoot + 5000, Long.MIN_VALUE)
+                // the wall clock was set 10 s forward during this boot, which is no reason to distrust elapsed time
+                .withSegment(4000, 2000, currentBoot + 12000, Long.MIN_VALUE)
+                .onBoot(currentBoot);
+        assertEquals(5000 - 3600000, index.elapsedAt(0));
+        assertEquals(2000, index.elapsedAt(4000));
+        assertEquals(2000, index.positionAt(5000 - 3600000 + 1000));
+        assertEquals(4000, index.positionAt(0));
+        assertEquals(4100, index.positionAt(2050));
+    }
+}
@@ -0,0 +1,108 @@
+package simplesound.dsp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import simplesound.pcm.PcmMonoInputStream;
+import simplesound.pcm.WavAudioFormat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DoubleVectorProcessingPipelineTest {
+
+    private static final int FFT_SIZE = 256;
+    private static final int SHIFT = FFT_SIZE / 4;
+    // 61 frames - no batch size below tried divides that, so the last batch is partial
+    private static final int FRAMES = 61;
+    private static final int SAMPLES = FFT_SIZE + (FRAMES - 1) * SHIFT;
+    private static final int[] BATCH_SIZES = {1, 2, 3, 8, 32, 100};
+
+    private List<DoubleVectorProcessor> processors;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        processors = Arrays.<DoubleVectorProcessor>asList(
+                WindowerFactory.newHammingWindower(FFT_SIZE),
+                new PowerSpectrum(FFT_SIZE),
+                new MelFilterBank(FFT_SIZE, 8000, 20, 0, 4000));
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void batchesGiveTheSequentialOutput() {
+        final List<double[]> expected = run(1, null);
+        assertEquals(FRAMES, expected.size());
+        for (int batchSize : BATCH_SIZES) {
+            assertOutput("batch " + batchSize, expected, run(batchSize, null));
+        }
+    }
+
+    @Test
+    public void parallelBatchesGiveTheSequentialOutput() {
+        final List<double[]> expected = run(1, null);
+        for (int batchSize : BATCH_SIZES) {
+            // the pool may finish frames in any order, so a few rounds for a chance to catch that
+            for (int round = 0; round < 5; round++) {
+                assertOutput("parallel batch " + batchSize, expected, run(batchSize, pool));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBatches() {
+        new DoubleVectorProcessingPipeline(frames(), processors, 0, null);
+    }
+
+    private static void assertOutput(String setup, List<double[]> expected, List<double[]> actual) {
+        assertEquals(setup, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(setup + ", frame " + i, expected.get(i), actual.get(i), 0);
+        }
+    }
+
+    /**
+     * Frames as the consumer got them, copied as they are only valid during the call.
+     */
+    private List<double[]> run(int batchSize, ForkJoinPool pool) {
+        final List<double[]> output = new ArrayList<double[]>();
+        new DoubleVectorProcessingPipeline(frames(), processors, batchSize, pool).run(
+                new DoubleVectorProcessingPipeline.FrameConsumer() {
+                    @Override
+                    public void consume(DoubleVector frame) {
+                        output.add(frame.data.clone());
+                    }
+                });
+        return output;
+    }
+
+    /**
+     * A single reused frame, so batches have to copy what they read.
+     */
+    private static NormalizedFrameIterator frames() {
+        final Random random = new Random(42);
+        final byte[] pcm = new byte[SAMPLES * 2];
+        for (int i = 0; i < SAMPLES; i++) {
+            final int sample = (int) (8000 * Math.sin(i * 0.05 + i * i * 1e-5)) + random.nextInt(2000) - 1000;
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        final PcmMonoInputStream stream = new PcmMonoInputStream(new WavAudioFormat.Builder().sampleRate(8000).build(),
+                new ByteArrayInputStream(pcm));
+        return new NormalizedFrameIterator(stream, FFT_SIZE, SHIFT, false, 1);
+    }
+}
@@ -0,0 +1,91 @@
+package simplesound.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MelFilterBankTest {
+
+    private static final int FFT_SIZE = 512;
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BINS = FFT_SIZE / 2 + 1;
+
+    @Test
+    public void matchesTriangularFilters() {
+        final double[] powers = powers();
+        for (int filters : new int[]{1, 26, 40, 80}) {
+            final MelFilterBank bank = new MelFilterBank(FFT_SIZE, SAMPLE_RATE, filters, 100, 7000);
+            assertEquals(filters, bank.getOutputSize());
+            assertArrayEquals(filters + " filters", energies(powers, filters, 100, 7000),
+                    bank.process(new DoubleVector(powers)).data, 1e-9);
+        }
+    }
+
+    @Test
+    public void processInPlaceGivesTheSameBands() {
+        final double[] powers = powers();
+        final MelFilterBank bank = new MelFilterBank(FFT_SIZE, SAMPLE_RATE, 40, 0, 8000);
+        final double[] expected = energies(powers, 40, 0, 8000);
+
+        // a frame from PowerSpectrum.processInPlace: the bands are staged behind the spectrum
+        final DoubleVector frame = new DoubleVector(Arrays.copyOf(powers, FFT_SIZE));
+        bank.processInPlace(frame);
+        assertArrayEquals(Arrays.copyOf(expected, FFT_SIZE), frame.data, 1e-9);
+
+        // a frame that holds just the spectrum: no room behind it
+        final DoubleVector bins = new DoubleVector(powers.clone());
+        bank.processInPlace(bins);
+        assertArrayEquals(Arrays.copyOf(expected, BINS), bins.data, 1e-9);
+    }
+
+    @Test
+    public void convertsBetweenHertzAndMel() {
+        assertEquals(0, MelFilterBank.toMel(0), 1e-9);
+        assertEquals(1000, MelFilterBank.toMel(1000), 0.1);
+        for (double frequency = 0; frequency <= 8000; frequency += 250) {
+            assertEquals(frequency, MelFilterBank.toFrequency(MelFilterBank.toMel(frequency)), 1e-6);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBandsAboveNyquist() {
+        new MelFilterBank(FFT_SIZE, SAMPLE_RATE, 40, 0, 9000);
+    }
+
+    private static double[] powers() {
+        final Random random = new Random(3);
+        final double[] powers = new double[BINS];
+        for (int i = 0; i < powers.length; i++) {
+            powers[i] = random.nextDouble() * 100;
+        }
+        return powers;
+    }
+
+    /**
+     * Band energies by definition, as the filter bank computed them before it staged them in the frame: band m is the
+     * sum of the bins weighted by a triangle that rises from the edge of band m - 1 to its center and falls to the
+     * center of band m + 1, with band edges spaced evenly in mel.
+     */
+    private static double[] energies(double[] powers, int filters, double minFrequency, double maxFrequency) {
+        final double minMel = MelFilterBank.toMel(minFrequency);
+        final double melStep = (MelFilterBank.toMel(maxFrequency) - minMel) / (filters + 1);
+        final double[] energies = new double[filters];
+        for (int m = 0; m < filters; m++) {
+            final double left = MelFilterBank.toFrequency(minMel + m * melStep);
+            final double center = MelFilterBank.toFrequency(minMel + (m + 1) * melStep);
+            final double right = MelFilterBank.toFrequency(minMel + (m + 2) * melStep);
+            for (int k = 0; k < powers.length; k++) {
+                final double frequency = (double) k * SAMPLE_RATE / FFT_SIZE;
+                final double weight = Math.min((frequency - left) / (center - left), (right - frequency) / (right - center));
+                if (weight > 0) {
+                    energies[m] += weight * powers[k];
+                }
+            }
+        }
+        return energies;
+    }
+}
@@ -0,0 +1,141 @@
+package simplesound.dsp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import simplesound.pcm.PcmMonoInputStream;
+import simplesound.pcm.WavAudioFormat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NormalizedFrameIteratorTest {
+
+    private static final int SAMPLES = 1000;
+
+    @Test
+    public void splitsIntoFrames() {
+        assertFrames(100, 100, false, 0);
+        assertFrames(128, 128, false, 0);
+    }
+
+    @Test
+    public void overlapsFrames() {
+        assertFrames(128, 64, false, 0);
+        assertFrames(100, 1, false, 0);
+        assertFrames(100, 99, false, 0);
+    }
+
+    @Test
+    public void skipsSamplesBetweenFrames() {
+        assertFrames(50, 120, false, 0);
+        assertFrames(64, 500, true, 0);
+    }
+
+    @Test
+    public void padsTheLastFrame() {
+        assertFrames(128, 128, true, 0);
+        assertFrames(128, 64, true, 0);
+        assertFrames(300, 200, true, 0);
+        // nothing is left after the last full frame, so there is no padded one
+        assertFrames(100, 100, true, 0);
+    }
+
+    @Test
+    public void reusesFrames() {
+        assertFrames(128, 64, true, 1);
+        assertFrames(128, 64, true, 3);
+        assertFrames(100, 300, true, 2);
+    }
+
+    @Test
+    public void keepsOverlapApartFromFramesHandedOut() {
+        // in-place processors overwrite the frames they get; the next frames must not see that
+        final NormalizedFrameIterator iterator = iterator(128, 32, true, 2);
+        final List<double[]> frames = new ArrayList<double[]>();
+        while (iterator.hasNext()) {
+            final DoubleVector frame = iterator.next();
+            frames.add(frame.data.clone());
+            Arrays.fill(frame.data, 7);
+        }
+        final List<double[]> expected = expected(128, 32, true);
+        assertEquals(expected.size(), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), frames.get(i), 0);
+        }
+    }
+
+    @Test
+    public void endsCleanly() {
+        final NormalizedFrameIterator iterator = iterator(SAMPLES, SAMPLES, false, 0);
+        assertTrue(iterator.hasNext());
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail("next() after the last frame");
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    private static void assertFrames(int frameSize, int shift, boolean padding, int reusedFrames) {
+        final String setup = "frame " + frameSize + ", shift " + shift + ", padding " + padding
+                + ", reused " + reusedFrames;
+        final List<double[]> expected = expected(frameSize, shift, padding);
+        final NormalizedFrameIterator iterator = iterator(frameSize, shift, padding, reusedFrames);
+        int count = 0;
+        while (iterator.hasNext()) {
+            final DoubleVector frame = iterator.next();
+            assertTrue(setup + ": too many frames", count < expected.size());
+            assertArrayEquals(setup + ", frame " + count, expected.get(count), frame.data, 0);
+            count++;
+        }
+        assertEquals(setup, expected.size(), count);
+    }
+
+    /**
+     * Frames by definition: frame k holds samples from k * shift on. A frame that runs past the end of the stream is
+     * padded with zeros if it has samples that no frame before it had.
+     */
+    private static List<double[]> expected(int frameSize, int shift, boolean padding) {
+        final List<double[]> frames = new ArrayList<double[]>();
+        for (int k = 0; ; k++) {
+            final int start = k * shift;
+            final int firstNew = k == 0 ? 0 : Math.max(start, (k - 1) * shift + frameSize);
+            if (start + frameSize > SAMPLES && (!padding || firstNew >= SAMPLES))
+                return frames;
+            final double[] frame = new double[frameSize];
+            for (int i = 0; i < frameSize && start + i < SAMPLES; i++) {
+                frame[i] = sample(start + i) / 32767.0;
+            }
+            frames.add(frame);
+        }
+    }
+
+    private static NormalizedFrameIterator iterator(int frameSize, int shift, boolean padding, int reusedFrames) {
+        final byte[] pcm = new byte[SAMPLES * 2];
+        for (int i = 0; i < SAMPLES; i++) {
+            pcm[2 * i] = (byte) sample(i);
+            pcm[2 * i + 1] = (byte) (sample(i) >> 8);
+        }
+        final PcmMonoInputStream stream = new PcmMonoInputStream(new WavAudioFormat.Builder().sampleRate(8000).build(),
+                new ByteArrayInputStream(pcm));
+        return new NormalizedFrameIterator(stream, frameSize, shift, padding, reusedFrames);
+    }
+
+    /**
+     * Never zero, so that padding stands out.
+     */
+    private static int sample(int index) {
+        return index + 1;
+    }
+}
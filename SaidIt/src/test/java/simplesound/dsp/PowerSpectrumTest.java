@@ -0,0 +1,59 @@
+package simplesound.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PowerSpectrumTest {
+
+    @Test
+    public void matchesSquaredDft() {
+        final Random random = new Random(2);
+        for (int size = 4; size <= 1024; size *= 2) {
+            final double[] frame = new double[size];
+            for (int i = 0; i < size; i++) {
+                frame[i] = random.nextDouble() * 2 - 1;
+            }
+            final double[] expected = powers(frame);
+            final PowerSpectrum spectrum = new PowerSpectrum(size);
+            assertEquals(size / 2 + 1, spectrum.getOutputSize());
+            assertArrayEquals("size " + size, expected, spectrum.process(new DoubleVector(frame)).data, 1e-9 * size);
+        }
+    }
+
+    @Test
+    public void processInPlaceLeavesBinsAtTheFront() {
+        final int size = 64;
+        final double[] frame = new double[size];
+        for (int i = 0; i < size; i++) {
+            frame[i] = Math.sin(i) + (i % 3);
+        }
+        final double[] expected = Arrays.copyOf(powers(frame), size);
+        final DoubleVector input = new DoubleVector(frame.clone());
+        new PowerSpectrum(size).processInPlace(input);
+        assertArrayEquals(expected, input.data, 1e-9 * size);
+    }
+
+    /**
+     * |X[k]|^2 for 0 <= k <= size / 2, with X computed by definition.
+     */
+    private static double[] powers(double[] frame) {
+        final int size = frame.length;
+        final double[] powers = new double[size / 2 + 1];
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int n = 0; n < size; n++) {
+                final double angle = -2 * Math.PI * ((long) k * n % size) / size;
+                re += frame[n] * Math.cos(angle);
+                im += frame[n] * Math.sin(angle);
+            }
+            powers[k] = re * re + im * im;
+        }
+        return powers;
+    }
+}
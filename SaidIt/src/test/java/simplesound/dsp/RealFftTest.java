@@ -0,0 +1,94 @@
+package simplesound.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RealFftTest {
+
+    @Test
+    public void matchesDirectDft() {
+        final Random random = new Random(1);
+        for (int size = 4; size <= 1024; size *= 2) {
+            final double[] frame = new double[size];
+            for (int i = 0; i < size; i++) {
+                frame[i] = random.nextDouble() * 2 - 1;
+            }
+            final double[] expected = packedDft(frame);
+            final double[] data = frame.clone();
+            new RealFft(size).transform(data);
+            assertArrayEquals("size " + size, expected, data, 1e-9 * size);
+        }
+    }
+
+    @Test
+    public void findsPureTones() {
+        final int size = 512;
+        final double[] frame = new double[size];
+        for (int i = 0; i < size; i++) {
+            frame[i] = 1 + Math.cos(2 * Math.PI * 10 * i / size) + 0.5 * Math.sin(2 * Math.PI * 37 * i / size)
+                    + 0.25 * Math.cos(Math.PI * i);
+        }
+        new RealFft(size).transform(frame);
+        assertEquals(size, frame[0], 1e-9);
+        assertEquals(0.25 * size, frame[1], 1e-9);
+        for (int k = 1; k < size / 2; k++) {
+            assertEquals("re " + k, k == 10 ? size / 2 : 0, frame[2 * k], 1e-9);
+            assertEquals("im " + k, k == 37 ? -size / 4 : 0, frame[2 * k + 1], 1e-9);
+        }
+    }
+
+    @Test
+    public void processKeepsInputAndProcessInPlaceReplacesIt() {
+        final RealFft fft = new RealFft(16);
+        final double[] frame = new double[16];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = i % 5;
+        }
+        final double[] expected = packedDft(frame);
+        final DoubleVector input = new DoubleVector(frame.clone());
+        assertArrayEquals(expected, fft.process(input).data, 1e-9);
+        assertArrayEquals(frame, input.data, 0);
+        fft.processInPlace(input);
+        assertArrayEquals(expected, input.data, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new RealFft(48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFramesOfAnotherSize() {
+        new RealFft(16).transform(new double[32]);
+    }
+
+    /**
+     * Spectrum computed by definition, packed the way RealFft packs it.
+     */
+    private static double[] packedDft(double[] frame) {
+        final int size = frame.length;
+        final double[] packed = new double[size];
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int n = 0; n < size; n++) {
+                final double angle = -2 * Math.PI * ((long) k * n % size) / size;
+                re += frame[n] * Math.cos(angle);
+                im += frame[n] * Math.sin(angle);
+            }
+            if (k == 0) {
+                packed[0] = re;
+            } else if (k == size / 2) {
+                packed[1] = re;
+            } else {
+                packed[2 * k] = re;
+                packed[2 * k + 1] = im;
+            }
+        }
+        return packed;
+    }
+}
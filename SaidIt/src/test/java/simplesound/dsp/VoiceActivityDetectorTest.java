@@ -0,0 +1,98 @@
+package simplesound.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SAMPLES = 4096; // 256 ms
+
+    private final Random random = new Random(4);
+
+    @Test
+    public void findsToneInSilence() {
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE);
+        for (int i = 0; i < 8; i++) {
+            assertFalse("silence " + i, isSpeech(detector, silence()));
+        }
+        assertTrue(isSpeech(detector, tone(8000)));
+        assertTrue(isSpeech(detector, tone(3000)));
+    }
+
+    @Test
+    public void findsToneAfterDigitalSilence() {
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE);
+        assertFalse(isSpeech(detector, new byte[2 * BLOCK_SAMPLES]));
+        assertTrue(isSpeech(detector, tone(3000)));
+    }
+
+    @Test
+    public void holdsSpeechForAWhileAfterTheTone() {
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE);
+        isSpeech(detector, silence());
+        assertTrue(isSpeech(detector, tone(8000)));
+        // the hold is 500 ms, a bit less than two blocks
+        assertTrue(isSpeech(detector, silence()));
+        assertTrue(isSpeech(detector, silence()));
+        assertFalse(isSpeech(detector, silence()));
+        assertFalse(isSpeech(detector, silence()));
+    }
+
+    @Test
+    public void ignoresQuietTones() {
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE);
+        isSpeech(detector, new byte[2 * BLOCK_SAMPLES]);
+        // about -60 dBFS is too quiet for speech, even above a floor of digital silence
+        assertFalse(isSpeech(detector, tone(30)));
+    }
+
+    @Test
+    public void takesASteadyToneForTheNoiseFloor() {
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE);
+        isSpeech(detector, silence());
+        // like a fan that starts and stays on, some 15 dB above the room
+        assertTrue(isSpeech(detector, tone(100)));
+        for (int i = 0; i < 10 * SAMPLE_RATE / BLOCK_SAMPLES; i++) {
+            isSpeech(detector, tone(100));
+        }
+        assertFalse(isSpeech(detector, tone(100)));
+        // speech is still found over it
+        assertTrue(isSpeech(detector, tone(8000)));
+    }
+
+    private static boolean isSpeech(VoiceActivityDetector detector, byte[] block) {
+        return detector.isSpeech(block, 0, block.length / 2);
+    }
+
+    /**
+     * A 440 Hz tone.
+     */
+    private static byte[] tone(int amplitude) {
+        final byte[] pcm = new byte[2 * BLOCK_SAMPLES];
+        for (int i = 0; i < BLOCK_SAMPLES; i++) {
+            put(pcm, i, (int) (amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE)));
+        }
+        return pcm;
+    }
+
+    /**
+     * Background noise of a quiet room.
+     */
+    private byte[] silence() {
+        final byte[] pcm = new byte[2 * BLOCK_SAMPLES];
+        for (int i = 0; i < BLOCK_SAMPLES; i++) {
+            put(pcm, i, random.nextInt(41) - 20);
+        }
+        return pcm;
+    }
+
+    private static void put(byte[] pcm, int index, int sample) {
+        pcm[2 * index] = (byte) sample;
+        pcm[2 * index + 1] = (byte) (sample >> 8);
+    }
+}
@@ -0,0 +1,203 @@
+package simplesound.pcm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LosslessPcmCodecTest {
+
+    private static final int BLOCK_SAMPLES = 4096;
+
+    private final LosslessPcmCodec codec = new LosslessPcmCodec();
+
+    @Test
+    public void roundTripsSpeechLikeAudio() {
+        final short[] samples = new short[BLOCK_SAMPLES];
+        final Random random = new Random(1);
+        for (int i = 0; i < samples.length; i++) {
+            final double tone = 8000 * Math.sin(i * 0.05) + 3000 * Math.sin(i * 0.31);
+            samples[i] = (short) (tone + random.nextGaussian() * 200);
+        }
+        final int encodedSize = assertRoundTrip(samples);
+        assertTrue("compresses " + encodedSize, encodedSize < samples.length * 2);
+    }
+
+    @Test
+    public void roundTripsNoiseAndExtremes() {
+        final Random random = new Random(2);
+        final short[] noise = new short[BLOCK_SAMPLES];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (short) random.nextInt();
+        }
+        // noise doesn't compress and is stored verbatim
+        assertEquals(LosslessPcmCodec.maxEncodedSize(noise.length), assertRoundTrip(noise));
+
+        // full scale square wave - the largest residuals the predictors can produce
+        final short[] square = new short[BLOCK_SAMPLES];
+        for (int i = 0; i < square.length; i++) {
+            square[i] = (i / 3) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        assertRoundTrip(square);
+
+        final short[] zeros = new short[BLOCK_SAMPLES];
+        assertTrue(assertRoundTrip(zeros) < 100);
+    }
+
+    @Test
+    public void roundTripsShortBlocks() {
+        final Random random = new Random(3);
+        for (int count = 0; count <= 300; count++) {
+            final short[] samples = new short[count];
+            for (int i = 0; i < count; i++) {
+                samples[i] = (short) (1000 * Math.sin(i * 0.1) + random.nextInt(16));
+            }
+            assertRoundTrip(samples);
+        }
+    }
+
+    @Test
+    public void roundTripsAtOffsets() {
+        final short[] samples = new short[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i * 31);
+        }
+        final byte[] pcm = new byte[7 + samples.length * 2];
+        System.arraycopy(toBytes(samples), 0, pcm, 7, samples.length * 2);
+        final byte[] encoded = new byte[5 + LosslessPcmCodec.maxEncodedSize(samples.length)];
+        final int size = codec.encode(pcm, 7, samples.length, encoded, 5);
+        assertEquals(samples.length, LosslessPcmCodec.sampleCount(encoded, 5));
+
+        final byte[] decoded = new byte[3 + samples.length * 2];
+        assertEquals(samples.length, codec.decode(encoded, 5, size, decoded, 3));
+        assertArrayEquals(toBytes(samples), Arrays.copyOfRange(decoded, 3, decoded.length));
+        assertTrue(size <= LosslessPcmCodec.maxEncodedSize(samples.length));
+    }
+
+    @Test
+    public void decodesSilenceMarkersAsZeros() {
+        final byte[] encoded = new byte[16];
+        assertEquals(3, LosslessPcmCodec.encodeSilence(BLOCK_SAMPLES, encoded, 2));
+        assertTrue(LosslessPcmCodec.isSilence(encoded, 2));
+        assertEquals(BLOCK_SAMPLES, LosslessPcmCodec.sampleCount(encoded, 2));
+
+        final byte[] decoded = new byte[BLOCK_SAMPLES * 2 + 2];
+        Arrays.fill(decoded, (byte) 0x55);
+        assertEquals(BLOCK_SAMPLES, codec.decode(encoded, 2, 3, decoded, 1));
+        assertEquals(0x55, decoded[0]);
+        assertEquals(0x55, decoded[decoded.length - 1]);
+        for (int i = 1; i < decoded.length - 1; i++) {
+            assertEquals("byte " + i, 0, decoded[i]);
+        }
+    }
+
+    @Test
+    public void decodesStreamsOfBlocksAndMarkers() {
+        final Random random = new Random(4);
+        final byte[] stream = new byte[10 * LosslessPcmCodec.maxEncodedSize(BLOCK_SAMPLES)];
+        final byte[] expected = new byte[10 * BLOCK_SAMPLES * 2];
+        int length = 0;
+        for (int block = 0; block < 10; block++) {
+            if (block % 3 == 1) {
+                length += LosslessPcmCodec.encodeSilence(BLOCK_SAMPLES, stream, length);
+                continue;
+            }
+            final short[] samples = new short[BLOCK_SAMPLES];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) (5000 * Math.sin((block * BLOCK_SAMPLES + i) * 0.02) + random.nextInt(64));
+            }
+            System.arraycopy(toBytes(samples), 0, expected, block * BLOCK_SAMPLES * 2, BLOCK_SAMPLES * 2);
+            final int size = codec.encode(expected, block * BLOCK_SAMPLES * 2, BLOCK_SAMPLES, stream, length);
+            assertFalse(LosslessPcmCodec.isSilence(stream, length));
+            length += size;
+        }
+
+        final byte[] decoded = new byte[expected.length];
+        Arrays.fill(decoded, (byte) 1);
+        int offset = 0;
+        for (int block = 0; block < 10; block++) {
+            final boolean silence = LosslessPcmCodec.isSilence(stream, offset);
+            assertEquals("block " + block, block % 3 == 1, silence);
+            codec.decode(stream, offset, length - offset, decoded, block * BLOCK_SAMPLES * 2);
+            offset += silence ? 3 : encodedSize(stream, offset);
+        }
+        assertEquals(length, offset);
+        assertArrayEquals(expected, decoded);
+    }
+
+    @Test
+    public void rejectsTruncatedAndCorruptedBlocks() {
+        final short[] samples = new short[BLOCK_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (6000 * Math.sin(i * 0.03) + (i * 7919) % 101);
+        }
+        final byte[] encoded = new byte[LosslessPcmCodec.maxEncodedSize(samples.length) + 64];
+        final int size = codec.encode(toBytes(samples), 0, samples.length, encoded, 0);
+        final byte[] decoded = new byte[samples.length * 2];
+        for (int length : new int[]{0, 2, 3, size / 2, size - 1}) {
+            assertRejected(encoded, length, decoded);
+        }
+
+        // zeros after the header read as one endless Rice quotient
+        final byte[] zeros = Arrays.copyOf(encoded, encoded.length);
+        Arrays.fill(zeros, 3, zeros.length, (byte) 0);
+        assertRejected(zeros, zeros.length, decoded);
+
+        final byte[] verbatim = new byte[LosslessPcmCodec.maxEncodedSize(samples.length)];
+        final Random random = new Random(5);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        assertEquals(verbatim.length, codec.encode(toBytes(samples), 0, samples.length, verbatim, 0));
+        assertRejected(verbatim, verbatim.length - 1, decoded);
+    }
+
+    private void assertRejected(byte[] encoded, int length, byte[] decoded) {
+        try {
+            codec.decode(encoded, 0, length, decoded, 0);
+            fail("decoded " + length + " B");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Encodes the samples, checks that they decode to the same bytes and returns the encoded size.
+     */
+    private int assertRoundTrip(short[] samples) {
+        final byte[] pcm = toBytes(samples);
+        final byte[] encoded = new byte[LosslessPcmCodec.maxEncodedSize(samples.length)];
+        final int size = codec.encode(pcm, 0, samples.length, encoded, 0);
+        assertTrue("size " + size, size <= encoded.length);
+        assertFalse(LosslessPcmCodec.isSilence(encoded, 0));
+
+        final byte[] decoded = new byte[pcm.length];
+        assertEquals(samples.length, codec.decode(encoded, 0, size, decoded, 0));
+        assertArrayEquals(samples.length + " samples", pcm, decoded);
+        return size;
+    }
+
+    /**
+     * Size of an encoded block, found by encoding its samples again; the codec is deterministic.
+     */
+    private int encodedSize(byte[] encoded, int offset) {
+        final int count = LosslessPcmCodec.sampleCount(encoded, offset);
+        final byte[] pcm = new byte[count * 2];
+        new LosslessPcmCodec().decode(encoded, offset, encoded.length - offset, pcm, 0);
+        return new LosslessPcmCodec().encode(pcm, 0, count, new byte[LosslessPcmCodec.maxEncodedSize(count)], 0);
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        final byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+}
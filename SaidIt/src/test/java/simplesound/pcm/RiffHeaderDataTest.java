@@ -0,0 +1,151 @@
+package simplesound.pcm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RiffHeaderDataTest {
+
+    private static final WavAudioFormat FORMAT = new WavAudioFormat.Builder().sampleRate(44100).build();
+    // largest data size that still fits a RIFF header of RF64_HEADER_SIZE bytes
+    private static final long MAX_RIFF_DATA = RiffHeaderData.MAX_RIFF_SIZE - RiffHeaderData.RF64_HEADER_SIZE + 8;
+
+    @Test
+    public void parsesPlainHeader() throws IOException {
+        final byte[] header = new RiffHeaderData(FORMAT, 1000).asByteArray();
+        assertEquals(RiffHeaderData.PCM_RIFF_HEADER_SIZE, header.length);
+        assertEquals("RIFF", id(header, 0));
+
+        final RiffHeaderData parsed = parse(header);
+        assertFormat(parsed);
+        assertEquals(1000, parsed.getTotalSamplesInByte());
+        assertEquals(500, parsed.getSampleCount());
+        assertEquals(RiffHeaderData.PCM_RIFF_HEADER_SIZE, parsed.getDataOffset());
+    }
+
+    @Test
+    public void keepsRiffWhileTheSizeFits() throws IOException {
+        final byte[] header = new RiffHeaderData(FORMAT, MAX_RIFF_DATA).asRf64ByteArray();
+        assertEquals(RiffHeaderData.RF64_HEADER_SIZE, header.length);
+        assertEquals("RIFF", id(header, 0));
+        assertEquals("JUNK", id(header, 12));
+        assertEquals(RiffHeaderData.MAX_RIFF_SIZE, uint32(header, 4));
+
+        final RiffHeaderData parsed = parse(header);
+        assertFormat(parsed);
+        assertEquals(MAX_RIFF_DATA, parsed.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.RF64_HEADER_SIZE, parsed.getDataOffset());
+    }
+
+    @Test
+    public void switchesToRf64BeyondTheRiffLimit() throws IOException {
+        final long size = MAX_RIFF_DATA + 2;
+        final byte[] header = new RiffHeaderData(FORMAT, size).asRf64ByteArray();
+        assertEquals(RiffHeaderData.RF64_HEADER_SIZE, header.length);
+        assertEquals("RF64", id(header, 0));
+        assertEquals("ds64", id(header, 12));
+        assertEquals(RiffHeaderData.MAX_RIFF_SIZE, uint32(header, 4));
+        assertEquals("data", id(header, RiffHeaderData.RF64_HEADER_SIZE - 8));
+        assertEquals(RiffHeaderData.MAX_RIFF_SIZE, uint32(header, RiffHeaderData.RF64_HEADER_SIZE - 4));
+
+        final RiffHeaderData parsed = parse(header);
+        assertFormat(parsed);
+        assertEquals(size, parsed.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.RF64_HEADER_SIZE, parsed.getDataOffset());
+    }
+
+    @Test
+    public void rewritesRiffAsRf64InPlace() throws IOException {
+        // a writer puts the header at the start of the file and rewrites it as the file grows
+        final byte[] file = new byte[RiffHeaderData.RF64_HEADER_SIZE + 4];
+        final byte[] riff = new RiffHeaderData(FORMAT, 4).asRf64ByteArray();
+        System.arraycopy(riff, 0, file, 0, riff.length);
+        assertEquals(4, parse(file).getTotalSamplesInByte());
+
+        final long size = 6L << 30;
+        final byte[] rf64 = new RiffHeaderData(FORMAT, size).asRf64ByteArray();
+        assertEquals(riff.length, rf64.length);
+        System.arraycopy(rf64, 0, file, 0, rf64.length);
+        final RiffHeaderData parsed = parse(file);
+        assertFormat(parsed);
+        assertEquals(size, parsed.getTotalSamplesInByte());
+        assertEquals(size / 2, parsed.getSampleCount());
+        assertEquals(RiffHeaderData.RF64_HEADER_SIZE, parsed.getDataOffset());
+    }
+
+    @Test
+    public void skipsUnknownChunks() throws IOException {
+        final byte[] plain = new RiffHeaderData(FORMAT, 100).asByteArray();
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        // "RIFF", size, "WAVE", then a LIST chunk of odd size (padded to a word) before "fmt "
+        file.write(plain, 0, 12);
+        file.write(new byte[]{'L', 'I', 'S', 'T', 3, 0, 0, 0, 1, 2, 3, 0});
+        file.write(plain, 12, plain.length - 12);
+
+        final RiffHeaderData parsed = parse(file.toByteArray());
+        assertFormat(parsed);
+        assertEquals(100, parsed.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.PCM_RIFF_HEADER_SIZE + 12, parsed.getDataOffset());
+    }
+
+    @Test
+    public void convertsRawToWavWithTheRf64Header() throws IOException {
+        final byte[] pcm = new byte[100000];
+        new Random(1).nextBytes(pcm);
+        final File raw = File.createTempFile("raw", ".pcm");
+        final File wav = File.createTempFile("converted", ".wav");
+        try {
+            final FileOutputStream out = new FileOutputStream(raw);
+            out.write(pcm);
+            out.close();
+            PcmAudioHelper.convertRawToWav(FORMAT, raw, wav);
+
+            final byte[] file = Files.readAllBytes(wav.toPath());
+            assertEquals(RiffHeaderData.RF64_HEADER_SIZE + pcm.length, file.length);
+            final RiffHeaderData parsed = parse(file);
+            assertFormat(parsed);
+            assertEquals(pcm.length, parsed.getTotalSamplesInByte());
+            assertArrayEquals(pcm, Arrays.copyOfRange(file, RiffHeaderData.RF64_HEADER_SIZE, file.length));
+        } finally {
+            raw.delete();
+            wav.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        final byte[] header = new RiffHeaderData(FORMAT, 100).asByteArray();
+        header[0] = 'X';
+        parse(header);
+    }
+
+    private static RiffHeaderData parse(byte[] file) throws IOException {
+        return new RiffHeaderData(new DataInputStream(new ByteArrayInputStream(file)));
+    }
+
+    private static void assertFormat(RiffHeaderData parsed) {
+        assertEquals(44100, parsed.getFormat().getSampleRate());
+        assertEquals(1, parsed.getFormat().getChannels());
+        assertEquals(16, parsed.getFormat().getSampleSizeInBits());
+    }
+
+    private static String id(byte[] header, int offset) {
+        return new String(header, offset, 4);
+    }
+
+    private static long uint32(byte[] header, int offset) {
+        return (header[offset] & 0xffL) | (header[offset + 1] & 0xffL) << 8
+                | (header[offset + 2] & 0xffL) << 16 | (header[offset + 3] & 0xffL) << 24;
+    }
+}
@@ -0,0 +1,204 @@
+package simplesound.pcm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class WavFileWriterTest {
+
+    private static final WavAudioFormat FORMAT = new WavAudioFormat.Builder().sampleRate(16000).build();
+    private static final int HEADER = RiffHeaderData.RF64_HEADER_SIZE;
+
+    private final Random random = new Random(7);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("writer", ".wav");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writesSamplesAndSizes() throws IOException {
+        final byte[] pcm = pcm(100000);
+        // a small buffer, so that the samples go to the file in many batches
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file, 1024, 60000);
+        for (int offset = 0; offset < pcm.length; offset += 777) {
+            writer.write(pcm, offset, Math.min(777, pcm.length - offset));
+        }
+        writer.close();
+
+        assertEquals(pcm.length, writer.getTotalSampleBytesWritten());
+        assertArrayEquals(pcm, samples(pcm.length));
+    }
+
+    @Test
+    public void writesSilence() throws IOException {
+        final byte[] pcm = pcm(3000);
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file, 1024, 60000);
+        writer.write(pcm, 0, 1000);
+        writer.writeSilence(500); // fits the buffer
+        writer.write(pcm, 1000, 1000);
+        writer.writeSilence(5000); // skipped over in the file
+        writer.write(pcm, 2000, 1000);
+        writer.writeSilence(3000); // at the end, the file still has to be that long
+        writer.close();
+
+        final byte[] expected = new byte[3000 + 8500];
+        System.arraycopy(pcm, 0, expected, 0, 1000);
+        System.arraycopy(pcm, 1000, expected, 1500, 1000);
+        System.arraycopy(pcm, 2000, expected, 7500, 1000);
+        assertArrayEquals(expected, samples(expected.length));
+    }
+
+    @Test
+    public void overwritesWrittenSamplesWithSilence() throws IOException {
+        final byte[] pcm = pcm(20000);
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file, 4096, 60000);
+        writer.write(pcm, 0, 15000);
+        // partly in the file, partly still in the buffer
+        writer.overwriteWithSilence(10000, 4000);
+        writer.write(pcm, 15000, 5000);
+        writer.close();
+
+        final byte[] expected = pcm.clone();
+        Arrays.fill(expected, 10000, 14000, (byte) 0);
+        assertArrayEquals(expected, samples(pcm.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToOverwriteSamplesNotWritten() throws IOException {
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file);
+        try {
+            writer.write(pcm(1000));
+            writer.overwriteWithSilence(500, 1000);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void patchesAnRf64HeaderOnCloseBeyondFourGigabytes() throws IOException {
+        final byte[] first = pcm(1000);
+        final byte[] last = pcm(1000);
+        final long silence = 5L << 30;
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file);
+        writer.write(first);
+        writer.writeSilence(silence);
+        writer.write(last);
+        writer.close();
+
+        final long total = first.length + silence + last.length;
+        assertEquals(total, writer.getTotalSampleBytesWritten());
+        assertEquals(HEADER + total, file.length());
+        final RiffHeaderData header = new RiffHeaderData(file);
+        assertEquals(total, header.getTotalSamplesInByte());
+        assertEquals(HEADER, header.getDataOffset());
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] id = new byte[4];
+            raf.readFully(id);
+            assertEquals("RF64", new String(id));
+            raf.seek(12);
+            raf.readFully(id);
+            assertEquals("ds64", new String(id));
+            assertArrayEquals(first, read(raf, HEADER, first.length));
+            assertArrayEquals(new byte[1000], read(raf, HEADER + first.length + (silence >> 1), 1000));
+            assertArrayEquals(last, read(raf, HEADER + total - last.length, last.length));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void gathersBuffersAfterBufferedSamples() throws IOException {
+        final byte[] pcm = pcm(3 << 20);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(100000);
+        direct.put(pcm, 1000, 100000).flip();
+        // larger than the heap data taken by one gathering write, and not at the start of its array
+        final ByteBuffer heap = ByteBuffer.wrap(pcm, 101000, (2 << 20) + 12345);
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file);
+        writer.write(pcm, 0, 1000);
+        writer.write(new ByteBuffer[]{direct, empty, heap});
+        final int gathered = 101000 + heap.remaining();
+        writer.write(pcm, gathered, pcm.length - gathered);
+        writer.close();
+
+        // the positions of the given buffers stay as they were
+        assertEquals(0, direct.position());
+        assertEquals(101000, heap.position());
+        assertEquals(pcm.length, writer.getTotalSampleBytesWritten());
+        assertArrayEquals(pcm, samples(pcm.length));
+    }
+
+    @Test
+    public void takesSamplesAfterAFailedGather() throws IOException {
+        final File full = new File("/dev/full");
+        assumeTrue(full.exists());
+        final WavFileWriter writer = new WavFileWriter(FORMAT, full, 1024, 60000);
+        try {
+            writer.write(new ByteBuffer[]{ByteBuffer.wrap(pcm(100))});
+            throw new AssertionError("the gather can't succeed on a full device");
+        } catch (IOException expected) {
+        }
+        // the buffer is empty again, a write that fits doesn't go to the device
+        writer.write(pcm(1000));
+        assertEquals(1000, writer.getTotalSampleBytesWritten());
+        try {
+            writer.close();
+        } catch (IOException expected) {
+            // the device is still full
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesWritesAfterClose() throws IOException {
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file);
+        writer.close();
+        writer.write(pcm(10));
+    }
+
+    /**
+     * Parses the file and returns its samples, checking that the header gives their size.
+     */
+    private byte[] samples(int expectedCount) throws IOException {
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final RiffHeaderData header = new RiffHeaderData(file);
+        assertEquals(16000, header.getFormat().getSampleRate());
+        assertEquals(HEADER, header.getDataOffset());
+        assertEquals(expectedCount, header.getTotalSamplesInByte());
+        assertEquals(HEADER + expectedCount, bytes.length);
+        return Arrays.copyOfRange(bytes, HEADER, bytes.length);
+    }
+
+    private static byte[] read(RandomAccessFile raf, long position, int count) throws IOException {
+        final byte[] bytes = new byte[count];
+        raf.seek(position);
+        raf.readFully(bytes);
+        return bytes;
+    }
+
+    private byte[] pcm(int count) {
+        final byte[] pcm = new byte[count];
+        random.nextBytes(pcm);
+        return pcm;
+    }
+}
@@ -0,0 +1,121 @@
+package eu.mrogalski.saidit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+
+import simplesound.pcm.BenchmarkAudio;
+
+/**
+ * Captures audio into a full ring the way the audio thread does (one AudioRecord read at a time) and reads history
+ * back the way dumps do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class AudioMemoryBenchmark {
+
+    private static final int MEMORY_SIZE = 4 * AudioMemory.CHUNK_SIZE;
+
+    @Param({"heap", "mapped", "compressed"})
+    public String memoryType;
+
+    // bytes handed over by one AudioRecord read - 20 ms and 1 s
+    @Param({"1764", "88200"})
+    public int readSize;
+
+    private AudioMemory memory;
+    private File backingFile;
+    private byte[] pcm;
+    private int pcmOffset;
+
+    private final AudioMemory.Consumer filler = new AudioMemory.Consumer() {
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            final int length = Math.min(Math.min(count, readSize), pcm.length - pcmOffset);
+            System.arraycopy(pcm, pcmOffset, array, offset, length);
+            pcmOffset = (pcmOffset + length) % pcm.length;
+            return length;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        pcm = BenchmarkAudio.pcm(5);
+        memory = "compressed".equals(memoryType) ? new CompressedAudioMemory() : new AudioMemory();
+        if ("mapped".equals(memoryType)) {
+            backingFile = File.createTempFile("benchmark", ".pcm");
+            memory.setBackingFile(backingFile);
+        }
+        memory.allocate(MEMORY_SIZE);
+        // Start with a full ring, as in steady state.
+        while (memory.getEndPosition() < 2L * MEMORY_SIZE) {
+            memory.fill(filler);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        memory.allocate(0);
+        if (backingFile != null) {
+            backingFile.delete();
+        }
+    }
+
+    @Benchmark
+    public long fill() throws IOException {
+        final long end = memory.getEndPosition() + readSize;
+        while (memory.getEndPosition() < end) {
+            memory.fill(filler);
+        }
+        return memory.getEndPosition();
+    }
+
+    /**
+     * Reads the newest 10 s of history.
+     */
+    @Benchmark
+    public void read(final Blackhole blackhole) throws IOException {
+        final long end = memory.getEndPosition();
+        memory.read(end - 10 * BenchmarkAudio.SAMPLE_RATE * 2, end, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                blackhole.consume(array);
+                return count;
+            }
+        });
+    }
+
+    private boolean shrunk = false;
+
+    /**
+     * Halves the memory or grows it back, and captures one read, the way the audio thread handles a change of the
+     * memory setting.
+     */
+    @Benchmark
+    public long resize() throws IOException {
+        shrunk = !shrunk;
+        memory.allocate(shrunk ? MEMORY_SIZE / 2 : MEMORY_SIZE);
+        return fill();
+    }
+
+    private final AudioMemory.Stats stats = new AudioMemory.Stats();
+
+    /**
+     * Reads the stats the way the UI and metrics do, into a reused snapshot.
+     */
+    @Benchmark
+    public long stats() {
+        memory.getStats(BenchmarkAudio.SAMPLE_RATE * 2, stats);
+        return stats.filled;
+    }
+}
@@ -0,0 +1,49 @@
+package eu.mrogalski.saidit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the metrics the capture pipeline records on every AudioRecord read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class CaptureMetricsBenchmark {
+
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    private final CaptureMetrics.Histogram histogram = metrics.histogram("benchmark", "us");
+    private final CaptureMetrics.Counter counter = metrics.counter("benchmark", "B");
+    private long value = 1;
+
+    @Setup
+    public void setUp() {
+        // a few hours of reads
+        for (int i = 0; i < 100000; i++) {
+            record();
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        // spread over the buckets like read times do
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record(value >>> 46);
+    }
+
+    @Benchmark
+    public void increment() {
+        counter.add(1764);
+    }
+
+    /**
+     * Reads a percentile the way a dump does, over every bucket.
+     */
+    @Benchmark
+    public long percentile() {
+        return histogram.getPercentile(99);
+    }
+}
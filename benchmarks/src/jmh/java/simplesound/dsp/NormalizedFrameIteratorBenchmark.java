@@ -0,0 +1,50 @@
+package simplesound.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+
+import simplesound.pcm.BenchmarkAudio;
+import simplesound.pcm.PcmMonoInputStream;
+
+/**
+ * Splits 1 s of audio into overlapping frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class NormalizedFrameIteratorBenchmark {
+
+    @Param({"512"})
+    public int frameSize;
+
+    @Param({"256", "512"})
+    public int shiftAmount;
+
+    // 0 allocates every frame
+    @Param({"0", "2"})
+    public int reusedFrames;
+
+    private byte[] pcm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pcm = BenchmarkAudio.pcm(1);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        final PcmMonoInputStream stream = new PcmMonoInputStream(BenchmarkAudio.format(), new ByteArrayInputStream(pcm));
+        final NormalizedFrameIterator frames = new NormalizedFrameIterator(stream, frameSize, shiftAmount, false, reusedFrames);
+        while (frames.hasNext()) {
+            blackhole.consume(frames.next());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package simplesound.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import simplesound.pcm.BenchmarkAudio;
+import simplesound.pcm.PcmMonoInputStream;
+
+/**
+ * Computes the mel spectrogram of 10 s of audio with {@link DoubleVectorProcessingPipeline}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class PipelineBenchmark {
+
+    private static final int FFT_SIZE = 1024;
+
+    @Param({"1", "32"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private byte[] pcm;
+    private List<DoubleVectorProcessor> processors;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pcm = BenchmarkAudio.pcm(10);
+        processors = Arrays.<DoubleVectorProcessor>asList(
+                WindowerFactory.newHammingWindower(FFT_SIZE),
+                new PowerSpectrum(FFT_SIZE),
+                new MelFilterBank(FFT_SIZE, BenchmarkAudio.SAMPLE_RATE, 40, 0, 8000));
+        pool = parallel ? new ForkJoinPool() : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void melSpectrogram(final Blackhole blackhole) {
+        final PcmMonoInputStream stream = new PcmMonoInputStream(BenchmarkAudio.format(), new ByteArrayInputStream(pcm));
+        final NormalizedFrameIterator frames = new NormalizedFrameIterator(stream, FFT_SIZE, FFT_SIZE / 4, false, 1);
+        new DoubleVectorProcessingPipeline(frames, processors, batchSize, pool).run(
+                new DoubleVectorProcessingPipeline.FrameConsumer() {
+                    @Override
+                    public void consume(DoubleVector frame) {
+                        blackhole.consume(frame.data[0]);
+                    }
+                });
+    }
+}
@@ -0,0 +1,69 @@
+package simplesound.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+
+import simplesound.pcm.BenchmarkAudio;
+import simplesound.pcm.PcmMonoInputStream;
+
+/**
+ * Computes the spectrogram of 1 s of audio with the in-place processors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class SpectrumBenchmark {
+
+    @Param({"512", "2048"})
+    public int fftSize;
+
+    private byte[] pcm;
+    private DoubleVectorProcessor windower;
+    private PowerSpectrum powerSpectrum;
+    private MelFilterBank melFilterBank;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pcm = BenchmarkAudio.pcm(1);
+        windower = WindowerFactory.newHammingWindower(fftSize);
+        powerSpectrum = new PowerSpectrum(fftSize);
+        melFilterBank = new MelFilterBank(fftSize, BenchmarkAudio.SAMPLE_RATE, 40, 0, 8000);
+    }
+
+    private Iterator<DoubleVector> frames() {
+        final PcmMonoInputStream stream = new PcmMonoInputStream(BenchmarkAudio.format(), new ByteArrayInputStream(pcm));
+        return new NormalizedFrameIterator(stream, fftSize, fftSize / 2, false, 1);
+    }
+
+    @Benchmark
+    public void powerSpectrogram(Blackhole blackhole) {
+        final Iterator<DoubleVector> frames = frames();
+        while (frames.hasNext()) {
+            final DoubleVector frame = frames.next();
+            windower.processInPlace(frame);
+            powerSpectrum.processInPlace(frame);
+            blackhole.consume(frame.data[1]);
+        }
+    }
+
+    @Benchmark
+    public void melSpectrogram(Blackhole blackhole) {
+        final Iterator<DoubleVector> frames = frames();
+        while (frames.hasNext()) {
+            final DoubleVector frame = frames.next();
+            windower.processInPlace(frame);
+            powerSpectrum.processInPlace(frame);
+            melFilterBank.processInPlace(frame);
+            blackhole.consume(frame.data[0]);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package simplesound.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a window to a single frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WindowerBenchmark {
+
+    @Param({"hamming", "hanning", "triangular"})
+    public String window;
+
+    @Param({"512"})
+    public int length;
+
+    private DoubleVectorProcessor windower;
+    private double[] samples;
+    private DoubleVector frame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("hanning".equals(window)) {
+            windower = WindowerFactory.newHanningWindower(length);
+        } else if ("triangular".equals(window)) {
+            windower = WindowerFactory.newTriangularWindower(length);
+        } else {
+            windower = WindowerFactory.newHammingWindower(length);
+        }
+        samples = new double[length];
+        final Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            samples[i] = random.nextDouble() * 2 - 1;
+        }
+        frame = new DoubleVector(samples.clone());
+    }
+
+    @Benchmark
+    public DoubleVector process() {
+        return windower.process(frame);
+    }
+
+    @Benchmark
+    public DoubleVector processInPlace() {
+        // Restore the samples first - windowing the same frame over and over would end in denormals, which are slow.
+        System.arraycopy(samples, 0, frame.data, 0, length);
+        windower.processInPlace(frame);
+        return frame;
+    }
+}
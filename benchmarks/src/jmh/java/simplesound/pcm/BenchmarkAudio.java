@@ -0,0 +1,35 @@
+package simplesound.pcm;
+
+import java.util.Random;
+
+/**
+ * Deterministic speech-like test audio (a few harmonics with noise) shared by the benchmarks.
+ */
+public class BenchmarkAudio {
+
+    public static final int SAMPLE_RATE = 44100;
+
+    public static WavAudioFormat format() {
+        return WavAudioFormat.mono16Bit(SAMPLE_RATE);
+    }
+
+    /**
+     * @return {@code seconds} of 16 bit little endian mono PCM
+     */
+    public static byte[] pcm(double seconds) {
+        final int samples = (int) (seconds * SAMPLE_RATE);
+        final byte[] pcm = new byte[samples * 2];
+        final Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            final double t = (double) i / SAMPLE_RATE;
+            final double value = 0.3 * Math.sin(2 * Math.PI * 220 * t)
+                    + 0.15 * Math.sin(2 * Math.PI * 440 * t)
+                    + 0.05 * Math.sin(2 * Math.PI * 1320 * t)
+                    + 0.02 * random.nextGaussian();
+            final short sample = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value * Short.MAX_VALUE));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,76 @@
+package simplesound.pcm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes 1 s of 16 bit audio into normalized samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+public class PcmMonoInputStreamBenchmark {
+
+    @Param({"512", "4096"})
+    public int amount;
+
+    private byte[] pcm;
+    private short[] shorts;
+    private float[] floats;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pcm = BenchmarkAudio.pcm(1);
+        shorts = new short[amount];
+        floats = new float[amount];
+    }
+
+    private PcmMonoInputStream stream() {
+        return new PcmMonoInputStream(BenchmarkAudio.format(), new ByteArrayInputStream(pcm));
+    }
+
+    @Benchmark
+    public void readSamplesNormalized(Blackhole blackhole) throws IOException {
+        final PcmMonoInputStream stream = stream();
+        double[] samples;
+        do {
+            samples = stream.readSamplesNormalized(amount);
+            blackhole.consume(samples);
+        } while (samples.length == amount);
+    }
+
+    @Benchmark
+    public void readSamplesIntoShorts(Blackhole blackhole) throws IOException {
+        final PcmMonoInputStream stream = stream();
+        while (stream.readSamples(shorts, 0, amount) == amount) {
+            blackhole.consume(shorts);
+        }
+    }
+
+    @Benchmark
+    public void readSamplesNormalizedIntoFloats(Blackhole blackhole) throws IOException {
+        final PcmMonoInputStream stream = stream();
+        while (stream.readSamplesNormalized(floats, 0, amount) == amount) {
+            blackhole.consume(floats);
+        }
+    }
+
+    @Benchmark
+    public double[] readAllNormalized() throws IOException {
+        return stream().readSamplesNormalized();
+    }
+
+    @Benchmark
+    public int[] readAll() throws IOException {
+        return stream().readAll();
+    }
+}
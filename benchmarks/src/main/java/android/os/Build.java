@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android class, enough for the benchmarked code. The JVM has the APIs of the newest level the
+ * code checks for.
+ */
+public final class Build {
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 33;
+
+        private VERSION() {
+        }
+    }
+}
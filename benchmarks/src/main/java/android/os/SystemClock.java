@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android class, enough for the benchmarked code.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}